@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+# Замер холодного старта: N прогонов pc2 (тренировочный текст с картинкой из кэша) и pc
+# (тренировочная папка с локальными картинками) с архивом CDS и без.
+#   bin/measure-startup.sh [N]
+set -euo pipefail
+
+ROOT="$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)"
+N="${1:-5}"
+TMP="$(mktemp -d)"
+trap 'rm -rf "$TMP"' EXIT
+# кэш картинок pc2 — копия тренировочного, чтобы прогоны не зависели от target/cds-cache
+cp -r "$ROOT/src/cds/cache" "$TMP/cache"
+
+run_series() {
+  local label="$1"; shift
+  local total=0
+  for ((i = 0; i < N; i++)); do
+    local t0 t1
+    t0=$(date +%s%N)
+    "$ROOT/bin/presentation-creator.sh" "$@" > /dev/null 2>&1
+    t1=$(date +%s%N)
+    total=$((total + (t1 - t0) / 1000000))
+  done
+  echo "$label: среднее $((total / N)) мс за $N прогонов"
+}
+
+PC2=(pc2 --cache-dir "$TMP/cache" "$ROOT/src/cds/training.txt" "$TMP/startup.pptx")
+PC=(pc --data "$ROOT/src/cds/data" --out "$TMP/out" --fresh)
+
+PC_NO_CDS=1 run_series "pc2 без CDS" "${PC2[@]}"
+PC_NO_CDS=0 run_series "pc2 с CDS  " "${PC2[@]}"
+PC_NO_CDS=1 run_series "pc  без CDS" "${PC[@]}"
+PC_NO_CDS=0 run_series "pc  с CDS  " "${PC[@]}"
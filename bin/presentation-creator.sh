@@ -0,0 +1,63 @@
+#!/usr/bin/env bash
+# Запуск генераторов из сборки mvn -Pappcds package.
+#   bin/presentation-creator.sh pc               — все папки data/ → out/
+#   bin/presentation-creator.sh pc2 [in] [out]   — один txt → pptx
+#   bin/presentation-creator.sh resample-bench   — замер уменьшения картинок (Graphics2D / Resampler)
+#   bin/presentation-creator.sh bench [опции]    — сквозной замер pc на синтетических data/ (колод/с, p50/p99, RSS)
+#   bin/presentation-creator.sh net-bench [опции] — замер загрузки картинок через локальный сервер со сбоями
+# Если рядом лежит target/app-cds.jsa, классы берутся из архива (быстрый холодный старт).
+# pc2 с одной колодой идёт только на C1 и без Vector API; остальное — полный JIT.
+set -euo pipefail
+
+ROOT="$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)"
+JAR="$ROOT/target/PresentationCreator.jar"
+JSA="$ROOT/target/app-cds.jsa"
+JAVA="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+
+if [[ ! -f "$JAR" ]]; then
+  echo "Нет $JAR — сначала: mvn -Pappcds package" >&2
+  exit 1
+fi
+
+case "${1:-pc}" in
+  pc)  MAIN=kinet.smaug.PresentationCreator ;;
+  pc2) MAIN=kinet.smaug.PresentationCreator2 ;;
+  resample-bench) MAIN=kinet.smaug.ResampleBenchmark ;;
+  bench) MAIN=kinet.smaug.GenerationBenchmark ;;
+  net-bench) MAIN=kinet.smaug.NetworkBenchmark ;;
+  *)   echo "Использование: $0 pc|pc2|resample-bench|bench|net-bench [аргументы...]" >&2; exit 2 ;;
+esac
+shift || true
+
+# pc2 с одной колодой: [вход.txt [выход.pptx]], без нарезки, пакетов и команд кэша
+single_deck_pc2() {
+  local positional=() a
+  while (($#)); do
+    a="$1"; shift
+    case "$a" in
+      --chunk-slides|--chunk-mb|--out-dir|--cache-export|--cache-import) return 1 ;;
+      --deadline-s|--slide-deadline-s|--jobs|--plan-threads|--cache-dir|--preview-width) shift || true ;;
+      --*) ;;
+      *) positional+=("$a") ;;
+    esac
+  done
+  ((${#positional[@]} <= 2)) || return 1
+  ((${#positional[@]} > 0)) || return 0      # по умолчанию txt.txt → presentation.pptx
+  [[ ! -d "${positional[0]}" ]] || return 1
+  ((${#positional[@]} == 1)) || [[ "${positional[1],,}" == *.pptx ]]
+}
+
+OPTS=(-Djava.awt.headless=true)
+if [[ "$MAIN" == *PresentationCreator2 ]] && single_deck_pc2 "$@"; then
+  # одна колода живёт секунды: C2 не успевает окупиться, а векторное ядро Resampler без C2
+  # не включается — модуль не подключаем
+  OPTS+=(-XX:TieredStopAtLevel=1)
+else
+  # пакеты, pc и замеры: полный JIT и Vector API для Resampler (без модуля — скалярный путь)
+  OPTS+=(--add-modules jdk.incubator.vector)
+fi
+if [[ -f "$JSA" && "${PC_NO_CDS:-0}" != "1" ]]; then
+  OPTS+=(-XX:SharedArchiveFile="$JSA" -Xshare:auto)
+fi
+
+exec "$JAVA" "${OPTS[@]}" ${JAVA_OPTS:-} -cp "$JAR" "$MAIN" "$@"
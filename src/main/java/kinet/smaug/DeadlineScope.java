@@ -0,0 +1,86 @@
+package kinet.smaug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Группа подзадач с общим дедлайном — замена {@code StructuredTaskScope},
+ * который в Java 21 ещё preview.
+ * <p>
+ * Подзадачи запускаются через {@link #fork}, {@link #joinUntilDeadline()} ждёт их
+ * не дольше дедлайна, а всё незавершённое отменяется (с прерыванием) — и там же,
+ * и при выходе из try-with-resources. Так ни одна подзадача не переживает группу.
+ */
+final class DeadlineScope<T> implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final long deadlineNanos;
+    private final List<Future<T>> forks = new ArrayList<>();
+    private final List<Boolean> late = new ArrayList<>();
+
+    DeadlineScope(ExecutorService executor, long deadlineNanos) {
+        this.executor = executor;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /** Момент через {@code millis} от текущего, в шкале {@link System#nanoTime()}. */
+    static long deadlineIn(long millis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** Остаток до дедлайна в миллисекундах (0, если уже прошёл). */
+    static long remainingMillis(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    long deadlineNanos() {
+        return deadlineNanos;
+    }
+
+    Future<T> fork(Callable<T> task) {
+        Future<T> f = executor.submit(task);
+        forks.add(f);
+        return f;
+    }
+
+    /**
+     * Результаты в порядке {@link #fork}; для подзадач, которые упали или не успели
+     * к дедлайну (они отменяются, см. {@link #late(int)}), — null.
+     */
+    List<T> joinUntilDeadline() throws InterruptedException {
+        List<T> out = new ArrayList<>(forks.size());
+        late.clear();
+        for (Future<T> f : forks) {
+            boolean timedOut = false;
+            T result = null;
+            try {
+                result = f.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | CancellationException e) {
+                f.cancel(true);
+                timedOut = true;
+            } catch (ExecutionException e) {
+                // подзадача сама сообщает о своей ошибке
+            }
+            out.add(result);
+            late.add(timedOut);
+        }
+        return out;
+    }
+
+    /** Подзадача {@code i} не успела к дедлайну (после {@link #joinUntilDeadline()}). */
+    boolean late(int i) {
+        return late.get(i);
+    }
+
+    @Override
+    public void close() {
+        for (Future<T> f : forks) f.cancel(true);
+    }
+}
@@ -0,0 +1,125 @@
+package kinet.smaug;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Планировщик пакетной сборки колод.
+ * <p>
+ * Задачи запускаются от самых дорогих к дешёвым (LPT — уменьшает общее время
+ * пакета), но новая колода не стартует, пока оценка занятой кучи плюс её пик
+ * не влезает в бюджет. Если голова очереди не влезает, берётся следующая по
+ * стоимости, которая влезает. Задача, которая одна больше бюджета, запускается,
+ * когда больше ничего не выполняется.
+ */
+final class DeckScheduler<T> {
+
+    static final class Job<T> {
+        final T item;
+        final String name;
+        final long cost;       // относительная стоимость (для порядка)
+        final long heapBytes;  // оценка пика кучи
+
+        Job(T item, String name, long cost, long heapBytes) {
+            this.item = item;
+            this.name = name;
+            this.cost = cost;
+            this.heapBytes = heapBytes;
+        }
+    }
+
+    private final int workers;
+    private final long heapBudget;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Job<T>> pending = new ArrayList<>();
+    private long heapInUse;
+    private int running;
+
+    DeckScheduler(int workers, long heapBudgetBytes) {
+        this.workers = Math.max(1, workers);
+        this.heapBudget = Math.max(1, heapBudgetBytes);
+    }
+
+    /** Выполняет все задачи и возвращает управление, когда они закончились. */
+    void run(List<Job<T>> jobs, Consumer<Job<T>> action) throws InterruptedException {
+        lock.lock();
+        try {
+            pending.addAll(jobs);
+            pending.sort(Comparator.comparingLong((Job<T> j) -> j.cost).reversed());
+        } finally {
+            lock.unlock();
+        }
+
+        List<Thread> threads = new ArrayList<>(workers);
+        for (int i = 0; i < Math.min(workers, jobs.size()); i++) {
+            Thread t = new Thread(() -> workLoop(action), "deck-worker-" + i);
+            t.start();
+            threads.add(t);
+        }
+        try {
+            for (Thread t : threads) t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : threads) t.interrupt();
+            throw e;
+        }
+    }
+
+    private void workLoop(Consumer<Job<T>> action) {
+        while (true) {
+            Job<T> job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) return;
+            try {
+                action.accept(job);
+            } catch (RuntimeException e) {
+                System.err.println("Ошибка в задаче " + job.name + ": " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                release(job);
+            }
+        }
+    }
+
+    // null — задач больше нет
+    private Job<T> take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (pending.isEmpty()) return null;
+                for (int i = 0; i < pending.size(); i++) {
+                    Job<T> j = pending.get(i);
+                    if (running == 0 || heapInUse + j.heapBytes <= heapBudget) {
+                        pending.remove(i);
+                        heapInUse += j.heapBytes;
+                        running++;
+                        return j;
+                    }
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Job<T> job) {
+        lock.lock();
+        try {
+            heapInUse -= job.heapBytes;
+            running--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
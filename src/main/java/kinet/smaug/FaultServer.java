@@ -0,0 +1,280 @@
+package kinet.smaug;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Локальный HTTP-стаб с внедрением сбоев — для проверки и замеров загрузчика
+ * картинок (предохранитель по хостам, Retry-After, ретраи, кэш) без внешней сети.
+ * <p>
+ * Отдаёт файлы из каталога. Сбой для конкретного запроса задаётся префиксом пути:
+ * <pre>
+ *   /status/503/i1.png   — ответить кодом 503 (для 429/503 — с Retry-After, если задан)
+ *   /status/429/2/i1.png — кодом 429 только на первые 2 запроса к пути, дальше отдать файл
+ *   /hang/i1.png         — не отвечать (клиент упрётся в таймаут чтения)
+ *   /drop/i1.png         — закрыть соединение без ответа
+ *   /slow/800/i1.png     — ответить через 800 мс
+ *   /truncate/i1.png     — объявить полную длину, отдать половину и закрыть
+ *   /html/i1.png         — 200 с text/html (страница-заглушка вместо картинки)
+ *   /big/12/i1.png       — 200 с image/png на 12 МБ (больше лимита загрузчика)
+ *   /nohead/i1.png       — на HEAD 405, на GET как обычно (проверка ссылок с откатом на GET)
+ *   /headstatus/404/i1.png — на HEAD код 404, на GET как обычно (HEAD-маршрут не зарегистрирован)
+ * </pre>
+ * Для всех остальных запросов — задержка с разбросом и случайные сбои
+ * с заданными долями; выбор сбоя зависит только от seed, пути и номера
+ * запроса к нему, поэтому повторный прогон видит те же сбои. Сервер можно запустить отдельно или встроить
+ * ({@link #start(int)}, порт 0 — любой свободный).
+ * <pre>
+ *   java -cp ... kinet.smaug.FaultServer &lt;dir&gt; [--port 8766] [--error-rate 0.3]
+ *        [--error-status 503] [--retry-after 2] [--latency-ms 0] [--jitter-ms 0]
+ *        [--truncate-rate 0] [--html-rate 0] [--seed 1]
+ * </pre>
+ */
+public final class FaultServer {
+
+    private static final long HANG_MS = 10 * 60 * 1000;
+    private static final int BIG_CHUNK = 64 * 1024;
+
+    /** Доли и параметры случайных сбоев. */
+    static final class Faults {
+        double errorRate;
+        int errorStatus = 503;
+        int retryAfterSec = -1;     // < 0 — без заголовка
+        long latencyMs;
+        long jitterMs;              // к задержке добавляется равномерно 0..jitter
+        double truncateRate;
+        double htmlRate;
+        long seed = 1;              // случайные сбои воспроизводимы при том же seed
+    }
+
+    private final Path root;
+    private final Faults faults;
+    private final Map<Integer, AtomicLong> byStatus = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    // номер запроса к каждому пути: вместе с seed однозначно задаёт его сбои
+    private final Map<String, AtomicLong> attempts = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    FaultServer(Path root, Faults faults) {
+        this.root = root.toAbsolutePath().normalize();
+        this.faults = faults;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Использование: FaultServer <dir> [--port N] [--error-rate P] [--error-status S] [--retry-after SEC]"
+                    + " [--latency-ms MS] [--jitter-ms MS] [--truncate-rate P] [--html-rate P] [--seed N]");
+            System.exit(2);
+        }
+        int port = 8766;
+        Faults f = new Faults();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[i + 1]);
+                case "--error-rate" -> f.errorRate = Double.parseDouble(args[i + 1]);
+                case "--error-status" -> f.errorStatus = Integer.parseInt(args[i + 1]);
+                case "--retry-after" -> f.retryAfterSec = Integer.parseInt(args[i + 1]);
+                case "--latency-ms" -> f.latencyMs = Long.parseLong(args[i + 1]);
+                case "--jitter-ms" -> f.jitterMs = Long.parseLong(args[i + 1]);
+                case "--truncate-rate" -> f.truncateRate = Double.parseDouble(args[i + 1]);
+                case "--html-rate" -> f.htmlRate = Double.parseDouble(args[i + 1]);
+                case "--seed" -> f.seed = Long.parseLong(args[i + 1]);
+                default -> {
+                    System.err.println("Неизвестный параметр: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        FaultServer fs = new FaultServer(Paths.get(args[0]), f);
+        int bound = fs.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Ответы по кодам: " + fs.stats())));
+        System.out.println("FaultServer: http://127.0.0.1:" + bound + "/ → " + fs.root);
+    }
+
+    /** Запускает сервер на 127.0.0.1; возвращает фактический порт. */
+    int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fault-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /** Ответы по кодам: 0 — зависшие, -1 — оборванные, -2 — усечённые тела. */
+    Map<Integer, Long> stats() {
+        Map<Integer, Long> out = new TreeMap<>();
+        byStatus.forEach((k, v) -> out.put(k, v.get()));
+        return out;
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long bytesSent() {
+        return bytesSent.get();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            requests.incrementAndGet();
+            String path = ex.getRequestURI().getPath();
+            String[] parts = path.split("/");
+            long attempt = attempts.computeIfAbsent(path, k -> new AtomicLong()).incrementAndGet();
+            SplittableRandom rnd = new SplittableRandom(faults.seed * 0x9E3779B97F4A7C15L + path.hashCode() * 31L + attempt);
+            long delay = faults.latencyMs + (faults.jitterMs > 0 ? rnd.nextLong(faults.jitterMs + 1) : 0);
+            if (delay > 0) sleep(delay);
+
+            if (path.startsWith("/hang/")) {
+                count(0);
+                sleep(HANG_MS);
+                return;
+            }
+            if (path.startsWith("/drop/")) {
+                count(-1);
+                return; // закрываем обмен без заголовков ответа
+            }
+            if (path.startsWith("/status/") && parts.length >= 4) {
+                boolean limited = parts.length >= 5 && parts[3].chars().allMatch(Character::isDigit);
+                if (!limited || attempt <= Long.parseLong(parts[3])) {
+                    error(ex, Integer.parseInt(parts[2]));
+                    return;
+                }
+            }
+            if (path.startsWith("/nohead/") && "HEAD".equals(ex.getRequestMethod())) {
+                error(ex, 405);
+                return;
+            }
+            if (path.startsWith("/headstatus/") && parts.length >= 4 && "HEAD".equals(ex.getRequestMethod())) {
+                error(ex, Integer.parseInt(parts[2]));
+                return;
+            }
+            if (path.startsWith("/slow/") && parts.length >= 4) {
+                sleep(Long.parseLong(parts[2]));
+            }
+            if (path.startsWith("/big/") && parts.length >= 4) {
+                sendBig(ex, Long.parseLong(parts[2]) * 1024 * 1024);
+                return;
+            }
+            if (path.startsWith("/html/") || (faults.htmlRate > 0 && rnd.nextDouble() < faults.htmlRate)) {
+                send(ex, 200, "<html><body>Not an image</body></html>".getBytes(StandardCharsets.UTF_8), "text/html; charset=utf-8");
+                return;
+            }
+            if (faults.errorRate > 0 && rnd.nextDouble() < faults.errorRate) {
+                error(ex, faults.errorStatus);
+                return;
+            }
+
+            Path file = root.resolve(parts[parts.length - 1]).normalize();
+            if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+                send(ex, 404, new byte[0], "text/plain");
+                return;
+            }
+            byte[] body = Files.readAllBytes(file);
+            if (path.startsWith("/truncate/") || (faults.truncateRate > 0 && rnd.nextDouble() < faults.truncateRate)) {
+                sendTruncated(ex, body, contentType(file));
+                return;
+            }
+            send(ex, 200, body, contentType(file));
+        }
+    }
+
+    private void error(HttpExchange ex, int status) throws IOException {
+        if ((status == 429 || status == 503) && faults.retryAfterSec >= 0) {
+            ex.getResponseHeaders().add("Retry-After", Integer.toString(faults.retryAfterSec));
+        }
+        send(ex, status, ("fault " + status).getBytes(), "text/plain");
+    }
+
+    private void send(HttpExchange ex, int status, byte[] body, String contentType) throws IOException {
+        count(status);
+        ex.getResponseHeaders().add("Content-Type", contentType);
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.sendResponseHeaders(status, -1);   // только заголовки: тело на HEAD сервер не пропустит
+            return;
+        }
+        ex.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+            bytesSent.addAndGet(body.length);
+        }
+    }
+
+    // заголовок обещает всё тело, приходит половина, потом обрыв
+    private void sendTruncated(HttpExchange ex, byte[] body, String contentType) throws IOException {
+        count(-2);
+        ex.getResponseHeaders().add("Content-Type", contentType);
+        ex.sendResponseHeaders(200, body.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(body, 0, body.length / 2);
+        os.flush();
+        bytesSent.addAndGet(body.length / 2);
+        // close() обмена увидит недописанную длину и оборвёт соединение
+    }
+
+    // поток без размера (chunked), пока клиент не перестанет читать
+    private void sendBig(HttpExchange ex, long size) throws IOException {
+        count(200);
+        ex.getResponseHeaders().add("Content-Type", "image/png");
+        ex.sendResponseHeaders(200, 0);
+        byte[] chunk = new byte[BIG_CHUNK];
+        try (OutputStream os = ex.getResponseBody()) {
+            for (long sent = 0; sent < size; sent += chunk.length) {
+                os.write(chunk, 0, (int) Math.min(chunk.length, size - sent));
+                bytesSent.addAndGet(Math.min(chunk.length, size - sent));
+            }
+        } catch (IOException clientGone) {
+            // загрузчик бросил чтение на лимите — это и проверяем
+        }
+    }
+    private void count(int status) {
+        byStatus.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static String contentType(Path file) {
+        String n = file.getFileName().toString().toLowerCase();
+        if (n.endsWith(".png")) return "image/png";
+        if (n.endsWith(".jpg") || n.endsWith(".jpeg")) return "image/jpeg";
+        if (n.endsWith(".gif")) return "image/gif";
+        if (n.endsWith(".webp")) return "image/webp";
+        return "application/octet-stream";
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package kinet.smaug;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+/**
+ * Сквозной замер пакетной сборки {@link PresentationCreator} на синтетических данных.
+ * <p>
+ * Создаёт {@code N} папок {@code data/topic-NNN/} с {@code text.txt} из {@code M}
+ * блоков и {@code K} картинками {@code img_N.png}, прогоняет полную сборку с
+ * заданным параллелизмом и печатает: колод/с, слайдов/с, p50/p99 времени колоды,
+ * пик RSS (VmHWM) и кучи, объём выходных файлов. Итог дублируется строкой JSON.
+ * <p>
+ * Сборка идёт в дочернем процессе с теми же параметрами JVM: VmHWM — пик за всю
+ * жизнь процесса, и генерация картинок в него попадать не должна. После прогрева
+ * пик сбрасывается ({@code /proc/self/clear_refs}); если ядро этого не даёт,
+ * в отчёте так и написано — пик процесса вместе с прогревом.
+ * <pre>
+ *   java -cp ... kinet.smaug.GenerationBenchmark [--decks 8] [--slides 20] [--images 10]
+ *        [--image-size 1600x900] [--jobs N] [--warmup 1] [--dir DIR] [--keep]
+ * </pre>
+ * Прогрев ({@code --warmup}) собирает те же данные и в итог не входит.
+ */
+public final class GenerationBenchmark {
+
+    private int decks = 8;
+    private int slides = 20;
+    private int images = 10;
+    private int imageW = 1600;
+    private int imageH = 900;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private int warmup = 1;
+    private Path dir;
+    private boolean keep;
+    private Path batchData;     // не null — это дочерний процесс замера
+    private Path batchOut;
+
+    private GenerationBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        GenerationBenchmark b = new GenerationBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "--decks" -> b.decks = Math.max(1, Integer.parseInt(args[++i]));
+                case "--slides" -> b.slides = Math.max(1, Integer.parseInt(args[++i]));
+                case "--images" -> b.images = Math.max(0, Integer.parseInt(args[++i]));
+                case "--image-size" -> {
+                    String[] d = args[++i].toLowerCase(Locale.ROOT).split("x");
+                    b.imageW = Integer.parseInt(d[0]);
+                    b.imageH = Integer.parseInt(d[1]);
+                }
+                case "--jobs" -> b.jobs = Math.max(1, Integer.parseInt(args[++i]));
+                case "--warmup" -> b.warmup = Math.max(0, Integer.parseInt(args[++i]));
+                case "--dir" -> b.dir = Paths.get(args[++i]);
+                case "--keep" -> b.keep = true;
+                case "--batch" -> {
+                    b.batchData = Paths.get(args[++i]);
+                    b.batchOut = Paths.get(args[++i]);
+                }
+                default -> {
+                    System.err.println("Неизвестный параметр: " + a);
+                    System.exit(2);
+                }
+            }
+        }
+        if (b.batchData != null) {
+            b.measure(b.batchData, b.batchOut);
+        } else {
+            b.run();
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        Path root = dir != null ? Files.createDirectories(dir) : Files.createTempDirectory("pc-bench");
+        Path data = root.resolve("data");
+        Path out = root.resolve("out");
+        try {
+            long t0 = System.nanoTime();
+            synthesize(data);
+            System.out.printf(Locale.ROOT, "Данные: %d папок × %d блоков × %d картинок %dx%d → %s (%.1f с)%n",
+                    decks, slides, images, imageW, imageH, data, (System.nanoTime() - t0) / 1e9);
+
+            int exit = measureInChild(data, out);
+            if (exit != 0) throw new IOException("Процесс замера завершился с кодом " + exit);
+        } finally {
+            if (!keep) deleteTree(root);
+        }
+    }
+
+    // тот же main с --batch: параметры JVM и classpath — как у этого процесса
+    private int measureInChild(Path data, Path out) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.addAll(List.of("-cp", System.getProperty("java.class.path"), GenerationBenchmark.class.getName(),
+                "--jobs", Integer.toString(jobs), "--warmup", Integer.toString(warmup),
+                "--batch", data.toString(), out.toString()));
+        return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+    }
+
+    // дочерний процесс: прогрев, сброс пиков, замер
+    private void measure(Path data, Path out) throws IOException {
+        String[] args = {"--data", data.toString(), "--out", out.toString(), "--jobs", Integer.toString(jobs)};
+        for (int i = 0; i < warmup; i++) {
+            new PresentationCreator(PresentationCreator.Options.parse(args)).run();
+            deleteTree(out);
+        }
+
+        ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+        boolean rssReset = resetRssPeak();
+        PresentationCreator pc = new PresentationCreator(PresentationCreator.Options.parse(args));
+        long start = System.nanoTime();
+        pc.run();
+        double wall = (System.nanoTime() - start) / 1e9;
+        report(pc.deckLatencies(), wall, out, rssReset);
+    }
+
+    // ========== СИНТЕТИЧЕСКИЕ ДАННЫЕ ==========
+    private void synthesize(Path data) throws IOException {
+        // картинки одни на все папки: генерируем K штук и копируем
+        Path proto = Files.createDirectories(data.resolveSibling("proto"));
+        Random rnd = new Random(42);
+        for (int k = 1; k <= images; k++) {
+            ImageIO.write(image(k, rnd), "png", proto.resolve("img_" + k + ".png").toFile());
+        }
+        for (int d = 1; d <= decks; d++) {
+            Path folder = Files.createDirectories(data.resolve(String.format("topic-%03d", d)));
+            Files.writeString(folder.resolve("text.txt"), text(d, rnd), StandardCharsets.UTF_8);
+            for (int k = 1; k <= images; k++) {
+                Files.copy(proto.resolve("img_" + k + ".png"), folder.resolve("img_" + k + ".png"),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        deleteTree(proto);
+    }
+
+    // блоки через "//": заголовок и 3–6 пунктов, изредка ссылка (уходит в «Источники»)
+    private String text(int deck, Random rnd) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 1; s <= slides; s++) {
+            if (s > 1) sb.append("\n//\n");
+            sb.append("# Тема ").append(deck).append(": раздел ").append(s).append('\n');
+            int bullets = 3 + rnd.nextInt(4);
+            for (int b = 0; b < bullets; b++) {
+                sb.append("- ");
+                int words = 6 + rnd.nextInt(14);
+                for (int w = 0; w < words; w++) sb.append(w == 0 ? "" : " ").append(WORDS[rnd.nextInt(WORDS.length)]);
+                sb.append('\n');
+            }
+            if (s % 5 == 0) sb.append("https://example.org/topic-").append(deck).append("/").append(s).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // градиент + фигуры + шум: PNG примерно как у фотографии, а не сплошной цвет
+    private BufferedImage image(int k, Random rnd) {
+        BufferedImage img = new BufferedImage(imageW, imageH, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(rnd.nextInt(0xffffff)), imageW, imageH, new Color(rnd.nextInt(0xffffff))));
+        g.fillRect(0, 0, imageW, imageH);
+        for (int i = 0; i < 40; i++) {
+            g.setColor(new Color(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256), 120));
+            int w = rnd.nextInt(imageW / 3) + 10, h = rnd.nextInt(imageH / 3) + 10;
+            g.fillOval(rnd.nextInt(imageW), rnd.nextInt(imageH), w, h);
+        }
+        g.setColor(Color.WHITE);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(12, imageH / 8)));
+        g.drawString("img_" + k, imageW / 10, imageH / 2);
+        g.dispose();
+        for (int i = 0; i < imageW * imageH / 8; i++) {
+            int x = rnd.nextInt(imageW), y = rnd.nextInt(imageH);
+            img.setRGB(x, y, img.getRGB(x, y) ^ (rnd.nextInt(0x0f0f0f)));
+        }
+        return img;
+    }
+
+    // ========== ОТЧЁТ ==========
+    // rssReset — VmHWM сброшен перед замером; иначе это пик всего процесса, с прогревом
+    private void report(List<Long> latencies, double wall, Path out, boolean rssReset) throws IOException {
+        long outBytes = 0;
+        int slideCount = 0, deckCount = 0;
+        try (Stream<Path> files = Files.list(out)) {
+            for (Path p : files.filter(f -> f.toString().endsWith(".pptx")).toList()) {
+                deckCount++;
+                outBytes += Files.size(p);
+                try (ZipFile zip = new ZipFile(p.toFile())) {
+                    slideCount += (int) zip.stream().filter(e -> e.getName().matches("ppt/slides/slide\\d+\\.xml")).count();
+                }
+            }
+        }
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) heapPeak += pool.getPeakUsage().getUsed();
+        }
+        long rssPeak = vmHwmBytes();
+
+        System.out.println("========== ИТОГ ==========");
+        System.out.printf(Locale.ROOT, "колод: %d, слайдов: %d, потоков: %d, время: %.2f с%n", deckCount, slideCount, jobs, wall);
+        System.out.printf(Locale.ROOT, "колод/с: %.2f, слайдов/с: %.1f%n", deckCount / wall, slideCount / wall);
+        System.out.printf(Locale.ROOT, "колода p50: %d мс, p99: %d мс, макс: %d мс%n",
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)), millis(percentile(sorted, 1.0)));
+        System.out.printf(Locale.ROOT, "%s: %s, пик кучи: %s, выход: %s%n",
+                rssReset ? "пик RSS замера" : "пик RSS процесса (с прогревом)",
+                rssPeak < 0 ? "н/д" : mb(rssPeak), mb(heapPeak), mb(outBytes));
+
+        JsonWriter json = new JsonWriter().beginObject()
+                .field("decks", deckCount).field("slides", slideCount).field("jobs", jobs)
+                .field("wallSeconds", wall)
+                .field("decksPerSecond", deckCount / wall).field("slidesPerSecond", slideCount / wall)
+                .field("deckP50Millis", millis(percentile(sorted, 0.50)))
+                .field("deckP99Millis", millis(percentile(sorted, 0.99)))
+                .field("peakRssBytes", rssPeak).field("peakRssScope", rssReset ? "batch" : "process")
+                .field("peakHeapBytes", heapPeak).field("outputBytes", outBytes)
+                .endObject();
+        System.out.println(json.toString().replaceAll("\\s*\\n\\s*", " "));
+    }
+
+    // ближайший ранг: p99 из 8 колод — самая долгая
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int idx = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, idx)));
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String mb(long bytes) {
+        return String.format(Locale.ROOT, "%.1f МБ", bytes / (1024.0 * 1024.0));
+    }
+
+    // пик резидентной памяти процесса (Linux); -1 — недоступно
+    private static long vmHwmBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D+", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignore) {
+            // не Linux
+        }
+        return -1;
+    }
+
+    // VmHWM := текущий RSS (Linux 4.0+); false — не Linux или запись запрещена
+    private static boolean resetRssPeak() {
+        try {
+            Files.writeString(Paths.get("/proc/self/clear_refs"), "5");
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+
+    private static final String[] WORDS = {
+            "данные", "система", "модель", "анализ", "процесс", "результат", "метод", "история",
+            "развитие", "структура", "управление", "технология", "исследование", "практика",
+            "значение", "пример", "условие", "решение", "подход", "оценка", "контекст", "источник"
+    };
+}
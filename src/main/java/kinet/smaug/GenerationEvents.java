@@ -0,0 +1,169 @@
+package kinet.smaug;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * События Java Flight Recorder для этапов генерации — чтобы в JDK Mission Control
+ * медленные слайды связывались с колодой, слайдом и картинкой, а не только
+ * с безымянными кадрами POI и ImageIO.
+ * <p>
+ * Без записи JFR {@code commit()} ничего не делает, а строковые поля
+ * заполняются только после {@code shouldCommit()}. Запись:
+ * <pre>
+ *   JAVA_OPTS=-XX:StartFlightRecording=filename=gen.jfr bin/presentation-creator.sh pc2 ...
+ *   jfr print --categories Smaug gen.jfr
+ * </pre>
+ */
+final class GenerationEvents {
+
+    private GenerationEvents() {
+    }
+
+    @Name("kinet.smaug.Deck")
+    @Label("Сборка колоды")
+    @Category({"Smaug", "Генерация"})
+    @StackTrace(false)
+    static final class Deck extends Event {
+        @Label("Генератор")
+        String generator;
+        @Label("Вход")
+        String input;
+        @Label("Выход")
+        String output;
+        @Label("Слайдов")
+        int slides;
+        @Label("Успешно")
+        boolean ok;
+        @Label("Частей-картинок")
+        int pictureParts;
+        @Label("Повторов картинок")
+        @Description("Слайды, получившие уже добавленную часть: тот же путь, файл или содержимое")
+        int pictureReuses;
+        @Label("Сэкономлено на картинках")
+        @DataAmount
+        long pictureBytesSaved;
+    }
+
+    @Name("kinet.smaug.Slide")
+    @Label("Сборка слайда")
+    @Description("PC2 — фаза подготовки (раскладка, картинки, шрифты); PC — создание слайда")
+    @Category({"Smaug", "Генерация"})
+    @StackTrace(false)
+    static final class Slide extends Event {
+        @Label("Генератор")
+        String generator;
+        @Label("Колода")
+        String deck;
+        @Label("Номер")
+        int index;
+        @Label("Заголовок")
+        String title;
+        @Label("Картинок")
+        int pictures;
+    }
+
+    @Name("kinet.smaug.ImageFetch")
+    @Label("Получение картинки")
+    @Description("Кэш или сеть; при промахе — вместе с ретраями")
+    @Category({"Smaug", "Картинки"})
+    @StackTrace(false)
+    static final class ImageFetch extends Event {
+        @Label("Хост")
+        String host;
+        @Label("Адрес")
+        String url;
+        @Label("Байт")
+        @DataAmount
+        long bytes;
+        @Label("Из кэша")
+        boolean cacheHit;
+        @Label("Получено")
+        boolean ok;
+    }
+
+    @Name("kinet.smaug.ImageDecode")
+    @Label("Декодирование картинки")
+    @Category({"Smaug", "Картинки"})
+    @StackTrace(false)
+    static final class ImageDecode extends Event {
+        @Label("Формат")
+        String format;
+        @Label("Байт")
+        @DataAmount
+        long bytes;
+        @Label("Ширина источника")
+        int sourceWidth;
+        @Label("Высота источника")
+        int sourceHeight;
+        @Label("Шаг прореживания")
+        int subsampling;
+        @Label("Ширина")
+        int width;
+        @Label("Высота")
+        int height;
+    }
+
+    @Name("kinet.smaug.ImageCropEncode")
+    @Label("Обрезка и PNG")
+    @Category({"Smaug", "Картинки"})
+    @StackTrace(false)
+    static final class ImageCropEncode extends Event {
+        @Label("Ширина источника")
+        int sourceWidth;
+        @Label("Высота источника")
+        int sourceHeight;
+        @Label("Ширина")
+        int width;
+        @Label("Высота")
+        int height;
+        @Label("Уменьшено")
+        boolean resampled;
+        @Label("PNG, байт")
+        @DataAmount
+        long pngBytes;
+    }
+
+    @Name("kinet.smaug.TextFit")
+    @Label("Подбор размера шрифта")
+    @Category({"Smaug", "Текст"})
+    @StackTrace(false)
+    static final class TextFit extends Event {
+        @Label("Символов")
+        int chars;
+        @Label("Ширина рамки, pt")
+        double boxWidth;
+        @Label("Высота рамки, pt")
+        double boxHeight;
+        @Label("Итераций")
+        int iterations;
+        @Label("Размер, pt")
+        double size;
+        @Label("Из памяти")
+        boolean memoHit;
+    }
+
+    @Name("kinet.smaug.PackageWrite")
+    @Label("Запись пакета")
+    @Category({"Smaug", "Генерация"})
+    @StackTrace(false)
+    static final class PackageWrite extends Event {
+        @Label("Частей")
+        int parts;
+        @Label("Из файлов")
+        int fileParts;
+        @Label("Из прежнего файла без распаковки")
+        int copiedParts;
+        @Label("Данных, байт")
+        @DataAmount
+        long rawBytes;
+        @Label("Записано, байт")
+        @DataAmount
+        long writtenBytes;
+    }
+}
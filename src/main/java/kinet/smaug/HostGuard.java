@@ -0,0 +1,282 @@
+package kinet.smaug;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Здоровье хостов для загрузки картинок.
+ * <p>
+ * На каждый хост — автомат CLOSED → OPEN → HALF_OPEN: после серии отказов
+ * (или 429 с {@code Retry-After}) хост «открывается», и запросы к нему сразу
+ * получают {@link HostUnavailableException}, не тратя таймауты. По истечении
+ * паузы пропускается один пробный запрос, остальные ждут его исхода: успех
+ * закрывает автомат, отказ открывает его снова на вдвое большее время.
+ * <p>
+ * Число одновременных запросов к хосту подстраивается по AIMD: быстрый успех
+ * прибавляет {@code 1/limit} (примерно +1 за «круг»), 429/5xx/таймаут или
+ * резкий рост задержки делят лимит.
+ */
+final class HostGuard {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Хост открыт: запрос не выполнялся. */
+    static final class HostUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long millisLeft;
+
+        HostUnavailableException(String host, long millisLeft) {
+            super("Хост временно недоступен: " + host + " (ещё " + millisLeft + " мс)");
+            this.millisLeft = millisLeft;
+        }
+
+        /** Сколько ещё хост будет открыт (после — пробный запрос). */
+        long millisLeft() {
+            return millisLeft;
+        }
+    }
+
+    private static final int FAILURE_THRESHOLD = 4;         // подряд отказов до OPEN
+    private static final long OPEN_BASE_MS = 5_000;
+    private static final long OPEN_MAX_MS = 120_000;
+
+    private static final double LIMIT_INITIAL = 4;
+    private static final double LIMIT_MIN = 1;
+    private static final double LIMIT_MAX = 16;
+    private static final double DECREASE_FACTOR = 0.5;      // на 429/5xx/таймаут
+    private static final double SLOW_DECREASE_FACTOR = 0.8; // на резкий рост задержки
+    private static final double SLOW_LATENCY_K = 3.0;       // «медленно» = в 3 раза хуже лучшей
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Разрешение на запрос к хосту. Ждёт свободного места в лимите или исхода
+     * пробного запроса (не дольше {@code maxWait}); у открытого хоста сразу
+     * бросает {@link HostUnavailableException} с оставшейся паузой.
+     */
+    Permit acquire(String host, Duration maxWait) throws IOException, InterruptedException {
+        return hosts.computeIfAbsent(host, Host::new).acquire(maxWait);
+    }
+
+    State state(String host) {
+        Host h = hosts.get(host);
+        return h == null ? State.CLOSED : h.state;
+    }
+
+    /** Строка для лога: состояние и лимит каждого хоста. */
+    String summary() {
+        StringBuilder sb = new StringBuilder();
+        hosts.values().forEach(h -> sb.append(String.format(Locale.ROOT, "%s: %s, лимит %.1f, задержка %.0f мс%n",
+                h.name, h.state, h.limit, h.latencyEwma)));
+        return sb.toString();
+    }
+
+    /** Пауза из {@code Retry-After} (секунды или HTTP-дата); -1 — нет/не разобрано. */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) return -1;
+        String v = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(v)) * 1000;
+        } catch (NumberFormatException ignore) {
+            // не число — пробуем дату
+        }
+        try {
+            ZonedDateTime at = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /** Исход одного запроса; ровно один из методов должен быть вызван. */
+    final class Permit {
+        private final Host host;
+        private final long startNanos = System.nanoTime();
+        private final boolean probe;
+        private boolean done;
+
+        private Permit(Host host, boolean probe) {
+            this.host = host;
+            this.probe = probe;
+        }
+
+        /** Успешный ответ (или окончательный 4xx — хост жив). */
+        void success() {
+            if (finish()) host.onSuccess(elapsedMs(), probe);
+        }
+
+        /** 429/503: хост просит притормозить; retryAfterMs < 0 — без подсказки. */
+        void throttled(long retryAfterMs) {
+            if (finish()) host.onThrottled(retryAfterMs, probe);
+        }
+
+        /** 5xx, таймаут, обрыв соединения. */
+        void failure() {
+            if (finish()) host.onFailure(probe);
+        }
+
+        /** Запрос снят нами (прерывание, свой дедлайн): место освобождается, хост не штрафуется. */
+        void cancel() {
+            if (finish()) host.onCancel(probe);
+        }
+
+        private long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        private boolean finish() {
+            if (done) return false;
+            done = true;
+            return true;
+        }
+    }
+
+    private final class Host {
+        final String name;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition slotFreed = lock.newCondition();
+
+        volatile State state = State.CLOSED;
+        volatile double limit = LIMIT_INITIAL;
+        volatile double latencyEwma;
+        double latencyBest = Double.MAX_VALUE;
+        int inFlight;
+        int consecutiveFailures;
+        long openUntilMs;
+        long openDurationMs = OPEN_BASE_MS;
+        boolean probeInFlight;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        Permit acquire(Duration maxWait) throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + maxWait.toNanos();
+            lock.lock();
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (state == State.OPEN) {
+                        if (now < openUntilMs) throw new HostUnavailableException(name, openUntilMs - now);
+                        state = State.HALF_OPEN;
+                    }
+                    if (state == State.HALF_OPEN && !probeInFlight) {
+                        probeInFlight = true;
+                        inFlight++;
+                        return new Permit(this, true);
+                    }
+                    // пока идёт пробный запрос, остальные ждут его исхода: успех закроет
+                    // автомат, отказ снова откроет его (и тогда — исключение выше)
+                    if (state == State.CLOSED && inFlight < Math.max(1, (int) limit)) {
+                        inFlight++;
+                        return new Permit(this, false);
+                    }
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        if (state == State.HALF_OPEN) throw new HostUnavailableException(name, 0);
+                        throw new IOException("Нет свободного места в лимите хоста " + name);
+                    }
+                    slotFreed.awaitNanos(left);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onSuccess(long latencyMs, boolean probe) {
+            lock.lock();
+            try {
+                release(probe);
+                consecutiveFailures = 0;
+                if (state != State.CLOSED) {
+                    state = State.CLOSED;
+                    openDurationMs = OPEN_BASE_MS;
+                }
+                latencyEwma = latencyEwma == 0 ? latencyMs : latencyEwma + EWMA_ALPHA * (latencyMs - latencyEwma);
+                latencyBest = Math.min(latencyBest, Math.max(1, latencyMs));
+                if (latencyMs > latencyBest * SLOW_LATENCY_K && latencyEwma > latencyBest * SLOW_LATENCY_K) {
+                    limit = Math.max(LIMIT_MIN, limit * SLOW_DECREASE_FACTOR);
+                } else {
+                    limit = Math.min(LIMIT_MAX, limit + 1.0 / limit);
+                }
+                slotFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onThrottled(long retryAfterMs, boolean probe) {
+            lock.lock();
+            try {
+                release(probe);
+                limit = Math.max(LIMIT_MIN, limit * DECREASE_FACTOR);
+                if (retryAfterMs > 0) {
+                    open(retryAfterMs);
+                } else {
+                    countFailure(probe);
+                }
+                slotFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void onFailure(boolean probe) {
+            lock.lock();
+            try {
+                release(probe);
+                limit = Math.max(LIMIT_MIN, limit * DECREASE_FACTOR);
+                countFailure(probe);
+                slotFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // лимит и счётчик отказов не трогаем; снятую пробу заменит следующий запрос
+        void onCancel(boolean probe) {
+            lock.lock();
+            try {
+                release(probe);
+                slotFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void countFailure(boolean probe) {
+            consecutiveFailures++;
+            if (probe) {
+                openDurationMs = Math.min(OPEN_MAX_MS, openDurationMs * 2);
+                open(openDurationMs);
+            } else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+                open(openDurationMs);
+            }
+        }
+
+        private void open(long ms) {
+            long until = System.currentTimeMillis() + ms;
+            if (state != State.OPEN) {
+                System.err.println("Хост " + name + " отключён на " + ms + " мс");
+            }
+            state = State.OPEN;
+            openUntilMs = Math.max(openUntilMs, until);
+        }
+
+        private void release(boolean probe) {
+            inFlight--;
+            if (probe) probeInFlight = false;
+        }
+    }
+}
@@ -0,0 +1,837 @@
+package kinet.smaug;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Кэш скачанных картинок, адресуемый по содержимому.
+ * <p>
+ * Данные лежат в {@code objects/<sha256(байты)>.bin}, а отдельный индекс
+ * {@code urls.log} (дописываемые строки «ключ URL → ключ содержимого») связывает
+ * с ними нормализованные адреса. Одна и та же картинка, пришедшая с разных CDN
+ * или с разными трекерами в query, хранится один раз и один раз обрабатывается.
+ * Старые файлы {@code <sha256(url)>.bin} переносятся в objects/ при первом обращении.
+ * <p>
+ * Каталог можно делить между процессами: запись данных идёт через уникальные
+ * временные файлы и атомарный rename, строки индекса дописываются под блокировкой
+ * файла, а скачивание одного адреса защищено блокировкой {@code locks/<ключ URL>.lock}
+ * (между процессами) и single-flight (между потоками). После взятия блокировки
+ * индекс перечитывается: чужой процесс мог уже скачать ту же картинку.
+ * <p>
+ * Поверх каталога можно положить упакованный кэш {@code pack/}: дописываемый
+ * {@code images.dat}, отсортированные {@code images.idx} (содержимое → смещение)
+ * и {@code urls.idx} (URL → содержимое), всё читается через mmap с бинарным
+ * поиском. Так тёплый кэш переносится на офлайн-узлы тремя файлами вместо
+ * десятков тысяч мелких.
+ */
+final class ImageCache {
+
+    static final String PACK_DIR = "pack";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String URL_LOG = "urls.log";
+    private static final String PACK_DATA = "images.dat";
+    private static final String PACK_OBJECTS = "images.idx";
+    private static final String PACK_URLS = "urls.idx";
+
+    private static final int KEY_BYTES = 32;
+    private static final int OBJECT_ENTRY = KEY_BYTES + 8 + 4;         // ключ, смещение, длина
+    private static final int URL_ENTRY = KEY_BYTES + KEY_BYTES;        // ключ URL, ключ содержимого
+    private static final byte[] DATA_MAGIC = "PCPACK1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC = "PCIDX2\n\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int INDEX_HEADER = INDEX_MAGIC.length + 4;    // + число записей
+
+    private static final String LOCKS_DIR = "locks";
+    private static final Duration LOCK_WAIT = Duration.ofMinutes(2);   // дольше любой загрузки с ретраями
+    private static final long LOCK_POLL_MS = 50;
+
+    // идентификаторы кликов и рассылок, которые не меняют картинку, но ломают ключ (плюс utm_*).
+    // Только однозначные: ref, src, v и подобные бывают у CDN частью адреса ресурса
+    private static final Set<String> TRACKING_PARAMS = Set.of(
+            "fbclid", "gclid", "yclid", "dclid", "msclkid", "mc_cid", "mc_eid", "_ga", "_gl", "igshid"
+    );
+
+    private final Path dir;
+    private final Path objects;
+    private volatile Pack pack;      // null — ещё не открывали
+    // ключ URL → ключ содержимого; дочитывается из urls.log с позиции urlLogRead
+    private final Map<String, String> urlIndex = new ConcurrentHashMap<>();
+    private long urlLogRead;
+    private volatile boolean urlLogLoaded;
+    // скачивания, идущие в этом процессе: ключ URL → результат
+    private final Map<String, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+    // блокировку файла нельзя взять дважды в одной JVM — сначала берём замок ключа в процессе;
+    // замок живёт, пока его кто-то держит или ждёт: чужие ключи друг друга не задерживают
+    private final Map<String, LocalLock> localLocks = new ConcurrentHashMap<>();
+    private volatile boolean dirReady;
+
+    /** Источник байтов при промахе (обычно сеть); null — не удалось. */
+    interface Fetcher {
+        byte[] fetch(String url) throws IOException, InterruptedException;
+    }
+
+    ImageCache(Path dir) {
+        this.dir = dir;
+        this.objects = dir.resolve(OBJECTS_DIR);
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    /**
+     * Ключ содержимого для адреса или null — промах.
+     * Ищет в индексе каталога, в pack и среди старых файлов (с переносом).
+     */
+    String lookup(String url) throws IOException, InterruptedException {
+        String urlKey = urlKey(url);
+        String key = indexed(urlKey);
+        if (key != null) return key;
+
+        if (!Files.isRegularFile(legacyFile(url))) return null;
+        KeyLock lock = lockKey(urlKey);
+        try {
+            catchUpUrlLog();
+            key = indexed(urlKey);
+            return key != null ? key : migrateLegacy(url, urlKey);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Ключ содержимого для адреса; при промахе байты берутся у {@code fetcher}
+     * ровно один раз на адрес: потоки этого процесса ждут общий результат,
+     * другие процессы — блокировку ключа, после которой находят его в индексе.
+     */
+    String getOrFetch(String url, Fetcher fetcher) throws IOException, InterruptedException {
+        String key = lookup(url);
+        if (key != null) return key;
+
+        String urlKey = urlKey(url);
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> prev = inflight.putIfAbsent(urlKey, mine);
+        if (prev != null) {
+            try {
+                return prev.get();
+            } catch (ExecutionException e) {
+                Throwable c = e.getCause();
+                if (c instanceof IOException io) throw io;
+                throw new IOException(c.getMessage(), c);
+            }
+        }
+        try {
+            String result;
+            KeyLock lock = lockKey(urlKey);
+            try {
+                catchUpUrlLog();
+                result = indexed(urlKey);
+                if (result == null) {
+                    byte[] fresh = fetcher.fetch(url);
+                    result = fresh == null ? null : store(urlKey, fresh);
+                }
+            } finally {
+                lock.close();
+            }
+            mine.complete(result);
+            return result;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(urlKey, mine);
+        }
+    }
+
+    /** Байты по ключу содержимого (pack, затем каталог); null — нет. */
+    byte[] read(String key) {
+        Pack p = pack();
+        if (p != null) {
+            byte[] data = p.get(key);
+            if (data != null) return data;
+        }
+        Path f = objectFile(key);
+        try {
+            byte[] data = Files.readAllBytes(f);
+            return data.length > 0 ? data : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Ошибка чтения кэша: " + f + " — " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Размер данных по ключу содержимого без чтения; -1 — нет. */
+    long size(String key) {
+        Pack p = pack();
+        if (p != null) {
+            long len = p.length(key);
+            if (len >= 0) return len;
+        }
+        try {
+            long len = Files.size(objectFile(key));
+            return len > 0 ? len : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Поток по данным (для чтения заголовков); null — нет. */
+    InputStream open(String key) throws IOException {
+        Pack p = pack();
+        if (p != null) {
+            InputStream in = p.stream(key);
+            if (in != null) return in;
+        }
+        Path f = objectFile(key);
+        return Files.isReadable(f) && Files.size(f) > 0 ? Files.newInputStream(f) : null;
+    }
+
+    // индекс каталога и pack, без старых файлов и без блокировок
+    private String indexed(String urlKey) {
+        if (!urlLogLoaded) catchUpUrlLog();
+        String key = urlIndex.get(urlKey);
+        Pack p = pack();
+        if (key != null && (hasObject(key) || (p != null && p.length(key) >= 0))) return key;
+        return p != null ? p.contentKey(urlKey) : null;
+    }
+
+    private String store(String urlKey, byte[] data) throws IOException {
+        String key = sha256Hex(data);
+        if (!hasObject(key)) writeObject(key, data);
+        bindUrl(urlKey, key);
+        return key;
+    }
+
+    private static String urlKey(String url) {
+        return sha256Hex(normalizeUrl(url));
+    }
+
+    // ========== НОРМАЛИЗАЦИЯ АДРЕСОВ ==========
+
+    /**
+     * Ключевая форма адреса: схема и хост в нижнем регистре, без порта по умолчанию,
+     * без фрагмента, {@code utm_*} и идентификаторов кликов, остальные параметры отсортированы.
+     * Cloudinary {@code f_auto} приводится к {@code f_jpg}, как это делает разбор входного файла.
+     * Скачивается всегда исходный адрес — нормализованный нужен только для индекса.
+     */
+    static String normalizeUrl(String url) {
+        String u = url.strip();
+        if (u.contains("cloudinary.com") && u.contains("f_auto")) u = u.replace("f_auto", "f_jpg");
+        URI uri;
+        try {
+            uri = new URI(u);
+        } catch (URISyntaxException e) {
+            return u;
+        }
+        if (uri.getScheme() == null || uri.getRawAuthority() == null) return u;
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        String host = uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : uri.getRawAuthority();
+        int port = uri.getPort();
+        boolean defaultPort = port == -1 || ("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443);
+
+        StringBuilder sb = new StringBuilder(u.length());
+        sb.append(scheme).append("://").append(host);
+        if (!defaultPort) sb.append(':').append(port);
+        String path = uri.getRawPath();
+        sb.append(path == null || path.isEmpty() ? "/" : path);
+
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            List<String> kept = new ArrayList<>();
+            for (String param : query.split("&")) {
+                if (param.isEmpty()) continue;
+                int eq = param.indexOf('=');
+                String name = (eq >= 0 ? param.substring(0, eq) : param).toLowerCase(Locale.ROOT);
+                if (name.startsWith("utm_") || TRACKING_PARAMS.contains(name)) continue;
+                kept.add(param);
+            }
+            kept.sort(null);
+            if (!kept.isEmpty()) sb.append('?').append(String.join("&", kept));
+        }
+        return sb.toString();
+    }
+
+    // ========== КАТАЛОГ ==========
+
+    private boolean hasObject(String key) {
+        return Files.isRegularFile(objectFile(key));
+    }
+
+    private Path objectFile(String key) {
+        return objects.resolve(key + ".bin");
+    }
+
+    // уникальное имя временного файла: параллельные писатели не портят друг другу данные,
+    // а одинаковое содержимое под одним ключом безопасно перезаписывается rename'ом
+    private void writeObject(String key, byte[] data) throws IOException {
+        ensureDir();
+        Path tmp = Files.createTempFile(objects, key + ".", ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                os.write(data);
+            }
+            moveIntoPlace(tmp, objectFile(key));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // строка дописывается под блокировкой файла: строки разных процессов не перемешиваются
+    private synchronized void bindUrl(String urlKey, String key) throws IOException {
+        if (key.equals(urlIndex.get(urlKey))) return;
+        ensureDir();
+        byte[] line = (urlKey + ' ' + key + '\n').getBytes(StandardCharsets.US_ASCII);
+        try (FileChannel ch = FileChannel.open(dir.resolve(URL_LOG), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+            FileLock lock = ch.lock();
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(line);
+                while (buf.hasRemaining()) ch.write(buf);
+            } finally {
+                lock.release();
+            }
+        }
+        urlIndex.put(urlKey, key);
+    }
+
+    // дочитывает строки, дописанные с прошлого раза (в том числе другими процессами)
+    private synchronized void catchUpUrlLog() {
+        Path log = dir.resolve(URL_LOG);
+        urlLogLoaded = true;
+        if (!Files.isRegularFile(log)) return;
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size <= urlLogRead) return;
+            ByteBuffer buf = ByteBuffer.allocate((int) (size - urlLogRead));
+            while (buf.hasRemaining() && ch.read(buf, urlLogRead + buf.position()) > 0) { }
+            urlLogRead += parseUrlLog(buf.array(), buf.position(), urlIndex);
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать индекс кэша: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> readUrlLog(Path log) {
+        Map<String, String> m = new HashMap<>();
+        if (!Files.isRegularFile(log)) return m;
+        try {
+            byte[] data = Files.readAllBytes(log);
+            parseUrlLog(data, data.length, m);
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать индекс кэша: " + e.getMessage());
+        }
+        return m;
+    }
+
+    // разбирает только целые строки и возвращает число прочитанных байт;
+    // последняя строка для ключа побеждает, битые строки пропускаются
+    private static int parseUrlLog(byte[] data, int len, Map<String, String> into) {
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            if (data[i] != '\n') continue;
+            String line = new String(data, start, i - start, StandardCharsets.US_ASCII);
+            if (line.length() == 129 && line.charAt(64) == ' ') into.put(line.substring(0, 64), line.substring(65));
+            start = i + 1;
+        }
+        return start;
+    }
+
+    // замок ключа в процессе; users — держащие и ждущие, под compute() карты
+    private static final class LocalLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+    }
+
+    /** Блокировка ключа: замок в процессе плюс блокировка файла между процессами. */
+    private final class KeyLock implements AutoCloseable {
+        private final String urlKey;
+        private final LocalLock local;
+        private final FileChannel channel;
+        private final FileLock fileLock;
+
+        KeyLock(String urlKey, LocalLock local, FileChannel channel, FileLock fileLock) {
+            this.urlKey = urlKey;
+            this.local = local;
+            this.channel = channel;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (fileLock != null) fileLock.release();
+                if (channel != null) channel.close();
+            } finally {
+                unlockLocal(urlKey, local);
+            }
+        }
+    }
+
+    private LocalLock lockLocal(String urlKey) throws InterruptedException {
+        LocalLock local = localLocks.compute(urlKey, (k, l) -> {
+            l = l != null ? l : new LocalLock();
+            l.users++;
+            return l;
+        });
+        try {
+            local.lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            release(urlKey, local);
+            throw e;
+        }
+        return local;
+    }
+
+    private void unlockLocal(String urlKey, LocalLock local) {
+        local.lock.unlock();
+        release(urlKey, local);
+    }
+
+    // последний ушедший убирает замок из карты
+    private void release(String urlKey, LocalLock local) {
+        localLocks.computeIfPresent(urlKey, (k, l) -> l == local && --l.users == 0 ? null : l);
+    }
+
+    // файлы блокировок не удаляются: удаление гоняется с чужим open+lock
+    private KeyLock lockKey(String urlKey) throws IOException, InterruptedException {
+        LocalLock local = lockLocal(urlKey);
+        FileChannel ch = null;
+        try {
+            Path lockDir = dir.resolve(LOCKS_DIR);
+            Files.createDirectories(lockDir);
+            ch = FileChannel.open(lockDir.resolve(urlKey + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            long deadline = System.nanoTime() + LOCK_WAIT.toNanos();
+            while (true) {
+                FileLock fl = ch.tryLock();
+                if (fl != null) return new KeyLock(urlKey, local, ch, fl);
+                if (System.nanoTime() > deadline) {
+                    // владелец завис: работаем без межпроцессной блокировки, rename всё равно атомарен
+                    System.err.println("Блокировка кэша не получена за " + LOCK_WAIT.toSeconds() + " с: " + urlKey);
+                    return new KeyLock(urlKey, local, ch, null);
+                }
+                Thread.sleep(LOCK_POLL_MS);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (ch != null) ch.close();
+            unlockLocal(urlKey, local);
+            throw e;
+        }
+    }
+
+    private Path legacyFile(String url) {
+        return dir.resolve(sha256Hex(url) + ".bin");
+    }
+
+    // старый формат: <sha256(исходный url)>.bin в корне каталога; вызывается под блокировкой ключа
+    private String migrateLegacy(String url, String urlKey) {
+        Path legacy = legacyFile(url);
+        if (!Files.isRegularFile(legacy)) return null;
+        try {
+            byte[] data = Files.readAllBytes(legacy);
+            if (data.length == 0) return null;
+            String key = sha256Hex(data);
+            if (!hasObject(key)) writeObject(key, data);
+            bindUrl(urlKey, key);
+            Files.deleteIfExists(legacy);
+            return key;
+        } catch (IOException e) {
+            System.err.println("Не удалось перенести старый файл кэша " + legacy + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // ========== УПАКОВКА ==========
+
+    /**
+     * Дописывает в pack объекты каталога, которых там ещё нет (включая старые
+     * файлы), и пересобирает оба индекса. Возвращает число добавленных объектов.
+     */
+    static int exportPack(Path cacheDir, Path packDir) throws IOException {
+        Files.createDirectories(packDir);
+        Map<ByteBuffer, long[]> entries = new HashMap<>();
+        Map<ByteBuffer, byte[]> urls = new HashMap<>();
+        try (Pack old = Pack.openIfExists(packDir)) {
+            if (old != null) {
+                old.forEachObject((k, off, len) -> entries.put(ByteBuffer.wrap(k), new long[]{off, len}));
+                old.forEachUrl((u, k) -> urls.put(ByteBuffer.wrap(u), k));
+            }
+        }
+        readUrlLog(cacheDir.resolve(URL_LOG)).forEach((u, k) -> urls.put(ByteBuffer.wrap(hexToBytes(u)), hexToBytes(k)));
+
+        List<Path> files = new ArrayList<>(listBins(cacheDir.resolve(OBJECTS_DIR)));
+        Set<Path> legacy = new HashSet<>(listBins(cacheDir));
+        files.addAll(legacy);
+
+        int added = 0;
+        try (FileChannel ch = FileChannel.open(packDir.resolve(PACK_DATA), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (ch.size() == 0) ch.write(ByteBuffer.wrap(DATA_MAGIC));
+            long pos = ch.size();
+            for (Path f : files) {
+                byte[] data = Files.readAllBytes(f);
+                if (data.length == 0) continue;
+                String name = f.getFileName().toString().substring(0, 64);
+                byte[] key = hexToBytes(sha256Hex(data));
+                // старый файл назван по URL: связываем этот URL-ключ с содержимым
+                if (legacy.contains(f)) urls.putIfAbsent(ByteBuffer.wrap(hexToBytes(name)), key);
+                if (entries.containsKey(ByteBuffer.wrap(key))) continue;
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                entries.put(ByteBuffer.wrap(key), new long[]{pos - data.length, data.length});
+                added++;
+            }
+            ch.force(true);
+        }
+
+        writeIndex(packDir.resolve(PACK_OBJECTS), entries, OBJECT_ENTRY, (buf, v) -> buf.putLong(v[0]).putInt((int) v[1]));
+        writeIndex(packDir.resolve(PACK_URLS), urls, URL_ENTRY, ByteBuffer::put);
+        return added;
+    }
+
+    /** Раскладывает pack в objects/ и дописывает его адреса в индекс каталога. */
+    static int importPack(Path packDir, Path cacheDir) throws IOException {
+        Path objectsDir = cacheDir.resolve(OBJECTS_DIR);
+        Files.createDirectories(objectsDir);
+        int[] written = {0};
+        try (Pack p = Pack.openIfExists(packDir)) {
+            if (p == null) throw new IOException("Нет упакованного кэша в " + packDir);
+            IOException[] failure = {null};
+            p.forEachObject((k, off, len) -> {
+                if (failure[0] != null) return;
+                String key = bytesToHex(k);
+                Path target = objectsDir.resolve(key + ".bin");
+                if (Files.exists(target)) return;
+                try {
+                    Path tmp = objectsDir.resolve(key + ".tmp");
+                    Files.write(tmp, p.get(key));
+                    moveIntoPlace(tmp, target);
+                    written[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+
+            Map<String, String> known = readUrlLog(cacheDir.resolve(URL_LOG));
+            StringBuilder lines = new StringBuilder();
+            p.forEachUrl((u, k) -> {
+                String urlKey = bytesToHex(u), key = bytesToHex(k);
+                if (!key.equals(known.get(urlKey))) lines.append(urlKey).append(' ').append(key).append('\n');
+            });
+            if (lines.length() > 0) {
+                Files.writeString(cacheDir.resolve(URL_LOG), lines, StandardCharsets.US_ASCII,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+            }
+        }
+        return written[0];
+    }
+
+    private static List<Path> listBins(Path d) throws IOException {
+        if (!Files.isDirectory(d)) return List.of();
+        try (Stream<Path> s = Files.list(d)) {
+            return s.filter(p -> p.getFileName().toString().matches("[0-9a-f]{64}\\.bin"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private interface ValueWriter<V> {
+        void put(ByteBuffer buf, V value);
+    }
+
+    private static <V> void writeIndex(Path file, Map<ByteBuffer, V> entries, int entrySize, ValueWriter<V> writer) throws IOException {
+        List<Map.Entry<ByteBuffer, V>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.getKey().array(), b.getKey().array()));
+
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_HEADER + sorted.size() * entrySize).order(ByteOrder.BIG_ENDIAN);
+        buf.put(INDEX_MAGIC).putInt(sorted.size());
+        for (Map.Entry<ByteBuffer, V> e : sorted) {
+            buf.put(e.getKey().array());
+            writer.put(buf, e.getValue());
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, buf.array());
+        moveIntoPlace(tmp, file);
+    }
+
+    // ========== ОТОБРАЖЁННЫЙ PACK ==========
+
+    private Pack pack() {
+        Pack p = pack;
+        if (p != null) return p == Pack.NONE ? null : p;
+        synchronized (this) {
+            if (pack == null) {
+                try {
+                    Pack opened = Pack.openIfExists(dir.resolve(PACK_DIR));
+                    pack = opened != null ? opened : Pack.NONE;
+                } catch (IOException e) {
+                    System.err.println("Упакованный кэш не открылся: " + e.getMessage());
+                    pack = Pack.NONE;
+                }
+            }
+            return pack == Pack.NONE ? null : pack;
+        }
+    }
+
+    /** Отсортированный индекс фиксированной ширины: 32 байта ключа + значение. */
+    private static final class MappedIndex {
+        final MappedByteBuffer buf;
+        final int count;
+        final int entrySize;
+
+        MappedIndex(MappedByteBuffer buf, int count, int entrySize) {
+            this.buf = buf;
+            this.count = count;
+            this.entrySize = entrySize;
+        }
+
+        static MappedIndex open(Path file, int entrySize) throws IOException {
+            MappedByteBuffer buf;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            if (buf.capacity() < INDEX_HEADER) throw new IOException("Индекс обрезан: " + file);
+            buf.get(0, magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC)) {
+                throw new IOException("Неверный формат индекса (пересоберите --cache-export): " + file);
+            }
+            int count = buf.getInt(INDEX_MAGIC.length);
+            if ((long) INDEX_HEADER + (long) count * entrySize > buf.capacity()) {
+                throw new IOException("Индекс обрезан: " + file);
+            }
+            return new MappedIndex(buf, count, entrySize);
+        }
+
+        int at(int i) {
+            return INDEX_HEADER + i * entrySize;
+        }
+
+        // бинарный поиск: ключ сравнивается как четыре беззнаковых long (big-endian)
+        int find(byte[] key) {
+            ByteBuffer k = ByteBuffer.wrap(key);
+            int lo = 0, hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int at = at(mid);
+                int cmp = 0;
+                for (int w = 0; w < 4 && cmp == 0; w++) {
+                    cmp = Long.compareUnsigned(buf.getLong(at + w * 8), k.getLong(w * 8));
+                }
+                if (cmp < 0) lo = mid + 1;
+                else if (cmp > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        byte[] bytes(int at, int len) {
+            byte[] out = new byte[len];
+            buf.get(at, out);
+            return out;
+        }
+    }
+
+    private static final class Pack implements AutoCloseable {
+        static final Pack NONE = new Pack();
+        private static final long SEGMENT = 1L << 30;
+
+        private final MappedIndex objects;
+        private final MappedIndex urls;             // null — в pack нет адресов
+        private final MappedByteBuffer[] segments;  // данные по 1 ГБ
+
+        interface ObjectVisitor {
+            void visit(byte[] key, long offset, int length);
+        }
+
+        interface UrlVisitor {
+            void visit(byte[] urlKey, byte[] key);
+        }
+
+        private Pack() {
+            objects = null;
+            urls = null;
+            segments = new MappedByteBuffer[0];
+        }
+
+        private Pack(MappedIndex objects, MappedIndex urls, MappedByteBuffer[] segments) {
+            this.objects = objects;
+            this.urls = urls;
+            this.segments = segments;
+        }
+
+        static Pack openIfExists(Path packDir) throws IOException {
+            Path idx = packDir.resolve(PACK_OBJECTS);
+            Path data = packDir.resolve(PACK_DATA);
+            if (!Files.isRegularFile(idx) || !Files.isRegularFile(data)) return null;
+
+            MappedIndex objects = MappedIndex.open(idx, OBJECT_ENTRY);
+            Path urlIdx = packDir.resolve(PACK_URLS);
+            MappedIndex urls = Files.isRegularFile(urlIdx) ? MappedIndex.open(urlIdx, URL_ENTRY) : null;
+
+            MappedByteBuffer[] segments;
+            try (FileChannel ch = FileChannel.open(data, StandardOpenOption.READ)) {
+                long size = ch.size();
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long from = i * SEGMENT;
+                    segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT, size - from));
+                }
+            }
+            return new Pack(objects, urls, segments);
+        }
+
+        String contentKey(String urlKey) {
+            if (urls == null) return null;
+            int i = urls.find(hexToBytes(urlKey));
+            return i < 0 ? null : bytesToHex(urls.bytes(urls.at(i) + KEY_BYTES, KEY_BYTES));
+        }
+
+        byte[] get(String key) {
+            int i = objects.find(hexToBytes(key));
+            if (i < 0) return null;
+            int at = objects.at(i);
+            return read(objects.buf.getLong(at + KEY_BYTES), objects.buf.getInt(at + KEY_BYTES + 8));
+        }
+
+        long length(String key) {
+            int i = objects.find(hexToBytes(key));
+            return i < 0 ? -1 : objects.buf.getInt(objects.at(i) + KEY_BYTES + 8);
+        }
+
+        // поток прямо по отображению, без копии в кучу (запись внутри одного сегмента)
+        InputStream stream(String key) {
+            int i = objects.find(hexToBytes(key));
+            if (i < 0) return null;
+            int at = objects.at(i);
+            long offset = objects.buf.getLong(at + KEY_BYTES);
+            int length = objects.buf.getInt(at + KEY_BYTES + 8);
+            MappedByteBuffer seg = segments[(int) (offset / SEGMENT)];
+            int inSeg = (int) (offset % SEGMENT);
+            if (inSeg + length > seg.capacity()) return new ByteArrayInputStream(read(offset, length));
+            ByteBuffer view = seg.slice(inSeg, length);
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return view.hasRemaining() ? view.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!view.hasRemaining()) return -1;
+                    int n = Math.min(len, view.remaining());
+                    view.get(b, off, n);
+                    return n;
+                }
+            };
+        }
+
+        void forEachObject(ObjectVisitor v) {
+            for (int i = 0; i < objects.count; i++) {
+                int at = objects.at(i);
+                v.visit(objects.bytes(at, KEY_BYTES), objects.buf.getLong(at + KEY_BYTES), objects.buf.getInt(at + KEY_BYTES + 8));
+            }
+        }
+
+        void forEachUrl(UrlVisitor v) {
+            if (urls == null) return;
+            for (int i = 0; i < urls.count; i++) {
+                int at = urls.at(i);
+                v.visit(urls.bytes(at, KEY_BYTES), urls.bytes(at + KEY_BYTES, KEY_BYTES));
+            }
+        }
+
+        private byte[] read(long offset, int length) {
+            byte[] out = new byte[length];
+            int done = 0;
+            while (done < length) {
+                long pos = offset + done;
+                MappedByteBuffer seg = segments[(int) (pos / SEGMENT)];
+                int inSeg = (int) (pos % SEGMENT);
+                int n = Math.min(length - done, seg.capacity() - inSeg);
+                seg.get(inSeg, out, done, n);
+                done += n;
+            }
+            return out;
+        }
+
+        @Override
+        public void close() {
+            // отображения освобождает GC; метод для try-with-resources в export/import
+        }
+    }
+
+    // ========== УТИЛИТЫ ==========
+
+    private void ensureDir() throws IOException {
+        if (!dirReady) {
+            Files.createDirectories(objects);
+            dirReady = true;
+        }
+    }
+
+    private static void moveIntoPlace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static String sha256Hex(String s) {
+        return sha256Hex(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String sha256Hex(byte[] data) {
+        try {
+            return bytesToHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String bytesToHex(byte[] dig) {
+        StringBuilder sb = new StringBuilder(dig.length * 2);
+        for (byte b : dig) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+        return out;
+    }
+}
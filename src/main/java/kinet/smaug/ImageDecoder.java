@@ -0,0 +1,207 @@
+package kinet.smaug;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Декодирование картинок без поиска провайдера на каждый вызов.
+ * <p>
+ * Формат определяется по первым байтам (PNG, JPEG, GIF, WebP), и байты сразу
+ * уходят к {@link ImageReaderSpi}, найденному один раз при первом обращении.
+ * Ридеры переиспользуются через пул на формат. Если источник намного больше
+ * рамки, читается каждый n-й пиксель ({@link ImageReadParam#setSourceSubsampling}):
+ * меньше памяти и времени, а итоговая картинка всё равно не меньше рамки.
+ * <p>
+ * Неизвестная сигнатура — один проход через {@link ImageIO#read}, без
+ * повторного {@code scanForPlugins}.
+ */
+final class ImageDecoder {
+
+    enum Format { PNG, JPEG, GIF, WEBP }
+
+    // ридеров одного формата в пуле; лишние освобождаются
+    private static final int POOL_PER_FORMAT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final Map<Format, ImageReaderSpi> PROVIDERS = findProviders();
+    private static final Map<Format, Queue<ImageReader>> POOLS = new EnumMap<>(Format.class);
+
+    static {
+        for (Format f : Format.values()) POOLS.put(f, new ConcurrentLinkedQueue<>());
+    }
+
+    private ImageDecoder() {
+    }
+
+    /** Формат по сигнатуре; null — не распознан. */
+    static Format sniff(byte[] b) {
+        if (b == null || b.length < 12) return null;
+        if ((b[0] & 0xFF) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G') return Format.PNG;
+        if ((b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xD8 && (b[2] & 0xFF) == 0xFF) return Format.JPEG;
+        if (b[0] == 'G' && b[1] == 'I' && b[2] == 'F' && b[3] == '8') return Format.GIF;
+        if (b[0] == 'R' && b[1] == 'I' && b[2] == 'F' && b[3] == 'F'
+                && b[8] == 'W' && b[9] == 'E' && b[10] == 'B' && b[11] == 'P') return Format.WEBP;
+        return null;
+    }
+
+    /**
+     * Прореживание для рамки {@code targetW×targetH} пикселей: наибольший шаг,
+     * при котором картинка остаётся не меньше рамки по обеим сторонам.
+     */
+    static int subsampling(int srcW, int srcH, int targetW, int targetH) {
+        if (srcW <= 0 || srcH <= 0 || targetW <= 0 || targetH <= 0) return 1;
+        return Math.max(1, Math.min(srcW / targetW, srcH / targetH));
+    }
+
+    /** Размеры из заголовка, без декодирования пикселей; null — не удалось. */
+    static Dimension size(byte[] bytes) {
+        Format f = sniff(bytes);
+        ImageReader reader = f == null ? null : borrow(f);
+        if (reader == null) return sizeViaRegistry(new ByteArrayInputStream(bytes));
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+            reader.setInput(iis, true, true);
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } finally {
+            release(f, reader);
+        }
+    }
+
+    /** Размеры из заголовка потока (режим --plan читает кэш без загрузки в память). */
+    static Dimension size(InputStream in) throws IOException {
+        byte[] head = in.readNBytes(12);
+        Format f = sniff(head);
+        InputStream all = new SequenceInputStream(new ByteArrayInputStream(head), in);
+        ImageReader reader = f == null ? null : borrow(f);
+        if (reader == null) return sizeViaRegistry(all);
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(all)) {
+            reader.setInput(iis, true, true);
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            release(f, reader);
+        }
+    }
+
+    /**
+     * Декодирует первый кадр. {@code targetW/targetH} — сколько пикселей нужно
+     * на выходе (0 — без прореживания).
+     */
+    static BufferedImage decode(byte[] bytes, int targetW, int targetH) throws IOException {
+        GenerationEvents.ImageDecode event = new GenerationEvents.ImageDecode();
+        event.begin();
+        Format f = sniff(bytes);
+        ImageReader reader = f == null ? null : borrow(f);
+        BufferedImage img;
+        if (reader == null) {
+            try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes)) {
+                img = ImageIO.read(bis);
+            }
+            event.subsampling = 1;
+        } else {
+            try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                event.sourceWidth = reader.getWidth(0);
+                event.sourceHeight = reader.getHeight(0);
+                int step = subsampling(event.sourceWidth, event.sourceHeight, targetW, targetH);
+                if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                event.subsampling = step;
+                img = reader.read(0, param);
+            } finally {
+                release(f, reader);
+            }
+        }
+        if (event.shouldCommit()) {
+            event.format = f == null ? "unknown" : f.name();
+            event.bytes = bytes.length;
+            if (img != null) {
+                event.width = img.getWidth();
+                event.height = img.getHeight();
+            }
+            event.commit();
+        }
+        return img;
+    }
+
+    private static ImageReader borrow(Format f) {
+        ImageReaderSpi spi = PROVIDERS.get(f);
+        if (spi == null) return null;
+        ImageReader r = POOLS.get(f).poll();
+        if (r != null) return r;
+        try {
+            return spi.createReaderInstance();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void release(Format f, ImageReader reader) {
+        if (reader == null) return;
+        reader.reset();   // отпускает вход и слушателей
+        Queue<ImageReader> pool = POOLS.get(f);
+        if (pool.size() < POOL_PER_FORMAT) pool.offer(reader);
+        else reader.dispose();
+    }
+
+    private static Dimension sizeViaRegistry(InputStream in) {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            if (iis == null) return null;
+            Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+            if (!it.hasNext()) return null;
+            ImageReader reader = it.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // один проход по реестру; плагины из classpath (TwelveMonkeys WebP) реестр
+    // регистрирует сам при создании, повторный scanForPlugins не нужен
+    private static Map<Format, ImageReaderSpi> findProviders() {
+        ImageIO.setUseCache(false);
+        Map<Format, ImageReaderSpi> out = new EnumMap<>(Format.class);
+        Iterator<ImageReaderSpi> it = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (it.hasNext()) {
+            ImageReaderSpi spi = it.next();
+            for (String name : spi.getFormatNames()) {
+                Format f = formatOf(name);
+                if (f != null) out.putIfAbsent(f, spi);
+            }
+        }
+        return out;
+    }
+
+    private static Format formatOf(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "png" -> Format.PNG;
+            case "jpeg", "jpg" -> Format.JPEG;
+            case "gif" -> Format.GIF;
+            case "webp" -> Format.WEBP;
+            default -> null;
+        };
+    }
+}
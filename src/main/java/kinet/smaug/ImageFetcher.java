@@ -0,0 +1,177 @@
+package kinet.smaug;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Загрузка картинок по HTTP: ретраи, Retry-After, предохранитель и лимит по хостам.
+ * <p>
+ * Один экземпляр делится всеми колодами процесса: {@link HostGuard} видит общую
+ * нагрузку на хост, а соединения переиспользует keep-alive пул
+ * {@link HttpURLConnection}, общий для JVM.
+ */
+final class ImageFetcher {
+
+    static final int MAX_IMAGE_BYTES = 10 * 1024 * 1024;
+
+    private static final Duration HTTP_CONNECT_TIMEOUT = Duration.ofSeconds(8);
+    private static final Duration HTTP_REQUEST_TIMEOUT = Duration.ofSeconds(25);
+
+    private static final String UA = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36";
+    private static final String ACCEPT = "image/jpeg,image/png,image/gif,image/*;q=0.8,*/*;q=0.5";
+    private static final String ACCEPT_LANG = "en-US,en;q=0.9";
+    private static final String ACCEPT_ENC = "gzip, deflate, br";
+
+    private static final int FETCH_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 250;
+    private static final Duration MAX_RETRY_AFTER = Duration.ofSeconds(30);   // дольше — не ждём, пропускаем
+    private static final Duration HOST_SLOT_WAIT = Duration.ofMinutes(2);
+
+    // предохранитель и адаптивный лимит параллельных загрузок на хост
+    private final HostGuard hosts = new HostGuard();
+
+    HostGuard hosts() {
+        return hosts;
+    }
+
+    // все таймауты, паузы и ожидание места у хоста урезаются до остатка дедлайна
+    byte[] fetch(String url, long deadlineNanos) throws IOException, InterruptedException {
+        URI uri = URI.create(url);
+        String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
+        String referer = host.endsWith("gstatic.com") || host.contains("google") ?
+                "https://www.google.com/" : "https://" + host + "/";
+
+        IOException lastIoEx = null;
+        int lastSc = 0;
+
+        for (int attempt = 1; attempt <= FETCH_ATTEMPTS; attempt++) {
+            long left = DeadlineScope.remainingMillis(deadlineNanos);
+            if (left <= 0) throw new SocketTimeoutException("Дедлайн исчерпан: " + url);
+            HostGuard.Permit permit = acquire(host, url, deadlineNanos);
+            try {
+                left = Math.max(1, DeadlineScope.remainingMillis(deadlineNanos));
+                HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+                conn.setRequestMethod("GET");
+                conn.setConnectTimeout((int) Math.min(HTTP_CONNECT_TIMEOUT.toMillis(), left));
+                conn.setReadTimeout((int) Math.min(HTTP_REQUEST_TIMEOUT.toMillis(), left));
+                conn.setInstanceFollowRedirects(true);
+                conn.setRequestProperty("User-Agent", UA);
+                conn.setRequestProperty("Accept", ACCEPT);
+                conn.setRequestProperty("Accept-Language", ACCEPT_LANG);
+                conn.setRequestProperty("Accept-Encoding", ACCEPT_ENC);
+                conn.setRequestProperty("Referer", referer);
+
+                int sc = conn.getResponseCode();
+                lastSc = sc;
+
+                if (sc >= 200 && sc < 300) {
+                    String ct = conn.getContentType();
+                    if (ct != null && ct.toLowerCase().contains("text/html")) {
+                        permit.success();
+                        System.err.println("Пропуск (HTML вместо изображения): " + url + " [CT=" + ct + "]");
+                        return null;
+                    }
+
+                    try (InputStream is = conn.getInputStream();
+                         ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                        byte[] buffer = new byte[8192];
+                        int len, total = 0;
+                        while ((len = is.read(buffer)) != -1) {
+                            if (DeadlineScope.remainingMillis(deadlineNanos) <= 0) {
+                                throw new SocketTimeoutException("Дедлайн исчерпан при чтении: " + url);
+                            }
+                            baos.write(buffer, 0, len);
+                            total += len;
+                            if (total > MAX_IMAGE_BYTES) {
+                                permit.success();
+                                System.err.println("Изображение слишком большое: " + url);
+                                return null;
+                            }
+                        }
+                        // HttpURLConnection не замечает обрыв тела фиксированной длины:
+                        // без проверки в кэш легла бы половина картинки
+                        long declared = conn.getContentLengthLong();
+                        if (declared >= 0 && total != declared) {
+                            throw new IOException("Усечённый ответ: " + total + " из " + declared + " байт");
+                        }
+                        permit.success();
+                        byte[] body = baos.toByteArray();
+                        return body.length > 0 ? body : null;
+                    }
+                } else if (sc == 401 || sc == 403 || sc == 404) {
+                    permit.success();
+                    System.err.println("Доступ закрыт/не найден: " + url + " [HTTP " + sc + "]");
+                    return null;
+                } else if (sc == 429 || sc == 503) {
+                    long retryAfter = HostGuard.parseRetryAfter(conn.getHeaderField("Retry-After"));
+                    permit.throttled(retryAfter);
+                    if (retryAfter > Math.min(MAX_RETRY_AFTER.toMillis(), DeadlineScope.remainingMillis(deadlineNanos))) {
+                        System.err.println("Хост просит подождать " + retryAfter / 1000 + " с, пропуск: " + url);
+                        return null;
+                    }
+                    if (attempt < FETCH_ATTEMPTS) {
+                        if (retryAfter >= 0) Thread.sleep(retryAfter);
+                        else backoff(attempt, deadlineNanos);
+                    }
+                } else if (sc >= 500 && sc < 600) {
+                    permit.failure();
+                    if (attempt < FETCH_ATTEMPTS) backoff(attempt, deadlineNanos);
+                } else {
+                    permit.success();
+                    System.err.println("Статус " + sc + " для: " + url);
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                permit.cancel();
+                throw e;
+            } catch (IOException io) {
+                // прерывание или свой дедлайн (таймауты урезаны до его остатка) — не вина хоста
+                if (Thread.currentThread().isInterrupted() || DeadlineScope.remainingMillis(deadlineNanos) <= 0) {
+                    permit.cancel();
+                    throw io;
+                }
+                permit.failure();
+                lastIoEx = io;
+                System.err.println("IOException на попытке " + attempt + ": " + io.getMessage());
+                if (attempt < FETCH_ATTEMPTS) backoff(attempt, deadlineNanos);
+            } finally {
+                permit.failure(); // ничего не делает, если исход уже записан
+            }
+        }
+
+        if (lastIoEx != null) throw lastIoEx;
+        System.err.println("Не удалось получить: " + url + " [HTTP " + lastSc + "]");
+        return null;
+    }
+
+    // Открытый хост бросает HostUnavailableException сразу, без таймаутов. Короткую паузу
+    // (429/503 с Retry-After у соседнего запроса) пережидаем: попытка не тратится,
+    // картинка не теряется. Долгую — как и для собственного ответа — не ждём.
+    private HostGuard.Permit acquire(String host, String url, long deadlineNanos)
+            throws IOException, InterruptedException {
+        while (true) {
+            long left = DeadlineScope.remainingMillis(deadlineNanos);
+            if (left <= 0) throw new SocketTimeoutException("Дедлайн исчерпан: " + url);
+            try {
+                return hosts.acquire(host, Duration.ofMillis(Math.min(HOST_SLOT_WAIT.toMillis(), left)));
+            } catch (HostGuard.HostUnavailableException e) {
+                long wait = e.millisLeft();
+                if (wait > Math.min(MAX_RETRY_AFTER.toMillis(), left)) throw e;
+                Thread.sleep(Math.max(1, wait));
+            }
+        }
+    }
+
+    // пауза удваивается с каждой попыткой (250, 500, 1000 мс ...), со случайным разбросом вниз
+    private static void backoff(int attempt, long deadlineNanos) throws InterruptedException {
+        long cap = BACKOFF_BASE_MS << Math.min(10, attempt - 1);
+        long pause = ThreadLocalRandom.current().nextLong(cap / 4, cap + 1);
+        Thread.sleep(Math.min(pause, DeadlineScope.remainingMillis(deadlineNanos)));
+    }
+}
@@ -0,0 +1,129 @@
+package kinet.smaug;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Минимальный потоковый JSON-писатель с отступами (отчёты --plan и т.п.).
+ * Без зависимостей: в проекте нет JSON-библиотеки, а писать нужно немного.
+ */
+final class JsonWriter {
+
+    private final StringBuilder sb = new StringBuilder(4096);
+    // для каждого открытого контейнера: был ли уже элемент
+    private final Deque<boolean[]> stack = new ArrayDeque<>();
+    private boolean afterName;
+
+    JsonWriter beginObject() {
+        beforeValue();
+        sb.append('{');
+        stack.push(new boolean[1]);
+        return this;
+    }
+
+    JsonWriter endObject() {
+        return close('}');
+    }
+
+    JsonWriter beginArray() {
+        beforeValue();
+        sb.append('[');
+        stack.push(new boolean[1]);
+        return this;
+    }
+
+    JsonWriter endArray() {
+        return close(']');
+    }
+
+    JsonWriter name(String name) {
+        beforeValue();
+        quote(name);
+        sb.append(": ");
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String v) {
+        beforeValue();
+        if (v == null) sb.append("null");
+        else quote(v);
+        return this;
+    }
+
+    JsonWriter value(long v) {
+        beforeValue();
+        sb.append(v);
+        return this;
+    }
+
+    JsonWriter value(double v) {
+        beforeValue();
+        if (Double.isNaN(v) || Double.isInfinite(v)) sb.append("null");
+        else sb.append(String.format(Locale.ROOT, "%.2f", v));
+        return this;
+    }
+
+    JsonWriter value(boolean v) {
+        beforeValue();
+        sb.append(v);
+        return this;
+    }
+
+    JsonWriter field(String name, String v) { return name(name).value(v); }
+
+    JsonWriter field(String name, long v) { return name(name).value(v); }
+
+    JsonWriter field(String name, double v) { return name(name).value(v); }
+
+    JsonWriter field(String name, boolean v) { return name(name).value(v); }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    private JsonWriter close(char c) {
+        boolean[] hadItems = stack.pop();
+        if (hadItems[0]) newline();
+        sb.append(c);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        boolean[] top = stack.peek();
+        if (top == null) return;
+        if (top[0]) sb.append(',');
+        top[0] = true;
+        newline();
+    }
+
+    private void newline() {
+        sb.append('\n');
+        for (int i = 0; i < stack.size(); i++) sb.append("  ");
+    }
+
+    private void quote(String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
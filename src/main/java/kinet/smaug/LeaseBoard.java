@@ -0,0 +1,245 @@
+package kinet.smaug;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Раздача папок между процессами через файлы аренды в общем каталоге
+ * (один хост или узлы с общей ФС).
+ * <p>
+ * Аренда — файл {@code <имя>.lease}, созданный атомарно ({@code CREATE_NEW});
+ * внутри — токен владельца. Пока папка собирается, владелец раз в треть TTL
+ * обновляет время изменения файла (heartbeat). Аренда, не обновлявшаяся дольше
+ * TTL, считается брошенной: её переименовывают (атомарно — успевает ровно один
+ * узел) и создают заново. По окончании рядом кладётся {@code <имя>.done}
+ * (properties: узел, итог, время), из которых собирается общий отчёт.
+ * <p>
+ * Часы узлов сравниваются через время изменения файлов на общей ФС; расхождение
+ * должно быть заметно меньше TTL.
+ */
+final class LeaseBoard implements AutoCloseable {
+
+    static final String LEASE_EXT = ".lease";
+    static final String DONE_EXT = ".done";
+
+    private final Path dir;
+    private final String nodeId;
+    private final Duration ttl;
+    private final Map<String, Lease> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    LeaseBoard(Path dir, String nodeId, Duration ttl) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.nodeId = nodeId;
+        this.ttl = ttl;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(100, ttl.toMillis() / 3);
+        heartbeat.scheduleAtFixedRate(this::beat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Имя узла по умолчанию: хост и pid. */
+    static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + ManagementFactory.getRuntimeMXBean().getPid();
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    /** Аренда папки за этим узлом. */
+    final class Lease {
+        final String name;
+        final boolean stolen;        // забрана у узла, переставшего обновлять аренду
+        private final String token;
+        private volatile boolean lost;
+
+        private Lease(String name, String token, boolean stolen) {
+            this.name = name;
+            this.token = token;
+            this.stolen = stolen;
+        }
+
+        /** Аренду перехватил другой узел (этот не успел обновить её вовремя). */
+        boolean lost() {
+            return lost;
+        }
+    }
+
+    boolean isDone(String name) {
+        return Files.isRegularFile(dir.resolve(name + DONE_EXT));
+    }
+
+    /** Свободна или брошена: её можно взять прямо сейчас. */
+    boolean claimable(String name) throws IOException {
+        if (isDone(name)) return false;
+        FileTime m = modified(dir.resolve(name + LEASE_EXT));
+        return m == null || expired(m);
+    }
+
+    /** Берёт папку; null — готова или занята живым узлом. */
+    Lease claim(String name) throws IOException {
+        if (isDone(name)) return null;
+        Path file = dir.resolve(name + LEASE_EXT);
+        Lease lease = create(file, name, false);
+        if (lease != null) return lease;
+
+        FileTime m = modified(file);
+        if (m != null && !expired(m)) return null;
+        // брошена: переименовать может только один узел, остальные получат NoSuchFileException
+        Path grave = dir.resolve(name + LEASE_EXT + "." + UUID.randomUUID() + ".stale");
+        try {
+            move(file, grave);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            // между проверкой и переименованием аренду мог обновить владелец — тогда вернуть
+            FileTime moved = modified(grave);
+            if (moved != null && !expired(moved)) {
+                try {
+                    Files.move(grave, file);   // без ATOMIC_MOVE: rename() молча заменил бы чужую аренду
+                } catch (FileAlreadyExistsException e) {
+                    // её уже занял третий узел; владелец увидит потерю на следующем heartbeat
+                }
+                return null;
+            }
+        } finally {
+            Files.deleteIfExists(grave);
+        }
+        if (isDone(name)) return null;   // владелец успел закончить
+        return create(file, name, true);
+    }
+
+    /** Записывает итог папки и отпускает аренду. */
+    void complete(Lease lease, Properties record) throws IOException {
+        record.setProperty("node", nodeId);
+        record.setProperty("stolen", Boolean.toString(lease.stolen));
+        Path tmp = dir.resolve(lease.name + DONE_EXT + "." + UUID.randomUUID() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            record.store(w, null);
+        }
+        move(tmp, dir.resolve(lease.name + DONE_EXT));
+        release(lease);
+    }
+
+    /** Отпускает аренду без итога (папку возьмёт другой узел). */
+    void release(Lease lease) throws IOException {
+        held.remove(lease.name, lease);
+        Path file = dir.resolve(lease.name + LEASE_EXT);
+        if (lease.token.equals(readToken(file))) Files.deleteIfExists(file);
+    }
+
+    /** Итоги всех готовых папок (от всех узлов), по имени. */
+    List<Properties> records() throws IOException {
+        List<Properties> out = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(f -> f.getFileName().toString().endsWith(DONE_EXT)).sorted().toList()) {
+                Properties record = new Properties();
+                try (Reader r = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+                    record.load(r);
+                }
+                String file = p.getFileName().toString();
+                record.setProperty("name", file.substring(0, file.length() - DONE_EXT.length()));
+                out.add(record);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+
+    private Lease create(Path file, String name, boolean stolen) throws IOException {
+        String token = nodeId + "/" + UUID.randomUUID();
+        try {
+            Files.createFile(file);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        }
+        // пустой файл только что создан и свежий — никто не сочтёт его брошенным
+        Files.writeString(file, token, StandardCharsets.UTF_8);
+        Lease lease = new Lease(name, token, stolen);
+        held.put(name, lease);
+        return lease;
+    }
+
+    private void beat() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Lease lease : held.values()) {
+            Path file = dir.resolve(lease.name + LEASE_EXT);
+            try {
+                if (!lease.token.equals(readToken(file))) {
+                    if (!lease.lost) System.err.println("Аренда " + lease.name + " перехвачена другим узлом");
+                    lease.lost = true;
+                    held.remove(lease.name, lease);
+                    continue;
+                }
+                Files.setLastModifiedTime(file, now);
+            } catch (IOException e) {
+                System.err.println("Heartbeat " + lease.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean expired(FileTime modified) {
+        return System.currentTimeMillis() - modified.toMillis() > ttl.toMillis();
+    }
+
+    private static FileTime modified(Path file) throws IOException {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String readToken(Path file) throws IOException {
+        try {
+            return Files.readString(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to);
+        }
+    }
+}
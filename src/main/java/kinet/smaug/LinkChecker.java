@@ -0,0 +1,234 @@
+package kinet.smaug;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Проверка ссылок для слайда «Источники»: все адреса колоды параллельно,
+ * HEAD, а если сервер его не поддерживает или отвечает ошибкой — GET без чтения тела.
+ * Любой ответ HEAD от 400 и выше, кроме 429, перепроверяется GET: маршрут часто
+ * зарегистрирован только для GET, а CDN и подписанные адреса отвечают на HEAD 403/404.
+ * <p>
+ * Параллелизм на хост ограничивает {@link HostGuard} (тот же AIMD-лимит и
+ * предохранитель, что у загрузки картинок). Итоги «жива»/«мертва» хранятся
+ * в файле между запусками не дольше TTL; «неизвестно» (таймаут, 5xx, 429,
+ * открытый хост, ошибка DNS) не кэшируется и ссылку не трогает. Мёртвой
+ * ссылка считается только по ответу сервера на GET (404/410): несработавший DNS —
+ * чаще сбой резолвера или сети, чем исчезнувший сайт.
+ */
+final class LinkChecker implements AutoCloseable {
+
+    enum Status { ALIVE, DEAD, UNKNOWN }
+
+    static final class Result {
+        final Status status;
+        final int code;          // HTTP-код; 0 — ответа не было
+        final long checkedAt;
+
+        Result(Status status, int code, long checkedAt) {
+            this.status = status;
+            this.code = code;
+            this.checkedAt = checkedAt;
+        }
+
+        /** Короткое пояснение для слайда. */
+        String reason() {
+            return code > 0 ? "HTTP " + code : "нет ответа";
+        }
+    }
+
+    private static final int THREADS = 32;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(8);
+    private static final Duration HOST_SLOT_WAIT = Duration.ofSeconds(30);
+    private static final String UA = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36";
+
+    private final Path cacheFile;
+    private final Duration ttl;
+    private final Map<String, Result> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Result>> inflight = new ConcurrentHashMap<>();
+    private final HostGuard hosts = new HostGuard();
+    private final ExecutorService pool;
+    private final AtomicInteger checked = new AtomicInteger();
+
+    LinkChecker(Path cacheFile, Duration ttl) {
+        this.cacheFile = cacheFile;
+        this.ttl = ttl;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "link-check-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        load();
+    }
+
+    /**
+     * Итог по каждому http(s)-адресу; не дождавшиеся {@code budget} — UNKNOWN.
+     * Прочие строки (текстовые ссылки на книги и т.п.) в результат не попадают.
+     */
+    Map<String, Result> check(Collection<String> urls, Duration budget) throws InterruptedException {
+        Map<String, CompletableFuture<Result>> pending = new LinkedHashMap<>();
+        for (String url : urls) {
+            if (!isHttp(url)) continue;
+            Result hit = cache.get(url);
+            pending.put(url, hit != null && fresh(hit) ? CompletableFuture.completedFuture(hit)
+                    : inflight.computeIfAbsent(url, u -> CompletableFuture.supplyAsync(() -> probe(u), pool)
+                            .whenComplete((r, e) -> inflight.remove(u))));
+        }
+        try {
+            CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0]))
+                    .get(budget.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // не успевшие — UNKNOWN ниже
+        }
+        Map<String, Result> out = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        pending.forEach((url, f) -> out.put(url, f.isDone() && !f.isCompletedExceptionally() ? f.join()
+                : new Result(Status.UNKNOWN, 0, now)));
+        return out;
+    }
+
+    /** Сколько адресов проверено по сети (без кэша). */
+    int checkedCount() {
+        return checked.get();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        save();
+    }
+
+    // ========== ЗАПРОС ==========
+    private Result probe(String url) {
+        checked.incrementAndGet();
+        String host = URI.create(url).getHost();
+        HostGuard.Permit permit;
+        try {
+            permit = hosts.acquire(host == null ? "" : host.toLowerCase(Locale.ROOT), HOST_SLOT_WAIT);
+        } catch (IOException e) {
+            return new Result(Status.UNKNOWN, 0, System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(Status.UNKNOWN, 0, System.currentTimeMillis());
+        }
+        try {
+            int sc = request(url, "HEAD");
+            // HEAD не поддержан, запрещён роботам или сломан — решает GET, в том числе
+            // для 404/410: мёртвой ссылку делает только ответ на GET
+            if (sc >= 400 && sc != 429) sc = request(url, "GET");
+            Result r = classify(sc);
+            if (sc == 429 || sc == 503) permit.throttled(-1);
+            else if (sc >= 500) permit.failure();
+            else permit.success();
+            if (r.status != Status.UNKNOWN) cache.put(url, r);
+            return r;
+        } catch (IOException | IllegalArgumentException e) {
+            // в том числе UnknownHostException: временный сбой DNS не должен убивать ссылку
+            permit.failure();
+            return new Result(Status.UNKNOWN, 0, System.currentTimeMillis());
+        }
+    }
+
+    private static int request(String url, String method) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        try {
+            conn.setRequestMethod(method);
+            conn.setConnectTimeout((int) CONNECT_TIMEOUT.toMillis());
+            conn.setReadTimeout((int) READ_TIMEOUT.toMillis());
+            conn.setInstanceFollowRedirects(true);
+            conn.setRequestProperty("User-Agent", UA);
+            conn.setRequestProperty("Accept", "*/*");
+            int sc = conn.getResponseCode();
+            if ("GET".equals(method)) {
+                // тело не нужно: закрываем сразу, соединение не вернётся в keep-alive
+                InputStream body = sc >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                if (body != null) body.close();
+            }
+            return sc;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // 2xx/3xx — жива (3xx остаётся при смене протокола); 404/410 — мертва;
+    // 401/403 — страница есть, но закрыта; остальное — неизвестно
+    private static Result classify(int sc) {
+        long now = System.currentTimeMillis();
+        if (sc >= 200 && sc < 400) return new Result(Status.ALIVE, sc, now);
+        if (sc == 401 || sc == 403) return new Result(Status.ALIVE, sc, now);
+        if (sc == 404 || sc == 410) return new Result(Status.DEAD, sc, now);
+        return new Result(Status.UNKNOWN, sc, now);
+    }
+
+    private static boolean isHttp(String s) {
+        String l = s.toLowerCase(Locale.ROOT);
+        return l.startsWith("http://") || l.startsWith("https://");
+    }
+
+    private boolean fresh(Result r) {
+        return System.currentTimeMillis() - r.checkedAt < ttl.toMillis();
+    }
+
+    // ========== КЭШ ==========
+    // строка: адрес \t статус \t код \t время проверки (мс)
+    private void load() {
+        if (cacheFile == null || !Files.isRegularFile(cacheFile)) return;
+        try {
+            for (String line : Files.readAllLines(cacheFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (f.length != 4) continue;
+                try {
+                    Result r = new Result(Status.valueOf(f[1]), Integer.parseInt(f[2]), Long.parseLong(f[3]));
+                    if (fresh(r)) cache.put(f[0], r);
+                } catch (IllegalArgumentException ignore) {
+                    // испорченная строка
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Кэш ссылок не прочитан: " + e.getMessage());
+        }
+    }
+
+    // переписывается целиком: устаревшие записи выпадают
+    private void save() {
+        if (cacheFile == null) return;
+        StringBuilder sb = new StringBuilder();
+        cache.forEach((url, r) -> {
+            if (fresh(r)) sb.append(url).append('\t').append(r.status).append('\t').append(r.code)
+                    .append('\t').append(r.checkedAt).append('\n');
+        });
+        try {
+            Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+            Path tmp = PackageWriter.tempSibling(cacheFile);
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            PackageWriter.replace(tmp, cacheFile);
+        } catch (IOException e) {
+            System.err.println("Кэш ссылок не сохранён: " + e.getMessage());
+        }
+    }
+
+    /** Для отчётов: сколько записей в кэше. */
+    int cachedCount() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,323 @@
+package kinet.smaug;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Замер сетевого пути загрузки картинок ({@link ImageFetcher} + {@link ImageCache})
+ * без внешней сети: встроенный {@link FaultServer} на 127.0.0.1 отдаёт
+ * синтетические PNG с задержкой, разбросом и случайными сбоями.
+ * <p>
+ * Два сценария — «чистый» (только задержка) и «со сбоями» (429/5xx, усечённые
+ * тела, HTML) — и в каждом два прохода по тем же адресам: холодный в пустой кэш
+ * и тёплый. К адресам добавляются постоянные сбои: 404, 500, HTML, усечённое
+ * тело, ответ больше {@link ImageFetcher#MAX_IMAGE_BYTES}. Для каждого прохода:
+ * адресов/с, МБ/с, p50/p99 времени адреса, запросов к серверу на адрес (ретраи),
+ * исходы и попадания в кэш; цена ретраев — разница времени сценариев.
+ * Итог дублируется строкой JSON.
+ * <pre>
+ *   java -cp ... kinet.smaug.NetworkBenchmark [--images 40] [--image-size 800x600]
+ *        [--concurrency 8] [--latency-ms 20] [--jitter-ms 30] [--error-rate 0.1]
+ *        [--error-status 503] [--retry-after -1] [--truncate-rate 0.05] [--html-rate 0.02]
+ *        [--faulty-urls 1] [--seed 1] [--dir DIR] [--keep]
+ * </pre>
+ * Сбои выбираются по seed, поэтому повторный прогон видит их в тех же местах.
+ */
+public final class NetworkBenchmark {
+
+    private int images = 40;
+    private int imageW = 800;
+    private int imageH = 600;
+    private int concurrency = 8;
+    private int faultyUrls = 1;      // постоянных сбоев каждого вида
+    private final FaultServer.Faults faults = new FaultServer.Faults();
+    private Path dir;
+    private boolean keep;
+
+    private NetworkBenchmark() {
+        faults.latencyMs = 20;
+        faults.jitterMs = 30;
+        faults.errorRate = 0.1;
+        faults.truncateRate = 0.05;
+        faults.htmlRate = 0.02;
+    }
+
+    public static void main(String[] args) throws Exception {
+        NetworkBenchmark b = new NetworkBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            switch (a) {
+                case "--images" -> b.images = Math.max(1, Integer.parseInt(args[++i]));
+                case "--image-size" -> {
+                    String[] d = args[++i].toLowerCase(Locale.ROOT).split("x");
+                    b.imageW = Integer.parseInt(d[0]);
+                    b.imageH = Integer.parseInt(d[1]);
+                }
+                case "--concurrency" -> b.concurrency = Math.max(1, Integer.parseInt(args[++i]));
+                case "--latency-ms" -> b.faults.latencyMs = Long.parseLong(args[++i]);
+                case "--jitter-ms" -> b.faults.jitterMs = Long.parseLong(args[++i]);
+                case "--error-rate" -> b.faults.errorRate = Double.parseDouble(args[++i]);
+                case "--error-status" -> b.faults.errorStatus = Integer.parseInt(args[++i]);
+                case "--retry-after" -> b.faults.retryAfterSec = Integer.parseInt(args[++i]);
+                case "--truncate-rate" -> b.faults.truncateRate = Double.parseDouble(args[++i]);
+                case "--html-rate" -> b.faults.htmlRate = Double.parseDouble(args[++i]);
+                case "--faulty-urls" -> b.faultyUrls = Math.max(0, Integer.parseInt(args[++i]));
+                case "--seed" -> b.faults.seed = Long.parseLong(args[++i]);
+                case "--dir" -> b.dir = Paths.get(args[++i]);
+                case "--keep" -> b.keep = true;
+                default -> {
+                    System.err.println("Неизвестный параметр: " + a);
+                    System.exit(2);
+                }
+            }
+        }
+        b.run();
+    }
+
+    private void run() throws Exception {
+        Path root = dir != null ? Files.createDirectories(dir) : Files.createTempDirectory("pc-net-bench");
+        try {
+            Path files = Files.createDirectories(root.resolve("images"));
+            long t0 = System.nanoTime();
+            long bytes = synthesize(files);
+            System.out.printf(Locale.ROOT, "Картинки: %d × %dx%d, %s → %s (%.1f с)%n",
+                    images, imageW, imageH, mb(bytes), files, (System.nanoTime() - t0) / 1e9);
+
+            FaultServer.Faults clean = new FaultServer.Faults();
+            clean.latencyMs = faults.latencyMs;
+            clean.jitterMs = faults.jitterMs;
+            clean.seed = faults.seed;
+            clean.retryAfterSec = faults.retryAfterSec;
+
+            List<Pass> passes = new ArrayList<>();
+            passes.addAll(scenario("чистый", clean, files, root.resolve("cache-clean"), false));
+            passes.addAll(scenario("сбои", faults, files, root.resolve("cache-faulty"), true));
+            report(passes);
+        } finally {
+            if (!keep) deleteTree(root);
+        }
+    }
+
+    // ========== СЦЕНАРИЙ ==========
+    private List<Pass> scenario(String name, FaultServer.Faults f, Path files, Path cacheDir, boolean faulty)
+            throws Exception {
+        FaultServer server = new FaultServer(files, f);
+        int port = server.start(0);
+        try {
+            String base = "http://127.0.0.1:" + port + "/";
+            List<String> urls = new ArrayList<>();
+            for (int k = 1; k <= images; k++) urls.add(base + "img_" + k + ".png");
+            if (faulty) {
+                for (int i = 1; i <= faultyUrls; i++) {
+                    urls.add(base + "status/404/img_" + i + ".png");
+                    urls.add(base + "status/500/img_" + i + ".png");
+                    urls.add(base + "html/img_" + i + ".png");
+                    urls.add(base + "truncate/img_" + i + ".png");
+                    urls.add(base + "big/" + (ImageFetcher.MAX_IMAGE_BYTES / (1024 * 1024) + 2) + "/img_" + i + ".png");
+                }
+            }
+            Collections.shuffle(urls, new Random(f.seed));
+
+            ImageFetcher fetcher = new ImageFetcher();
+            ImageCache cache = new ImageCache(cacheDir);
+            List<Pass> out = new ArrayList<>();
+            out.add(pass(name + "/холодный", urls, server, fetcher, cache));
+            out.add(pass(name + "/тёплый", urls, server, fetcher, cache));
+            System.out.print(fetcher.hosts().summary());
+            return out;
+        } finally {
+            server.stop();
+        }
+    }
+
+    private Pass pass(String name, List<String> urls, FaultServer server, ImageFetcher fetcher, ImageCache cache)
+            throws InterruptedException {
+        long requestsBefore = server.requests();
+        long sentBefore = server.bytesSent();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<Outcome>> futures = new ArrayList<>(urls.size());
+        long start = System.nanoTime();
+        for (String url : urls) {
+            futures.add(pool.submit(() -> fetchOne(url, fetcher, cache)));
+        }
+        Pass p = new Pass(name, urls.size());
+        for (Future<Outcome> fu : futures) {
+            try {
+                p.add(fu.get());
+            } catch (ExecutionException e) {
+                p.add(new Outcome("сбой: " + e.getCause(), false, 0, 0));
+            }
+        }
+        p.wall = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        p.requests = server.requests() - requestsBefore;
+        p.served = server.bytesSent() - sentBefore;
+        return p;
+    }
+
+    private Outcome fetchOne(String url, ImageFetcher fetcher, ImageCache cache) throws InterruptedException {
+        long t0 = System.nanoTime();
+        String kind;
+        long bytes = 0;
+        boolean cached = false;
+        try {
+            String key = cache.lookup(url);
+            cached = key != null;
+            if (!cached) key = cache.getOrFetch(url, u -> fetcher.fetch(u, DeadlineScope.deadlineIn(60_000)));
+            if (key != null) bytes = cache.size(key);
+            kind = key != null ? "ok" : "пропуск";
+        } catch (HostGuard.HostUnavailableException e) {
+            kind = "хост открыт";
+        } catch (IOException e) {
+            kind = "ошибка " + e.getClass().getSimpleName();
+        }
+        return new Outcome(kind, cached, bytes, System.nanoTime() - t0);
+    }
+
+    static final class Outcome {
+        final String kind;
+        final boolean cached;
+        final long bytes;
+        final long nanos;
+
+        Outcome(String kind, boolean cached, long bytes, long nanos) {
+            this.kind = kind;
+            this.cached = cached;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    static final class Pass {
+        final String name;
+        final int urls;
+        final Map<String, Integer> kinds = new TreeMap<>();
+        final List<Long> latencies = new ArrayList<>();
+        long bytes;
+        int hits;
+        long requests;
+        long served;
+        double wall;
+
+        Pass(String name, int urls) {
+            this.name = name;
+            this.urls = urls;
+        }
+
+        void add(Outcome o) {
+            kinds.merge(o.kind, 1, Integer::sum);
+            latencies.add(o.nanos);
+            bytes += o.bytes;
+            if (o.cached) hits++;
+        }
+
+        int ok() {
+            return kinds.getOrDefault("ok", 0);
+        }
+    }
+
+    // ========== ОТЧЁТ ==========
+    private void report(List<Pass> passes) {
+        System.out.println("========== ИТОГ ==========");
+        System.out.printf(Locale.ROOT, "потоков: %d, задержка %d±%d мс, ошибки %.0f%% (%d), усечения %.0f%%, HTML %.0f%%, seed %d%n",
+                concurrency, faults.latencyMs, faults.jitterMs, faults.errorRate * 100, faults.errorStatus,
+                faults.truncateRate * 100, faults.htmlRate * 100, faults.seed);
+        JsonWriter json = new JsonWriter().beginObject()
+                .field("concurrency", concurrency).field("images", images)
+                .name("passes").beginArray();
+        for (Pass p : passes) {
+            List<Long> sorted = new ArrayList<>(p.latencies);
+            Collections.sort(sorted);
+            double perUrl = p.requests / (double) p.urls;
+            double hitRate = p.hits / (double) p.urls;
+            System.out.printf(Locale.ROOT, "%-16s %6.2f с  %6.1f адр/с  %6.2f МБ/с  p50 %4d мс  p99 %5d мс  "
+                            + "запросов/адрес %.2f  из кэша %.0f%%  %s%n",
+                    p.name, p.wall, p.urls / p.wall, p.bytes / (1024.0 * 1024.0) / p.wall,
+                    millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                    perUrl, hitRate * 100, p.kinds);
+            json.beginObject()
+                    .field("name", p.name).field("urls", p.urls).field("ok", p.ok())
+                    .field("wallSeconds", p.wall).field("urlsPerSecond", p.urls / p.wall)
+                    .field("bytes", p.bytes).field("bytesServed", p.served)
+                    .field("p50Millis", millis(percentile(sorted, 0.50)))
+                    .field("p99Millis", millis(percentile(sorted, 0.99)))
+                    .field("serverRequests", p.requests).field("requestsPerUrl", perUrl)
+                    .field("cacheHitRate", hitRate)
+                    .endObject();
+        }
+        json.endArray();
+        if (passes.size() == 4) {
+            double retryCost = passes.get(2).wall - passes.get(0).wall;
+            System.out.printf(Locale.ROOT, "цена сбоев (холодный проход): %+.2f с, лишних запросов: %d; "
+                            + "тёплый/холодный: %.1fx и %.1fx%n",
+                    retryCost, passes.get(2).requests - passes.get(2).urls,
+                    passes.get(0).wall / passes.get(1).wall, passes.get(2).wall / passes.get(3).wall);
+            json.field("faultCostSeconds", retryCost);
+        }
+        json.endObject();
+        System.out.println(json.toString().replaceAll("\\s*\\n\\s*", " "));
+    }
+
+    // ========== ДАННЫЕ ==========
+    private long synthesize(Path files) throws IOException {
+        Random rnd = new Random(faults.seed);
+        long total = 0;
+        for (int k = 1; k <= images; k++) {
+            BufferedImage img = new BufferedImage(imageW, imageH, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+            g.setPaint(new GradientPaint(0, 0, new Color(rnd.nextInt(0xffffff)), imageW, imageH, new Color(rnd.nextInt(0xffffff))));
+            g.fillRect(0, 0, imageW, imageH);
+            g.dispose();
+            // шум, чтобы PNG не сжимался до пары килобайт
+            for (int i = 0; i < imageW * imageH / 8; i++) {
+                int x = rnd.nextInt(imageW), y = rnd.nextInt(imageH);
+                img.setRGB(x, y, img.getRGB(x, y) ^ rnd.nextInt(0x0f0f0f));
+            }
+            Path f = files.resolve("img_" + k + ".png");
+            ImageIO.write(img, "png", f.toFile());
+            total += Files.size(f);
+        }
+        return total;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int idx = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, idx)));
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String mb(long bytes) {
+        return String.format(Locale.ROOT, "%.1f МБ", bytes / (1024.0 * 1024.0));
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package kinet.smaug;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.poi.ooxml.POIXMLDocument;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.ContentTypes;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.openxml4j.opc.ZipPackagePart;
+import org.apache.poi.openxml4j.opc.internal.PartMarshaller;
+import org.apache.poi.openxml4j.opc.internal.ZipHelper;
+import org.apache.poi.openxml4j.opc.internal.marshallers.ZipPartMarshaller;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Запись OOXML-пакета вместо {@code ppt.write(os)}.
+ * <p>
+ * POI сжимает все части одним Deflater'ом в одном потоке, включая PNG/JPEG,
+ * которые уже сжаты. Здесь медиа кладётся как STORED (или с заданным уровнем),
+ * а XML-части сжимаются параллельно; порядок записей в zip сохраняется.
+ * <p>
+ * Работает через то, что {@code ZipPackage.saveImpl} использует переданный
+ * {@link ZipArchiveOutputStream} как есть: мы перехватываем записи, а в
+ * настоящий архив пишем уже готовые (raw) данные.
+ * <p>
+ * Локальные картинки можно не читать в кучу: в пакет кладётся короткая
+ * заглушка ({@link #placeholder()}), часть привязывается к файлу через
+ * {@link #linkFile}, и при записи байты копируются из файла прямо в zip.
+ * Привязки живут в таблице писателя (пакет → имя части), а не в данных части:
+ * путь не попадает ни в чей поток, но и развернуть заглушку умеет только эта
+ * запись. Обычный {@code ppt.write}, рендереры и размеры картинки POI видят
+ * заглушку — колоду с привязанными частями пишет только {@code PackageWriter},
+ * а превью ищет файлы через {@link #linkedFile}.
+ * <p>
+ * При обновлении колоды части, которые пришли из прежнего файла и не менялись
+ * (картинки и прочие не-XML части), переносятся из него сжатыми байтами, без
+ * распаковки: см. {@link #write(POIXMLDocument, OutputStream, Path)}.
+ */
+final class PackageWriter {
+
+    /** Уровень "без сжатия": запись STORED. */
+    static final int STORED = 0;
+
+    static final PackageWriter DEFAULT = new PackageWriter(Deflater.DEFAULT_COMPRESSION, STORED);
+
+    private static final String PLACEHOLDER_PREFIX = "PC-FILEREF\n";
+    private static final AtomicLong PLACEHOLDERS = new AtomicLong();
+
+    // пакет → имя части → файл; пакет держится слабо и уходит вместе с колодой
+    private static final Map<OPCPackage, Map<String, Path>> LINKED_FILES =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    // расширения частей, которые уже сжаты (или почти не сжимаются)
+    private static final Set<String> MEDIA_EXT = Set.of(
+            "png", "jpg", "jpeg", "jpe", "gif", "webp", "tif", "tiff", "wdp", "jxr",
+            "mp3", "mp4", "m4a", "m4v", "mov", "avi", "wmv", "wma", "zip"
+    );
+
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+    private final int xmlLevel;
+    private final int mediaLevel;
+    private final Executor compressPool;
+
+    PackageWriter(int xmlLevel, int mediaLevel) {
+        this(xmlLevel, mediaLevel, ForkJoinPool.commonPool());
+    }
+
+    PackageWriter(int xmlLevel, int mediaLevel, Executor compressPool) {
+        this.xmlLevel = xmlLevel;
+        this.mediaLevel = mediaLevel;
+        this.compressPool = compressPool;
+    }
+
+    /** Пишет документ в {@code out}; сам поток не закрывается. */
+    void write(POIXMLDocument doc, OutputStream out) throws IOException {
+        write(doc, out, null);
+    }
+
+    /**
+     * Как {@link #write(POIXMLDocument, OutputStream)}; части, которые документ
+     * прочитал из {@code source} и не трогал, кладутся в архив сжатыми байтами
+     * исходной записи ({@code addRawArchiveEntry}): POI их не распаковывает, в куче
+     * они не буферизуются и заново не сжимаются. XML-части POI при сохранении
+     * сериализует заново в любом случае. {@code source} — null: обычная запись.
+     */
+    void write(POIXMLDocument doc, OutputStream out, Path source) throws IOException {
+        GenerationEvents.PackageWrite event = new GenerationEvents.PackageWrite();
+        event.begin();
+        OPCPackage pkg = doc.getPackage();
+        Set<String> copyTypes = copiedContentTypes(pkg, source != null);
+        try (ZipFile from = source == null ? null : ZipFile.builder().setPath(source).get();
+             PartCapturingStream zos = new PartCapturingStream(out, from)) {
+            // маршаллеры ставятся только на время записи: обычный ppt.write их не увидит
+            for (String type : copyTypes) pkg.addMarshaller(type, PART_COPY);
+            try {
+                doc.write(zos);
+            } finally {
+                for (String type : copyTypes) pkg.removeMarshaller(type);
+            }
+            zos.finish();
+            event.parts = zos.parts;
+            event.fileParts = zos.fileParts;
+            event.copiedParts = zos.copiedParts;
+            event.rawBytes = zos.rawBytes;
+            event.writtenBytes = zos.target.getBytesWritten();
+        }
+        event.commit();
+    }
+
+    /**
+     * Пишет документ во временный файл рядом с {@code target} и атомарно подменяет
+     * им {@code target}: сбой посреди записи не оставляет обрезанной колоды.
+     */
+    void writeAtomically(POIXMLDocument doc, Path target) throws IOException {
+        Path tmp = tempSibling(target);
+        try {
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                write(doc, os);
+            }
+            replace(tmp, target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Временный файл в том же каталоге (перенос в пределах одной ФС). */
+    static Path tempSibling(Path target) {
+        return target.resolveSibling(target.getFileName() + "." + ProcessHandle.current().pid()
+                + "-" + Thread.currentThread().threadId() + ".tmp");
+    }
+
+    /** Атомарно ставит {@code tmp} на место {@code target}. */
+    static void replace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Содержимое новой части-заглушки. Каждая заглушка уникальна: одинаковые POI
+     * склеил бы в одну часть по контрольной сумме.
+     */
+    static byte[] placeholder() {
+        return (PLACEHOLDER_PREFIX + PLACEHOLDERS.incrementAndGet()).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** При записи вместо данных {@code part} в zip пойдут байты {@code file}. */
+    static void linkFile(PackagePart part, Path file) {
+        LINKED_FILES.computeIfAbsent(part.getPackage(), k -> new ConcurrentHashMap<>())
+                .put(part.getPartName().getName(), file.toAbsolutePath().normalize());
+    }
+
+    /** Файл, к которому привязана часть, или null. */
+    static Path linkedFile(PackagePart part) {
+        Map<String, Path> files = LINKED_FILES.get(part.getPackage());
+        return files == null ? null : files.get(part.getPartName().getName());
+    }
+
+    // типы частей, привязанных к файлам, и (withSource) ещё лежащих в исходном zip;
+    // свойства ядра POI пишет своим маршаллером
+    private static Set<String> copiedContentTypes(OPCPackage pkg, boolean withSource) throws IOException {
+        Map<String, Path> files = LINKED_FILES.getOrDefault(pkg, Map.of());
+        Set<String> types = new HashSet<>();
+        try {
+            for (PackagePart part : pkg.getParts()) {
+                if (part.isRelationshipPart()) continue;
+                if (files.containsKey(part.getPartName().getName())
+                        || withSource && part instanceof ZipPackagePart) {
+                    types.add(part.getContentType());
+                }
+            }
+        } catch (InvalidFormatException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        types.remove(ContentTypes.CORE_PROPERTIES_PART);
+        return types;
+    }
+
+    // часть, привязанная к файлу, — байтами файла; часть из исходного zip, которую
+    // документ не менял, — ссылкой на её запись; всё остальное (и новые части тех же
+    // типов) — обычным маршаллером POI
+    private static final PartMarshaller PART_COPY = new PartMarshaller() {
+        private final PartMarshaller zip = new ZipPartMarshaller();
+
+        @Override
+        public boolean marshall(PackagePart part, OutputStream os) throws OpenXML4JException {
+            if (!(os instanceof PartCapturingStream zos)) return zip.marshall(part, os);
+            Path file = linkedFile(part);
+            boolean copied = file != null
+                    ? zos.copyFile(ZipHelper.getZipItemNameFromOPCName(part.getPartName().getName()), file)
+                    : part instanceof ZipPackagePart zp && zos.copyRaw(zp.getZipArchive().getName());
+            if (!copied) return zip.marshall(part, os);
+            return !part.hasRelationships() || ZipPartMarshaller.marshallRelationshipPart(part.getRelationships(),
+                    PackagingURIHelper.getRelationshipPartName(part.getPartName()), zos);
+        }
+    };
+
+    static boolean isMediaPart(String zipName) {
+        int dot = zipName.lastIndexOf('.');
+        if (dot < 0) return false;
+        return MEDIA_EXT.contains(zipName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // ========== ПЕРЕХВАТ ЗАПИСЕЙ ==========
+
+    private static final class Pending {
+        final ZipArchiveEntry entry;
+        final CompletableFuture<byte[]> raw;
+        final Path source;            // не null — данные берутся из файла
+        final ZipArchiveEntry copied; // не null — сжатые байты записи исходного zip
+
+        Pending(ZipArchiveEntry entry, CompletableFuture<byte[]> raw, Path source, ZipArchiveEntry copied) {
+            this.entry = entry;
+            this.raw = raw;
+            this.source = source;
+            this.copied = copied;
+        }
+    }
+
+    private final class PartCapturingStream extends ZipArchiveOutputStream {
+        private final ZipArchiveOutputStream target;
+        private final ZipFile from;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(64 * 1024);
+        private ZipArchiveEntry current;
+        private boolean done;
+        int parts;
+        int fileParts;
+        int copiedParts;
+        long rawBytes;
+
+        PartCapturingStream(OutputStream out, ZipFile from) {
+            super(OutputStream.nullOutputStream());
+            this.target = new ZipArchiveOutputStream(CloseShieldOutputStream.wrap(out));
+            this.from = from;
+        }
+
+        // часть целиком из файла; false — запись уже открыта
+        boolean copyFile(String name, Path file) throws OpenXML4JException {
+            if (current != null) return false;
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            parts++;
+            fileParts++;
+            queue.add(new Pending(entry, null, file, null));
+            try {
+                drain(false);
+            } catch (IOException e) {
+                throw new OpenXML4JException("Не удалось скопировать " + file + ": " + e.getMessage());
+            }
+            return true;
+        }
+
+        // запись исходного zip как есть; false — такой там нет
+        boolean copyRaw(String name) {
+            ZipArchiveEntry src = from == null ? null : from.getEntry(name);
+            if (src == null || current != null) return false;
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(src.getTime());
+            entry.setMethod(src.getMethod());
+            entry.setCrc(src.getCrc());
+            entry.setSize(src.getSize());
+            entry.setCompressedSize(src.getCompressedSize());
+            parts++;
+            copiedParts++;
+            queue.add(new Pending(entry, null, null, src));
+            return true;
+        }
+
+        @Override
+        public void putArchiveEntry(ZipArchiveEntry entry) throws IOException {
+            if (current != null) throw new IOException("Предыдущая запись не закрыта: " + current.getName());
+            current = entry;
+            buf.reset();
+        }
+
+        @Override
+        public void write(int b) {
+            buf.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.write(b, off, len);
+        }
+
+        @Override
+        public void closeArchiveEntry() throws IOException {
+            if (current == null) throw new IOException("Нет открытой записи");
+            byte[] data = buf.toByteArray();
+            ZipArchiveEntry entry = new ZipArchiveEntry(current.getName());
+            entry.setTime(current.getTime());
+            current = null;
+            parts++;
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setCrc(crc.getValue());
+            entry.setSize(data.length);
+            rawBytes += data.length;
+
+            int level = isMediaPart(entry.getName()) ? mediaLevel : xmlLevel;
+            CompletableFuture<byte[]> raw;
+            if (level == STORED) {
+                entry.setMethod(ZipEntry.STORED);
+                raw = CompletableFuture.completedFuture(data);
+            } else {
+                entry.setMethod(ZipEntry.DEFLATED);
+                raw = CompletableFuture.supplyAsync(() -> deflateRaw(data, level), compressPool);
+            }
+            queue.add(new Pending(entry, raw, null, null));
+            drain(false);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (done) return;
+            if (current != null) throw new IOException("Запись не закрыта: " + current.getName());
+            drain(true);
+            target.finish();
+            done = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                target.close();
+                super.close();
+            }
+        }
+
+        // пишем готовые записи по порядку; при flushAll ждём оставшиеся
+        private void drain(boolean flushAll) throws IOException {
+            while (!queue.isEmpty()) {
+                Pending head = queue.peek();
+                if (head.source != null) {
+                    copyFileEntry(head.entry, head.source);
+                    queue.poll();
+                    continue;
+                }
+                if (head.copied != null) {
+                    try (InputStream in = from.getRawInputStream(head.copied)) {
+                        target.addRawArchiveEntry(head.entry, in);
+                    }
+                    queue.poll();
+                    continue;
+                }
+                if (!flushAll && !head.raw.isDone()) return;
+                byte[] raw;
+                try {
+                    raw = head.raw.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Прервано при сжатии " + head.entry.getName(), e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Ошибка сжатия " + head.entry.getName(), e.getCause());
+                }
+                head.entry.setCompressedSize(raw.length);
+                target.addRawArchiveEntry(head.entry, new ByteArrayInputStream(raw));
+                queue.poll();
+            }
+        }
+
+        // CRC считаем по отображённому в память файлу, затем копируем канал в zip:
+        // на куче только буфер копирования
+        private void copyFileEntry(ZipArchiveEntry entry, Path source) throws IOException {
+            try (FileChannel ch = FileChannel.open(source, StandardOpenOption.READ)) {
+                long size = ch.size();
+                CRC32 crc = new CRC32();
+                for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                    crc.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos)));
+                }
+                entry.setCrc(crc.getValue());
+                entry.setSize(size);
+                entry.setCompressedSize(size);
+                rawBytes += size;
+                ch.position(0);
+                target.addRawArchiveEntry(entry, Channels.newInputStream(ch));
+            }
+        }
+    }
+
+    private static byte[] deflateRaw(byte[] data, int level) {
+        Deflater d = new Deflater(level, true);
+        try {
+            d.setInput(data);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+            byte[] chunk = new byte[16 * 1024];
+            while (!d.finished()) {
+                int n = d.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package kinet.smaug;
+
+import org.apache.poi.sl.usermodel.PictureData;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFPictureData;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Картинки одной колоды: каждый файл становится одной частью пакета, сколько бы
+ * слайдов на него ни ссылалось, и его заголовок читается один раз.
+ * <p>
+ * Совпадение ищется по пути, затем по идентичности файла (inode: жёсткие и
+ * символические ссылки), затем по содержимому. SHA-256 считается только для
+ * файлов, у которых в колоде есть ровесник по размеру, — копии с разными
+ * именами тоже сливаются в одну часть, а уникальные картинки не читаются лишний раз.
+ * Не потокобезопасен: колода собирается одним потоком.
+ */
+final class PictureRegistry {
+
+    /** Часть пакета и размеры картинки (null — ImageIO не прочитал заголовок). */
+    static final class Picture {
+        final XSLFPictureData data;
+        private final Path file;
+        private final long bytes;
+        private Dimension size;
+        private boolean measured;
+        private String hash;
+
+        private Picture(XSLFPictureData data, Path file, long bytes) {
+            this.data = data;
+            this.file = file;
+            this.bytes = bytes;
+        }
+
+        Dimension size() {
+            if (!measured) {
+                size = readSize(file);
+                measured = true;
+            }
+            return size;
+        }
+    }
+
+    private final XMLSlideShow ppt;
+    private final Map<Path, Picture> byPath = new HashMap<>();
+    private final Map<Object, Picture> byFile = new HashMap<>();     // fileKey или реальный путь
+    private final Map<Long, List<Picture>> bySize = new HashMap<>();
+    private final Map<String, Picture> byHash = new HashMap<>();
+
+    private int uses, parts, samePath, sameFile, sameContent, hashed;
+    private long bytesSaved;
+
+    PictureRegistry(XMLSlideShow ppt) {
+        this.ppt = ppt;
+    }
+
+    /** Часть для файла: уже зарегистрированная или новая (байты скопирует PackageWriter). */
+    Picture get(Path file) throws IOException {
+        uses++;
+        Path path = file.toAbsolutePath().normalize();
+        Picture pic = byPath.get(path);
+        if (pic != null) {
+            samePath++;
+            return pic;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Object key = fileKey(path, attrs);
+        String hash = null;
+        pic = byFile.get(key);
+        if (pic != null) {
+            sameFile++;
+        } else {
+            hash = contentHash(path, attrs.size());
+            pic = hash == null ? null : byHash.get(hash);
+            if (pic != null) sameContent++;
+        }
+        if (pic != null) {
+            bytesSaved += pic.bytes;
+        } else {
+            XSLFPictureData data = ppt.addPicture(PackageWriter.placeholder(), pictureType(path));
+            PackageWriter.linkFile(data.getPackagePart(), path);
+            pic = new Picture(data, path, attrs.size());
+            parts++;
+            // хеш уже посчитан: следующий ровесник по размеру не будет читать этот файл снова
+            pic.hash = hash;
+            if (hash != null) byHash.putIfAbsent(hash, pic);
+            bySize.computeIfAbsent(attrs.size(), k -> new ArrayList<>()).add(pic);
+        }
+        byPath.put(path, pic);
+        byFile.putIfAbsent(key, pic);
+        return pic;
+    }
+
+    /** Часть, уже лежащая в колоде (режим обновления), для файла, который не менялся. */
+    void adopt(Path file, XSLFPictureData data) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        if (byPath.containsKey(path)) return;
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Picture pic = new Picture(data, path, attrs.size());
+        byPath.put(path, pic);
+        byFile.putIfAbsent(fileKey(path, attrs), pic);
+        bySize.computeIfAbsent(attrs.size(), k -> new ArrayList<>()).add(pic);
+    }
+
+    int uses() {
+        return uses;
+    }
+
+    /** Новых частей; повторно использованные не считаются. */
+    int parts() {
+        return parts;
+    }
+
+    int reuses() {
+        return samePath + sameFile + sameContent;
+    }
+
+    /**
+     * Байт, которые без реестра легли бы в пакет ещё раз: тот же файл под другим
+     * путём или копия с тем же содержимым. Повтор того же пути не считается.
+     */
+    long bytesSaved() {
+        return bytesSaved;
+    }
+
+    String summary() {
+        return String.format(Locale.ROOT,
+                "картинок на слайдах %d, новых частей %d, повторов %d (путь %d, тот же файл %d, то же содержимое %d),"
+                        + " хешировано %d, экономия %.1f МБ",
+                uses, parts, reuses(), samePath, sameFile, sameContent, hashed, bytesSaved / 1048576.0);
+    }
+
+    // ========== ПОИСК ==========
+
+    private static Object fileKey(Path path, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();   // null там, где ФС его не даёт (Windows)
+        return key != null ? key : path.toRealPath();
+    }
+
+    // SHA-256 файла или null, если ровесников по размеру нет; заодно хешируются
+    // ровесники, которых ещё не хешировали, — каждый файл не больше одного раза
+    private String contentHash(Path path, long size) throws IOException {
+        List<Picture> peers = bySize.get(size);
+        if (peers == null) return null;
+        for (Picture p : peers) {
+            if (p.hash == null) {
+                p.hash = sha256(p.file);
+                byHash.putIfAbsent(p.hash, p);
+            }
+        }
+        return sha256(path);
+    }
+
+    private String sha256(Path file) throws IOException {
+        hashed++;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n; (n = in.read(buf)) > 0; ) md.update(buf, 0, n);
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    // ========== ФАЙЛЫ ==========
+
+    // размеры из заголовка файла, без декодирования пикселей
+    static Dimension readSize(Path p) {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(p.toFile())) {
+            if (iis == null) return null;
+            Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+            if (!it.hasNext()) return null;
+            ImageReader reader = it.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static PictureData.PictureType pictureType(Path p) {
+        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (n.endsWith(".png")) return PictureData.PictureType.PNG;
+        if (n.endsWith(".jpg") || n.endsWith(".jpeg")) return PictureData.PictureType.JPEG;
+        if (n.endsWith(".gif")) return PictureData.PictureType.GIF;
+        return PictureData.PictureType.PNG;
+    }
+}
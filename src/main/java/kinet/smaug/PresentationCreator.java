@@ -1,23 +1,37 @@
 package kinet.smaug;
 
-import org.apache.poi.sl.usermodel.PictureData;
+import org.apache.poi.ooxml.POIXMLProperties;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.sl.usermodel.ShapeType;
 import org.apache.poi.sl.usermodel.TextParagraph;
 import org.apache.poi.sl.usermodel.VerticalAlignment;
 import org.apache.poi.xslf.usermodel.*;
+import org.openxmlformats.schemas.officeDocument.x2006.customProperties.CTProperty;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -32,6 +46,11 @@ public final class PresentationCreator {
 
     // === Конфиг ===
     private static final String DATA_DIR = "data";
+    private static final String OUT_DIR = "out";
+    private static final String LEASE_DIR = ".leases";           // в out/, общий для узлов --distributed
+    private static final String BATCH_REPORT = "report.json";
+    private static final String LINK_CACHE = ".links.cache";      // в out/: итоги проверки ссылок между запусками
+    private static final Duration LINK_BUDGET = Duration.ofSeconds(60); // на все ссылки одной колоды
     private static final String DEFAULT_TEXT_FILE = "text.txt";
     private static final String OPTIONAL_SOURCES_FILE = "sources.txt";
     private static final String OPTIONAL_TEMPLATE = "templates/modern.pptx"; // если файл есть — используем, иначе чистый pptx
@@ -54,14 +73,123 @@ public final class PresentationCreator {
     private static final double LEFT_COL_RATIO = 0.52; // текст ~52% ширины
     private static final double TITLE_TOP    = 24;
 
-    private PresentationCreator() {}
+    // пользовательские свойства в out/*.pptx для режима --update
+    private static final int DECK_FORMAT = 1; // менять при изменении вёрстки слайдов — старые колоды пересоберутся целиком
+    private static final String PROP_FORMAT = "pc.format";
+    private static final String PROP_SLIDE_HASH = "pc.slide.hash.";
+    private static final String PROP_SLIDE_IMG = "pc.slide.img.";
+    private static final String PROP_SOURCES_HASH = "pc.sources.hash";
+
+    // оценка ресурсов колоды для планировщика (эмпирические коэффициенты)
+    private static final long DECK_BASE_HEAP   = 48L << 20;  // POI + XMLBeans на одну колоду
+    private static final long TEXT_HEAP_FACTOR = 400;        // байт кучи на байт text.txt (DOM слайдов)
+    private static final long DECK_BASE_COST   = 4L << 20;   // фиксированная часть, в "байтах работы"
+    private static final long IMAGE_COST       = 256L << 10; // заголовок, CRC, копирование в zip
+    private static final long TEXT_COST        = 64;
+
+    // приблизительная метрика Calibri для --plan
+    private static final double PLAN_CHAR_W_K = 0.5;  // средняя ширина символа в долях кегля
+    private static final double PLAN_LINE_H_K = 1.2;
+    private static final long PLAN_PPTX_BASE_BYTES = 40_000;
+    private static final long PLAN_SLIDE_XML_BYTES = 3_000;
+
+    private final Options options;
+    private final Queue<Long> deckNanos = new ConcurrentLinkedQueue<>(); // время сборки каждой колоды
+    private LinkChecker links;   // --check-links, общий для всех колод запуска
+    private final AtomicLong pictureBytesSaved = new AtomicLong();  // за запуск: повторы картинок, не легшие в пакеты
+    private final long runSeed = System.currentTimeMillis();        // порядок картинок: один на папку за запуск
+
+    PresentationCreator(Options options) {
+        this.options = options;
+    }
 
     public static void main(String[] args) {
-        new PresentationCreator().run();
+        new PresentationCreator(Options.parse(args)).run();
+    }
+
+    // ---------- Параметры запуска ----------
+    static final class Options {
+        boolean update;   // --update: в существующем out/*.pptx заменить только изменившиеся слайды
+        boolean plan;     // --plan: только оценка (JSON в stdout), без POI и без записи
+        int jobs = Runtime.getRuntime().availableProcessors();     // --jobs N
+        long heapBudget = (long) (Runtime.getRuntime().maxMemory() * 0.7); // --heap-budget-mb M
+        int previewWidth;        // --preview / --preview-width N: PNG-превью слайдов, 0 — без превью
+        boolean previewSheet;    // --preview-sheet: одна сетка вместо отдельных файлов
+        Path dataDir = Paths.get(DATA_DIR);   // --data DIR
+        Path outDir = Paths.get(OUT_DIR);     // --out DIR
+        boolean distributed;     // --distributed: несколько процессов делят data/ через аренды
+        String nodeId;           // --node-id ID, по умолчанию хост-pid
+        Duration leaseTtl = Duration.ofSeconds(60);  // --lease-ttl SEC: без heartbeat дольше — аренду забирают
+        Path leaseDir;           // --lease-dir DIR, по умолчанию out/.leases
+        boolean fresh;           // --fresh: новый пакет, журнал готовых папок не учитывается
+        boolean checkLinks;      // --check-links: проверить ссылки слайда «Источники», мёртвые пометить
+        boolean dropDeadLinks;   // --drop-dead-links: мёртвые убрать (включает проверку)
+        Duration linkTtl = Duration.ofHours(24);     // --link-ttl-h H: сколько верить кэшу проверок
+        boolean chunk;           // --chunk: text.txt длиннее 20 блоков — колоды <имя>-001…, а не обрезка
+
+        private static final String USAGE =
+                "Использование: PresentationCreator [--update | --plan] [--fresh] [--chunk] [--jobs N] [--heap-budget-mb M] [--data DIR] [--out DIR]"
+                        + " [--preview | --preview-sheet] [--preview-width N]"
+                        + " [--check-links | --drop-dead-links] [--link-ttl-h H]"
+                        + " [--distributed [--node-id ID] [--lease-ttl SEC] [--lease-dir DIR]]";
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                switch (a) {
+                    case "--update" -> o.update = true;
+                    case "--plan" -> o.plan = true;
+                    case "--fresh" -> o.fresh = true;
+                    case "--chunk" -> o.chunk = true;
+                    case "--jobs" -> o.jobs = Math.max(1, intArg(args, ++i, a));
+                    case "--heap-budget-mb" -> o.heapBudget = Math.max(1, intArg(args, ++i, a)) * (1L << 20);
+                    case "--data" -> o.dataDir = Paths.get(stringArg(args, ++i, a));
+                    case "--out" -> o.outDir = Paths.get(stringArg(args, ++i, a));
+                    case "--distributed" -> o.distributed = true;
+                    case "--node-id" -> o.nodeId = stringArg(args, ++i, a);
+                    case "--lease-ttl" -> o.leaseTtl = Duration.ofSeconds(Math.max(1, intArg(args, ++i, a)));
+                    case "--lease-dir" -> o.leaseDir = Paths.get(stringArg(args, ++i, a));
+                    case "--check-links" -> o.checkLinks = true;
+                    case "--drop-dead-links" -> o.checkLinks = o.dropDeadLinks = true;
+                    case "--link-ttl-h" -> o.linkTtl = Duration.ofHours(Math.max(0, intArg(args, ++i, a)));
+                    case "--preview" -> o.previewWidth = Math.max(o.previewWidth, SlidePreview.DEFAULT_WIDTH);
+                    case "--preview-width" -> o.previewWidth = Math.max(16, intArg(args, ++i, a));
+                    case "--preview-sheet" -> {
+                        o.previewSheet = true;
+                        o.previewWidth = Math.max(o.previewWidth, SlidePreview.DEFAULT_WIDTH);
+                    }
+                    default -> fatal("Неизвестный аргумент: " + a + "\n" + USAGE);
+                }
+            }
+            return o;
+        }
+
+        private static String stringArg(String[] args, int i, String name) {
+            if (i >= args.length) fatal("Нет значения для " + name + "\n" + USAGE);
+            return args[i];
+        }
+
+        private static int intArg(String[] args, int i, String name) {
+            if (i >= args.length) fatal("Нет значения для " + name + "\n" + USAGE);
+            try {
+                return Integer.parseInt(args[i]);
+            } catch (NumberFormatException e) {
+                fatal("Ожидалось число для " + name + ": " + args[i]);
+                return 0;
+            }
+        }
     }
 
-    private void run() {
-        final Path dataRoot = Paths.get(DATA_DIR).toAbsolutePath().normalize();
+    /** Время сборки каждой колоды последнего запуска, нс (для замеров). */
+    List<Long> deckLatencies() {
+        return new ArrayList<>(deckNanos);
+    }
+
+    void run() {
+        deckNanos.clear();
+        pictureBytesSaved.set(0);
+        final Path dataRoot = options.dataDir.toAbsolutePath().normalize();
         ensureDir(dataRoot, "data root");
 
         List<Path> dirs;
@@ -80,13 +208,322 @@ public final class PresentationCreator {
             return;
         }
 
+        if (options.plan) {
+            printPlan(dirs);
+            return;
+        }
+
         System.out.println("Найдено папок: " + dirs.size());
+
+        if (options.checkLinks) links = new LinkChecker(options.outDir.resolve(LINK_CACHE), options.linkTtl);
+        try {
+            if (options.distributed) {
+                try {
+                    runDistributed(dirs);
+                } catch (IOException e) {
+                    fatal("Ошибка распределённого режима: " + e.getMessage(), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fatal("Прервано");
+                }
+            } else {
+                runLocal(dirs);
+            }
+        } finally {
+            if (links != null) {
+                System.out.printf(Locale.ROOT, "Ссылки: проверено по сети %d, в кэше %d%n",
+                        links.checkedCount(), links.cachedCount());
+                links.close();
+                links = null;
+            }
+        }
+    }
+
+    private void runLocal(List<Path> dirs) {
+        ProgressJournal journal;
+        try {
+            journal = new ProgressJournal(options.outDir.resolve(ProgressJournal.FILE), options.fresh);
+        } catch (IOException e) {
+            fatal("Не удалось открыть журнал пакета: " + e.getMessage(), e);
+            return;
+        }
+
+        removeOrphanTemps(options.outDir);
+
+        // готовые по журналу папки (вход не менялся, все колоды на месте) не пересобираются;
+        // части одной папки (--chunk) — отдельные задания и собираются параллельно
+        Map<Path, FolderProgress> folders = new HashMap<>();
+        List<DeckScheduler.Job<DeckPart>> jobs = new ArrayList<>(dirs.size());
+        int skipped = 0;
+        for (Path dir : dirs) {
+            String name = sanitizeName(dir.getFileName().toString());
+            String fp = inputFingerprint(dir);
+            List<DeckPart> parts = splitParts(dir);
+            if (journal.isDone(name, fp) && parts.stream()
+                    .allMatch(p -> Files.isRegularFile(options.outDir.resolve(p.name(name) + ".pptx")))) {
+                skipped++;
+                continue;
+            }
+            folders.put(dir, new FolderProgress(name, fp, parts.size()));
+            for (DeckPart p : parts) {
+                DeckScheduler.Job<DeckPart> job = estimate(p);
+                System.out.printf(Locale.ROOT, "[%s] оценка кучи %d МБ%n", job.name, job.heapBytes >> 20);
+                jobs.add(job);
+            }
+        }
+        if (skipped > 0) System.out.println("Уже готово по журналу: " + skipped + " (заново — --fresh)");
+        System.out.printf(Locale.ROOT, "Потоков: %d, бюджет кучи: %d МБ%n", options.jobs, options.heapBudget >> 20);
+
+        long t0 = System.nanoTime();
+        try (journal) {
+            new DeckScheduler<DeckPart>(options.jobs, options.heapBudget).run(jobs, job -> {
+                long started = System.nanoTime();
+                GenerationEvents.Deck event = buildTimed(job.item);
+                FolderProgress folder = folders.get(job.item.dir);
+                folder.millis.addAndGet((System.nanoTime() - started) / 1_000_000);
+                if (!event.ok) folder.failed = true;
+                // папка готова, когда собраны все её части; неудачные пробуются снова при следующем запуске
+                if (folder.left.decrementAndGet() > 0 || folder.failed) return;
+                try {
+                    journal.record(folder.name, folder.fingerprint, folder.millis.get());
+                } catch (IOException e) {
+                    System.err.println("Журнал: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Журнал: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fatal("Прервано");
+        }
+        System.out.printf(Locale.ROOT, "Всего: %d папок (%d колод) за %.1f с, повторы картинок сэкономили %.1f МБ%n",
+                folders.size(), jobs.size(), (System.nanoTime() - t0) / 1e9, pictureBytesSaved.get() / 1048576.0);
+    }
+
+    // сколько частей папки ещё собирается; в журнал папка попадает после последней
+    private static final class FolderProgress {
+        final String name;
+        final String fingerprint;
+        final AtomicInteger left;
+        final AtomicLong millis = new AtomicLong();
+        volatile boolean failed;
+
+        FolderProgress(String name, String fingerprint, int parts) {
+            this.name = name;
+            this.fingerprint = fingerprint;
+            this.left = new AtomicInteger(parts);
+        }
+    }
+
+    // недописанные колоды процессов, убитых посреди записи (pid в имени уже не живёт);
+    // в --distributed не трогаем: pid с другого узла здесь ничего не значит
+    private static void removeOrphanTemps(Path outDir) {
+        Pattern tmp = Pattern.compile(".+\\.pptx\\.(\\d+)-\\d+\\.tmp");
+        try (var files = Files.list(outDir)) {
+            for (Path p : files.toList()) {
+                Matcher m = tmp.matcher(p.getFileName().toString());
+                if (m.matches() && ProcessHandle.of(Long.parseLong(m.group(1))).isEmpty()) Files.deleteIfExists(p);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Не удалось убрать временные файлы: " + e.getMessage());
+        }
+    }
+
+    // всё, от чего зависит колода: формат вёрстки, шаблон, тексты (по содержимому),
+    // картинки (имя, размер, время изменения) и параметры превью
+    private String inputFingerprint(Path folder) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(DECK_FORMAT).append('|').append(options.previewWidth).append('|').append(options.previewSheet)
+                .append('|').append(options.checkLinks).append(options.dropDeadLinks).append(options.chunk);
+        Path template = Paths.get(OPTIONAL_TEMPLATE);
+        if (Files.isRegularFile(template)) sb.append("|tpl:").append(imageFingerprint(template.getParent(), template));
+        for (String f : List.of(DEFAULT_TEXT_FILE, OPTIONAL_SOURCES_FILE)) {
+            try {
+                Path p = folder.resolve(f);
+                sb.append('|').append(f).append(':');
+                if (Files.isRegularFile(p)) sb.append(sha256Hex(Files.readString(p, StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                sb.append("?");
+            }
+        }
+        for (Path img : listImages(folder)) sb.append('|').append(imageFingerprint(folder, img));
+        return sha256Hex(sb.toString());
+    }
+
+    private GenerationEvents.Deck buildTimed(DeckPart part) {
+        long started = System.nanoTime();
+        GenerationEvents.Deck event = new GenerationEvents.Deck();
+        event.begin();
+        try {
+            buildOne(part, event);
+        } finally {
+            deckNanos.add(System.nanoTime() - started);
+            pictureBytesSaved.addAndGet(event.pictureBytesSaved);
+            if (event.shouldCommit()) {
+                event.generator = "pc";
+                event.input = part.parts == 1 ? part.dir.toString() : part.dir + " #" + (part.part + 1);
+                event.commit();
+            }
+        }
+        return event;
+    }
+
+    // ---------- Распределённый режим (--distributed) ----------
+
+    /**
+     * Папки (с --chunk — отдельные части) раздаются через аренды в общем каталоге ({@link LeaseBoard}): каждый
+     * процесс берёт свободные, пока они есть, затем ждёт чужие и забирает те, чей
+     * владелец перестал обновлять аренду. Когда готовы все, любой узел пишет общий
+     * отчёт (последний перезаписывает его тем же содержимым).
+     */
+    private void runDistributed(List<Path> dirs) throws IOException, InterruptedException {
+        Path leaseDir = options.leaseDir != null ? options.leaseDir : options.outDir.resolve(LEASE_DIR);
+        String nodeId = options.nodeId != null ? options.nodeId : LeaseBoard.defaultNodeId();
+        Map<String, DeckPart> byName = new LinkedHashMap<>();
         for (Path dir : dirs) {
-            buildOne(dir);
+            String name = sanitizeName(dir.getFileName().toString());
+            if (name.isEmpty()) continue;
+            for (DeckPart p : splitParts(dir)) byName.putIfAbsent(p.name(name), p);
         }
+        long poll = Math.max(200, Math.min(5_000, options.leaseTtl.toMillis() / 4));
+        System.out.printf(Locale.ROOT, "Узел %s, аренды: %s, TTL %d с%n", nodeId, leaseDir, options.leaseTtl.toSeconds());
+
+        long t0 = System.nanoTime();
+        int built = 0;
+        try (LeaseBoard board = new LeaseBoard(leaseDir, nodeId, options.leaseTtl)) {
+            while (true) {
+                List<DeckScheduler.Job<DeckPart>> ready = new ArrayList<>();
+                int pending = 0;
+                for (Map.Entry<String, DeckPart> e : byName.entrySet()) {
+                    if (board.isDone(e.getKey())) continue;
+                    pending++;
+                    if (board.claimable(e.getKey())) ready.add(estimate(e.getValue()));
+                }
+                if (pending == 0) break;
+                if (ready.isEmpty()) {
+                    Thread.sleep(poll);   // всё оставшееся у живых узлов
+                    continue;
+                }
+                AtomicInteger mine = new AtomicInteger();
+                new DeckScheduler<DeckPart>(options.jobs, options.heapBudget).run(ready, job -> {
+                    if (buildLeased(board, job.item)) mine.incrementAndGet();
+                });
+                built += mine.get();
+            }
+            System.out.printf(Locale.ROOT, "Узел %s: собрано %d колод за %.1f с, повторы картинок сэкономили %.1f МБ%n",
+                    nodeId, built, (System.nanoTime() - t0) / 1e9, pictureBytesSaved.get() / 1048576.0);
+            writeBatchReport(board.records(), leaseDir.resolve(BATCH_REPORT));
+        }
+    }
+
+    // false — папку (часть) уже взял другой узел
+    private boolean buildLeased(LeaseBoard board, DeckPart part) {
+        String name = part.name(sanitizeName(part.dir.getFileName().toString()));
+        LeaseBoard.Lease lease;
+        try {
+            lease = board.claim(name);
+        } catch (IOException e) {
+            System.err.println("Аренда " + name + ": " + e.getMessage());
+            return false;
+        }
+        if (lease == null) return false;
+        if (lease.stolen) System.out.println("[" + name + "] аренда брошена прежним узлом — забираю");
+
+        long started = System.nanoTime();
+        GenerationEvents.Deck event = null;
+        try {
+            event = buildTimed(part);
+        } finally {
+            // итог пишется и при исключении: иначе папку ждали бы остальные узлы
+            Properties record = new Properties();
+            record.setProperty("ok", Boolean.toString(event != null && event.ok));
+            record.setProperty("millis", Long.toString((System.nanoTime() - started) / 1_000_000));
+            if (event != null && event.output != null) record.setProperty("output", event.output);
+            if (event != null) {
+                record.setProperty("pictureParts", Integer.toString(event.pictureParts));
+                record.setProperty("pictureReuses", Integer.toString(event.pictureReuses));
+                record.setProperty("pictureBytesSaved", Long.toString(event.pictureBytesSaved));
+            }
+            if (lease.lost()) System.err.println("[" + name + "] аренду перехватили во время сборки");
+            try {
+                board.complete(lease, record);
+            } catch (IOException e) {
+                System.err.println("Не удалось записать итог " + name + ": " + e.getMessage());
+            }
+        }
+        return true;
     }
 
-    private void buildOne(Path presFolder) {
+    private static void writeBatchReport(List<Properties> records, Path out) throws IOException {
+        Map<String, int[]> nodes = new TreeMap<>();   // узел → {папок, забрано, ошибок}
+        long bytesSaved = 0;
+        JsonWriter json = new JsonWriter().beginObject()
+                .field("decks", records.size())
+                .name("results").beginArray();
+        for (Properties r : records) {
+            boolean ok = Boolean.parseBoolean(r.getProperty("ok"));
+            boolean stolen = Boolean.parseBoolean(r.getProperty("stolen"));
+            int[] n = nodes.computeIfAbsent(r.getProperty("node", "?"), k -> new int[3]);
+            n[0]++;
+            if (stolen) n[1]++;
+            if (!ok) n[2]++;
+            json.beginObject()
+                    .field("name", r.getProperty("name"))
+                    .field("node", r.getProperty("node", "?"))
+                    .field("ok", ok)
+                    .field("stolen", stolen)
+                    .field("millis", Long.parseLong(r.getProperty("millis", "0")))
+                    .field("output", r.getProperty("output", ""))
+                    .field("pictureParts", Integer.parseInt(r.getProperty("pictureParts", "0")))
+                    .field("pictureReuses", Integer.parseInt(r.getProperty("pictureReuses", "0")))
+                    .field("pictureBytesSaved", Long.parseLong(r.getProperty("pictureBytesSaved", "0")))
+                    .endObject();
+            bytesSaved += Long.parseLong(r.getProperty("pictureBytesSaved", "0"));
+        }
+        json.field("pictureBytesSaved", bytesSaved);
+        json.endArray().name("nodes").beginObject();
+        nodes.forEach((node, n) -> json.name(node).beginObject()
+                .field("decks", n[0]).field("stolen", n[1]).field("failed", n[2]).endObject());
+        json.endObject().endObject();
+
+        Path tmp = PackageWriter.tempSibling(out);
+        Files.writeString(tmp, json.toString(), StandardCharsets.UTF_8);
+        PackageWriter.replace(tmp, out);
+
+        System.out.println("Пакет готов: " + records.size() + " папок → " + out);
+        nodes.forEach((node, n) -> System.out.printf(Locale.ROOT, "  %s: %d (забрано у других: %d, ошибок: %d)%n",
+                node, n[0], n[1], n[2]));
+    }
+
+    // Оценка по размерам файлов, без чтения картинок: порядок запуска и пик кучи
+    private static DeckScheduler.Job<DeckPart> estimate(DeckPart part) {
+        Path dir = part.dir;
+        // часть читает только свои блоки text.txt
+        long textBytes = sizeOrZero(dir.resolve(DEFAULT_TEXT_FILE)) / part.parts + sizeOrZero(dir.resolve(OPTIONAL_SOURCES_FILE));
+        List<Path> images = listImages(dir);
+        long imageBytes = 0, maxImage = 0;
+        for (Path p : images) {
+            long sz = sizeOrZero(p);
+            imageBytes += sz;
+            maxImage = Math.max(maxImage, sz);
+        }
+        long cost = DECK_BASE_COST + imageBytes + images.size() * IMAGE_COST + textBytes * TEXT_COST;
+        // картинки идут в zip потоком (при --update прежние — сжатыми байтами из старого файла);
+        // запас на две картинки — ImageIO читает заголовки, превью декодирует целиком
+        long heap = DECK_BASE_HEAP + textBytes * TEXT_HEAP_FACTOR + 2 * maxImage;
+        return new DeckScheduler.Job<>(part, part.name(dir.getFileName().toString()), cost, heap);
+    }
+
+    private static long sizeOrZero(Path p) {
+        try {
+            return Files.isRegularFile(p) ? Files.size(p) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void buildOne(DeckPart part, GenerationEvents.Deck event) {
+        final Path presFolder = part.dir;
         final String rawName = presFolder.getFileName().toString();
         final String safeName = sanitizeName(rawName);
         if (safeName.isEmpty()) {
@@ -94,71 +531,457 @@ public final class PresentationCreator {
             return;
         }
 
-        final Path outPath = Paths.get("out", safeName + ".pptx");
+        final String deckName = part.name(safeName);
+        final Path outPath = options.outDir.resolve(deckName + ".pptx");
+        event.output = outPath.toString();
         ensureDir(outPath.getParent(), "output dir");
 
-        if (!presFolder.startsWith(Paths.get(DATA_DIR).toAbsolutePath().normalize())) {
+        if (!presFolder.startsWith(options.dataDir.toAbsolutePath().normalize())) {
             System.err.println("Пропуск: вне data/: " + presFolder);
             return;
         }
 
-        // --- читаем текст ---
+        // --- читаем текст: только блоки этой колоды, с её смещения ---
         final Path textFile = presFolder.resolve(DEFAULT_TEXT_FILE);
         if (!Files.isRegularFile(textFile)) {
             System.err.println("Пропуск: нет text.txt в " + presFolder);
             return;
         }
-        final List<String> rawBlocks = readBlocks(textFile);
-        final List<SlideBlock> slides = normalize(parseBlocks(rawBlocks), REQUIRED_BODY_SLIDES);
-
-        // --- источники ---
-        final Set<String> sources = collectSources(slides);
-        final Path sourcesFile = presFolder.resolve(OPTIONAL_SOURCES_FILE);
-        if (Files.isRegularFile(sourcesFile)) {
-            try {
-                Files.lines(sourcesFile, StandardCharsets.UTF_8)
-                        .map(String::trim).filter(s -> !s.isEmpty())
-                        .forEach(sources::add);
-            } catch (IOException e) {
-                System.err.println("Warning: can't read sources.txt: " + e.getMessage());
-            }
+        final List<SlideBlock> blocks = new ArrayList<>(REQUIRED_BODY_SLIDES);
+        try (BlockReader reader = new BlockReader(textFile, part.offset)) {
+            for (SlideBlock b; blocks.size() < REQUIRED_BODY_SLIDES && (b = reader.next()) != null; ) blocks.add(b);
+        } catch (IOException e) {
+            throw new RuntimeException("Read text error: " + e.getMessage(), e);
         }
 
         // --- картинки ---
         List<Path> images = listImages(presFolder);
-        // перемешиваем на каждом запуске (новый порядок), но стабилизируем в пределах папки через hash имени
+        // перемешиваем на каждом запуске (новый порядок), но стабилизируем в пределах папки через hash имени:
+        // у всех частей папки порядок один, и чередование продолжается из части в часть
         if (!images.isEmpty()) {
-            long seed = System.currentTimeMillis() + safeName.hashCode();
+            long seed = runSeed + safeName.hashCode();
             Collections.shuffle(images, new Random(seed));
-            System.out.println("[" + safeName + "] images shuffled (" + images.size() + ")");
+            System.out.println("[" + deckName + "] images shuffled (" + images.size() + ")");
         }
         final List<Path> fallbackImages = images; // может быть пустым
 
+        // обычная колода добивается до ровно 20 слайдов; последняя часть --chunk — только реальные блоки
+        List<SlideBlock> slides = part.parts == 1 ? normalize(blocks, REQUIRED_BODY_SLIDES) : blocks;
+        event.ok = buildPart(presFolder, deckName, outPath, slides, part.firstSlide(), fallbackImages, event);
+    }
+
+    private static int partCount(int blocks) {
+        return Math.max(1, (blocks + REQUIRED_BODY_SLIDES - 1) / REQUIRED_BODY_SLIDES);
+    }
+
+    /** Задание планировщика: папка целиком или (--chunk) одна её часть по 20 блоков. */
+    private static final class DeckPart {
+        final Path dir;
+        final int part;
+        final int parts;      // 1 — обычная колода
+        final long offset;    // байт text.txt, с которого начинаются блоки части
+
+        DeckPart(Path dir, int part, int parts, long offset) {
+            this.dir = dir;
+            this.part = part;
+            this.parts = parts;
+            this.offset = offset;
+        }
+
+        String name(String safeName) {
+            return parts == 1 ? safeName : partName(safeName, part, parts);
+        }
+
+        // номера слайдов и чередование картинок сквозные по всем частям
+        int firstSlide() {
+            return part * REQUIRED_BODY_SLIDES;
+        }
+    }
+
+    // один проход по байтам text.txt без разбора блоков: запоминаем, где начинается каждая часть
+    private List<DeckPart> splitParts(Path dir) {
+        Path textFile = dir.resolve(DEFAULT_TEXT_FILE);
+        if (!options.chunk || !Files.isRegularFile(textFile)) return List.of(new DeckPart(dir, 0, 1, 0));
+        List<Long> starts = new ArrayList<>();
+        int blocks = 0;
+        try (BlockReader reader = new BlockReader(textFile, 0)) {
+            for (; reader.skip(); blocks++) {
+                if (blocks % REQUIRED_BODY_SLIDES == 0) starts.add(reader.blockStart());
+            }
+        } catch (IOException e) {
+            return List.of(new DeckPart(dir, 0, 1, 0));   // ошибку чтения покажет сборка
+        }
+        if (starts.size() <= 1) return List.of(new DeckPart(dir, 0, 1, 0));
+        System.out.println("[" + sanitizeName(dir.getFileName().toString()) + "] блоков " + blocks
+                + " → частей " + starts.size());
+        List<DeckPart> out = new ArrayList<>(starts.size());
+        for (int p = 0; p < starts.size(); p++) out.add(new DeckPart(dir, p, starts.size(), starts.get(p)));
+        return out;
+    }
+
+    // имя-001 … имя-NNN: ширина номера по числу частей, чтобы файлы сортировались по порядку
+    private static String partName(String safeName, int part, int parts) {
+        int width = Math.max(3, Integer.toString(parts).length());
+        return safeName + "-" + String.format(Locale.ROOT, "%0" + width + "d", part + 1);
+    }
+
+    /**
+     * Одна колода: 20 слайдов (последняя часть --chunk — сколько осталось блоков)
+     * и «Источники». {@code offset} — сколько слайдов
+     * было в предыдущих частях (--chunk): с него продолжаются номера слайдов и
+     * чередование картинок папки. true — колода записана или обновлена.
+     */
+    private boolean buildPart(Path presFolder, String safeName, Path outPath, List<SlideBlock> slides, int offset,
+                              List<Path> fallbackImages, GenerationEvents.Deck event) {
+        event.slides += slides.size() + 1; // + «Источники»
+
+        // --- источники ---
+        final Set<String> sources = readSources(presFolder, slides);
+        final Map<String, String> deadLinks = checkLinks(safeName, sources);
+
+        // --- обновление существующей колоды ---
+        if (options.update && Files.isRegularFile(outPath)) {
+            if (patchDeck(outPath, presFolder, slides, offset, sources, deadLinks, fallbackImages, safeName)) {
+                return true;
+            }
+            System.out.println("[" + safeName + "] обновление невозможно, полная сборка");
+        }
+
         // --- генерация PPTX ---
         try (XMLSlideShow ppt = loadTemplateOrBlank(OPTIONAL_TEMPLATE)) {
             ppt.setPageSize(SLIDE_SIZE);
+            POIXMLProperties.CustomProperties props = ppt.getProperties().getCustomProperties();
+            setCustomProperty(props, PROP_FORMAT, String.valueOf(DECK_FORMAT));
+            PictureRegistry pictures = new PictureRegistry(ppt);
 
-            for (int i = 0; i < REQUIRED_BODY_SLIDES; i++) {
+            for (int i = 0; i < slides.size(); i++) {
                 SlideBlock b = slides.get(i);
-                Path explicit = resolveExplicitImage(b, presFolder);
-                Path img = (explicit != null) ? explicit
-                        : (!fallbackImages.isEmpty() ? fallbackImages.get(i % fallbackImages.size()) : null);
-                createContentSlide(ppt, b, img, i + 1); // первый блок = первый слайд
+                Path img = chooseImage(b, presFolder, fallbackImages, offset + i, null);
+                createContentSlide(ppt, safeName, b, img, offset + i + 1, pictures); // первый блок = первый слайд
+                recordSlideState(props, i, b, presFolder, img);
             }
+            event.pictureParts += pictures.parts();
+            event.pictureReuses += pictures.reuses();
+            event.pictureBytesSaved += pictures.bytesSaved();
+            if (pictures.uses() > 0) System.out.println("[" + safeName + "] " + pictures.summary());
 
-            createSourcesSlide(ppt, sources);
+            createSourcesSlide(ppt, sources, deadLinks);
+            setCustomProperty(props, PROP_SOURCES_HASH, sourcesHash(sources, deadLinks));
 
             Files.createDirectories(outPath.getParent());
-            try (var os = Files.newOutputStream(outPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                ppt.write(os);
-            }
+            // медиа без пересжатия, XML параллельно; на место колода встаёт только целиком
+            PackageWriter.DEFAULT.writeAtomically(ppt, outPath);
+            writePreview(ppt, outPath, safeName);
             System.out.println("OK: " + outPath.toAbsolutePath());
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Generate error (" + safeName + "): " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ---------- Превью (--preview) ----------
+
+    // слайды рисуются параллельно; картинки-файлы декодируются один раз на колоду
+    private void writePreview(XMLSlideShow ppt, Path outPath, String safeName) {
+        if (options.previewWidth <= 0) return;
+        long t0 = System.nanoTime();
+        try {
+            Path out = new SlidePreview(options.previewWidth, options.previewSheet)
+                    .render(ppt, outPath, ForkJoinPool.commonPool());
+            System.out.printf(Locale.ROOT, "[%s] превью: %s (%d мс)%n", safeName, out, (System.nanoTime() - t0) / 1_000_000);
+        } catch (IOException e) {
+            System.err.println("Preview error (" + safeName + "): " + e.getMessage());
+        }
+    }
+
+    // ---------- План без сборки (--plan) ----------
+
+    private void printPlan(List<Path> dirs) {
+        long t0 = System.nanoTime();
+        JsonWriter json = new JsonWriter();
+        json.beginObject().field("dataRoot", options.dataDir.toAbsolutePath().normalize().toString());
+        json.name("decks").beginArray();
+        for (Path dir : dirs) writeDeckPlan(dir, json);
+        json.endArray();
+        json.field("planMillis", (System.nanoTime() - t0) / 1_000_000);
+        System.out.println(json.endObject());
+    }
+
+    // Разбор текста, заголовки картинок и оценка вписывания текста — без POI
+    private void writeDeckPlan(Path presFolder, JsonWriter json) {
+        final String rawName = presFolder.getFileName().toString();
+        final String safeName = sanitizeName(rawName);
+        json.beginObject().field("folder", rawName);
+
+        final Path textFile = presFolder.resolve(DEFAULT_TEXT_FILE);
+        if (!Files.isRegularFile(textFile)) {
+            json.field("output", options.outDir.resolve(safeName + ".pptx").toString())
+                    .field("error", "нет text.txt").endObject();
+            return;
+        }
+        // план показывает первую колоду; остальные блоки только считаем
+        final List<SlideBlock> parsed = new ArrayList<>(REQUIRED_BODY_SLIDES);
+        int blocks;
+        try (BlockReader reader = new BlockReader(textFile, 0)) {
+            for (SlideBlock b; parsed.size() < REQUIRED_BODY_SLIDES && (b = reader.next()) != null; ) parsed.add(b);
+            for (blocks = parsed.size(); reader.skip(); ) blocks++;
+        } catch (IOException e) {
+            json.field("output", options.outDir.resolve(safeName + ".pptx").toString())
+                    .field("error", "text.txt не прочитан: " + e.getMessage()).endObject();
+            return;
+        }
+        // --chunk: по 20 блоков и «Источники» в каждой части, последняя — сколько осталось
+        final int parts = options.chunk ? partCount(blocks) : 1;
+        final int totalSlides = parts == 1 ? REQUIRED_BODY_SLIDES + 1 : blocks + parts;
+        if (parts == 1) {
+            json.field("output", options.outDir.resolve(safeName + ".pptx").toString());
+        } else {
+            json.name("outputs").beginArray();
+            for (int p = 0; p < parts; p++) json.value(options.outDir.resolve(partName(safeName, p, parts) + ".pptx").toString());
+            json.endArray();
+        }
+        final List<SlideBlock> slides = normalize(parsed, REQUIRED_BODY_SLIDES);
+        final Set<String> sources = readSources(presFolder, slides);
+        final List<Path> images = listImages(presFolder);
+
+        json.field("blocks", blocks)
+                .field("blocksDropped", options.chunk ? 0 : Math.max(0, blocks - REQUIRED_BODY_SLIDES))
+                .field("parts", parts)
+                .field("slides", totalSlides)
+                .field("sources", sources.size());
+
+        long imageBytes = 0;
+        json.name("images").beginArray();
+        for (Path p : images) {
+            long size = sizeOrZero(p);
+            imageBytes += size;
+            Dimension d = PictureRegistry.readSize(p);
+            json.beginObject().field("file", p.getFileName().toString()).field("bytes", size);
+            if (d != null) json.field("width", d.width).field("height", d.height);
+            json.endObject();
+        }
+        json.endArray();
+
+        double bodyH = SLIDE_SIZE.getHeight() - 120 - MARGIN;
+        long explicitBytes = 0;
+        Set<Path> explicitUsed = new HashSet<>();
+        int fallbackSlides = 0, overflow = 0;
+
+        json.name("slidePlans").beginArray();
+        for (int i = 0; i < REQUIRED_BODY_SLIDES; i++) {
+            SlideBlock b = slides.get(i);
+            double h = estimateBodyHeight(b.bullets);
+            boolean over = h > bodyH;
+            if (over) overflow++;
+            json.beginObject()
+                    .field("index", i + 1)
+                    .field("title", b.title)
+                    .field("bullets", b.bullets.size())
+                    .field("estimatedBodyHeight", h)
+                    .field("bodyOverflow", over);
+            Path explicit = resolveExplicitImage(b, presFolder);
+            if (explicit != null) {
+                json.field("image", presFolder.relativize(explicit).toString());
+                if (explicitUsed.add(explicit)) explicitBytes += sizeOrZero(explicit);
+            } else {
+                if (b.explicitImage != null) json.field("imageMissing", b.explicitImage);
+                json.field("image", images.isEmpty() ? null : "(случайная из папки)");
+                if (!images.isEmpty()) fallbackSlides++;
+            }
+            json.endObject();
+        }
+        json.endArray();
+
+        // слайды разобраны по первой части; у каждой части свой пакет, и случайные
+        // картинки в нём свои — остальные части оцениваем по её долям на блок
+        long outBytes = PLAN_PPTX_BASE_BYTES * parts + PLAN_SLIDE_XML_BYTES * totalSlides;
+        for (int p = 0; p < parts; p++) {
+            int partBlocks = parts == 1 ? REQUIRED_BODY_SLIDES : Math.min(REQUIRED_BODY_SLIDES, blocks - p * REQUIRED_BODY_SLIDES);
+            int partFallback = fallbackSlides * partBlocks / REQUIRED_BODY_SLIDES;
+            outBytes += explicitBytes * partBlocks / REQUIRED_BODY_SLIDES;
+            // случайные картинки идут по кругу: все, если их не больше слайдов
+            if (!images.isEmpty()) {
+                outBytes += images.size() <= partFallback ? imageBytes : imageBytes / images.size() * partFallback;
+            }
+        }
+
+        json.field("imageBytes", imageBytes)
+                .field("slidesBodyOverflow", overflow)
+                .field("estimatedOutputBytes", outBytes)
+                .field("estimatedHeapBytes", estimate(new DeckPart(presFolder, 0, 1, 0)).heapBytes);
+        json.endObject();
+    }
+
+    // высота тела слайда при BODY_SIZE: перенос по средней ширине символа
+    private static double estimateBodyHeight(List<String> bullets) {
+        double boxW = SLIDE_SIZE.getWidth() * LEFT_COL_RATIO - MARGIN - 2 * 7.2 - 28.0;
+        int cpl = Math.max(1, (int) (boxW / (BODY_SIZE * PLAN_CHAR_W_K)));
+        double h = 2 * 3.6;
+        for (String line : bullets) {
+            if (line.isBlank()) continue;
+            int lines = Math.max(1, (line.length() + cpl - 1) / cpl);
+            h += lines * BODY_SIZE * PLAN_LINE_H_K + 4.0;
+        }
+        return h;
+    }
+
+    // ---------- Обновление колоды (--update) ----------
+
+    /**
+     * Открывает существующий out/*.pptx и пересобирает только слайды, у которых
+     * изменился хэш (текст блока + картинка). Картинки и прочие не-XML части, которых
+     * правка не коснулась, переносятся из прежнего файла сжатыми байтами записи, без
+     * распаковки; XML-части POI сериализует заново (они малы). false — колоду надо собрать заново.
+     */
+    private boolean patchDeck(Path outPath, Path presFolder, List<SlideBlock> slides, int offset, Set<String> sources,
+                              Map<String, String> deadLinks, List<Path> fallbackImages, String safeName) {
+        OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(outPath.toFile(), PackageAccess.READ_WRITE);
+        } catch (Exception e) {
+            System.err.println("Warning: can't open " + outPath + " for update: " + e.getMessage());
+            return false;
+        }
+        Path tmp = PackageWriter.tempSibling(outPath);
+        try {
+            XMLSlideShow ppt = new XMLSlideShow(pkg);
+            POIXMLProperties.CustomProperties props = ppt.getProperties().getCustomProperties();
+            if (!String.valueOf(DECK_FORMAT).equals(customProperty(props, PROP_FORMAT))
+                    || ppt.getSlides().size() != slides.size() + 1) {
+                return false;
+            }
+
+            // картинки, уже лежащие в колоде: файл → часть пакета (если файл не менялся)
+            PictureRegistry pictures = new PictureRegistry(ppt);
+            Path[] previous = new Path[slides.size()];
+            for (int i = 0; i < slides.size(); i++) {
+                String fp = customProperty(props, PROP_SLIDE_IMG + i);
+                Path img = imageFromFingerprint(presFolder, fp);
+                previous[i] = img; // файл тот же, даже если его перезаписали
+                if (img == null || !fp.equals(imageFingerprint(presFolder, img))) continue;
+                XSLFPictureData pd = firstPicture(ppt.getSlides().get(i));
+                if (pd != null) pictures.adopt(img, pd);
+            }
+
+            int changed = 0;
+            for (int i = 0; i < slides.size(); i++) {
+                SlideBlock b = slides.get(i);
+                Path img = chooseImage(b, presFolder, fallbackImages, offset + i, previous[i]);
+                if (slideHash(b, presFolder, img).equals(customProperty(props, PROP_SLIDE_HASH + i))) continue;
+
+                // сначала новый слайд (он забирает общие картинки), потом удаляем старый —
+                // иначе POI выбросит часть картинки, на которую больше никто не ссылается
+                XSLFSlide fresh = createContentSlide(ppt, safeName, b, img, offset + i + 1, pictures);
+                ppt.setSlideOrder(fresh, i);
+                ppt.removeSlide(i + 1);
+                recordSlideState(props, i, b, presFolder, img);
+                changed++;
+            }
+            if (pictures.uses() > 0) System.out.println("[" + safeName + "] " + pictures.summary());
+
+            String srcHash = sourcesHash(sources, deadLinks);
+            boolean sourcesChanged = !srcHash.equals(customProperty(props, PROP_SOURCES_HASH));
+            if (sourcesChanged) {
+                createSourcesSlide(ppt, sources, deadLinks);
+                ppt.removeSlide(slides.size());
+                setCustomProperty(props, PROP_SOURCES_HASH, srcHash);
+            }
+
+            if (changed == 0 && !sourcesChanged) {
+                System.out.println("[" + safeName + "] без изменений: " + outPath.toAbsolutePath());
+                return true;
+            }
+
+            try (var os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                PackageWriter.DEFAULT.write(ppt, os, outPath);
+            }
+            writePreview(ppt, outPath, safeName); // пока исходный zip открыт: картинки читаются из него
+            pkg.revert(); // закрыть исходный zip без сохранения в него
+            pkg = null;
+            PackageWriter.replace(tmp, outPath);
+            System.out.println("OK (обновлено слайдов: " + changed + (sourcesChanged ? " + источники" : "") + "): "
+                    + outPath.toAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Update error (" + safeName + "): " + e.getMessage());
+            return false;
+        } finally {
+            if (pkg != null) pkg.revert();
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
         }
     }
 
+    // картинка слайда: !image, затем прежняя (в режиме обновления), затем из перемешанного списка
+    private static Path chooseImage(SlideBlock b, Path presFolder, List<Path> fallbackImages, int index, Path previous) {
+        Path explicit = resolveExplicitImage(b, presFolder);
+        if (explicit != null) return explicit;
+        if (previous != null && b.explicitImage == null) return previous;
+        return !fallbackImages.isEmpty() ? fallbackImages.get(index % fallbackImages.size()) : null;
+    }
+
+    private static void recordSlideState(POIXMLProperties.CustomProperties props, int index, SlideBlock b,
+                                         Path presFolder, Path img) {
+        setCustomProperty(props, PROP_SLIDE_HASH + index, slideHash(b, presFolder, img));
+        setCustomProperty(props, PROP_SLIDE_IMG + index, imageFingerprint(presFolder, img));
+    }
+
+    private static String slideHash(SlideBlock b, Path presFolder, Path img) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(DECK_FORMAT).append('\n').append(b.title).append('\n');
+        for (String s : b.bullets) sb.append(s).append('\n');
+        sb.append(b.explicitImage).append('\n').append(imageFingerprint(presFolder, img));
+        return sha256Hex(sb.toString()).substring(0, 32);
+    }
+
+    // пометки мёртвых ссылок — часть слайда: ссылка ожила или умерла — слайд пересобирается
+    private static String sourcesHash(Set<String> sources, Map<String, String> deadLinks) {
+        StringBuilder sb = new StringBuilder(String.join("\n", sources));
+        for (String src : sources) {
+            String note = deadLinks.get(src);
+            if (note != null) sb.append('\n').append(src).append('\t').append(note);
+        }
+        return sha256Hex(sb.toString()).substring(0, 32);
+    }
+
+    // "имя|размер|mtime": меняется при замене файла картинки
+    private static String imageFingerprint(Path presFolder, Path img) {
+        if (img == null) return "";
+        try {
+            return presFolder.relativize(img).toString().replace('\\', '/')
+                    + "|" + Files.size(img) + "|" + Files.getLastModifiedTime(img).toMillis();
+        } catch (IOException | IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    private static Path imageFromFingerprint(Path presFolder, String fp) {
+        if (fp == null || fp.isEmpty()) return null;
+        int bar = fp.indexOf('|');
+        Path p = presFolder.resolve(bar >= 0 ? fp.substring(0, bar) : fp).normalize();
+        return p.startsWith(presFolder) && Files.isRegularFile(p) ? p : null;
+    }
+
+    private static XSLFPictureData firstPicture(XSLFSlide slide) {
+        for (XSLFShape sh : slide.getShapes()) {
+            if (sh instanceof XSLFPictureShape pic) return pic.getPictureData();
+        }
+        return null;
+    }
+
+    private static String customProperty(POIXMLProperties.CustomProperties props, String name) {
+        CTProperty p = props.getProperty(name);
+        return p != null && p.isSetLpwstr() ? p.getLpwstr() : null;
+    }
+
+    private static void setCustomProperty(POIXMLProperties.CustomProperties props, String name, String value) {
+        CTProperty p = props.getProperty(name);
+        if (p != null) p.setLpwstr(value);
+        else props.addProperty(name, value);
+    }
+
     // ---------- Модель блока ----------
     private static final Pattern IMAGE_DIRECTIVE = Pattern.compile("^!image\\s*:\\s*(.+)$", Pattern.CASE_INSENSITIVE);
 
@@ -169,47 +992,107 @@ public final class PresentationCreator {
         String explicitImage;         // из !image: file.jpg
     }
 
-    private static List<String> readBlocks(Path textFile) {
-        try {
-            String txt = Files.readString(textFile, StandardCharsets.UTF_8);
-            return Arrays.stream(txt.split("\\s*//\\s*"))
-                    .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new RuntimeException("Read text error: " + e.getMessage(), e);
+    /**
+     * Блоки text.txt по одному, без чтения файла целиком. Разделитель {@code //}
+     * ищется прямо в байтах: '/' в UTF-8 не бывает частью многобайтового символа,
+     * поэтому известно смещение каждого блока и часть (--chunk) читается с него.
+     */
+    private static final class BlockReader implements Closeable {
+        private final InputStream in;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private long pos, start;
+
+        BlockReader(Path file, long offset) throws IOException {
+            SeekableByteChannel ch = Files.newByteChannel(file);
+            try {
+                ch.position(offset);
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+            in = new BufferedInputStream(Channels.newInputStream(ch), 64 * 1024);
+            pos = offset;
         }
-    }
 
-    private static List<SlideBlock> parseBlocks(List<String> blocks) {
-        List<SlideBlock> out = new ArrayList<>();
-        for (String block : blocks) {
-            SlideBlock b = new SlideBlock();
-            b.raw = block;
+        /** Следующий блок или null в конце файла. */
+        SlideBlock next() throws IOException {
+            return read(true) ? parseBlock(block.toString(StandardCharsets.UTF_8).trim()) : null;
+        }
 
-            List<String> lines = Arrays.stream(block.split("\\R"))
-                    .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+        /** Пропускает блок, не разбирая его; false — блоков больше нет. */
+        boolean skip() throws IOException {
+            return read(false);
+        }
 
-            // image директива
-            lines.removeIf(line -> {
-                Matcher m = IMAGE_DIRECTIVE.matcher(line);
-                if (m.find()) { b.explicitImage = m.group(1).trim(); return true; }
-                return false;
-            });
+        /** Смещение начала последнего прочитанного блока. */
+        long blockStart() {
+            return start;
+        }
 
-            if (lines.isEmpty()) {
-                b.title = "Слайд";
-                out.add(b);
-                continue;
+        // кусок до "//" или конца файла; из одних пробелов — пропускается
+        private boolean read(boolean keep) throws IOException {
+            while (true) {
+                start = pos;
+                block.reset();
+                boolean text = false, slash = false, separator = false;
+                for (int c; (c = in.read()) >= 0; ) {
+                    pos++;
+                    if (c == '/') {
+                        if (slash) {
+                            separator = true;
+                            break;
+                        }
+                        slash = true;
+                        continue;
+                    }
+                    if (slash) {
+                        if (keep) block.write('/');
+                        slash = false;
+                        text = true;
+                    }
+                    if (c > ' ') text = true;
+                    if (keep) block.write(c);
+                }
+                if (slash && !separator) {
+                    if (keep) block.write('/');
+                    text = true;
+                }
+                if (text) return true;
+                if (!separator) return false;
             }
+        }
 
-            String first = lines.get(0);
-            if (first.startsWith("#")) b.title = first.replaceFirst("^#+\\s*", "").trim();
-            else b.title = first;
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static SlideBlock parseBlock(String block) {
+        SlideBlock b = new SlideBlock();
+        b.raw = block;
 
-            for (int i = 1; i < lines.size(); i++) b.bullets.add(lines.get(i));
+        List<String> lines = Arrays.stream(block.split("\\R"))
+                .map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
 
-            out.add(b);
+        // image директива
+        lines.removeIf(line -> {
+            Matcher m = IMAGE_DIRECTIVE.matcher(line);
+            if (m.find()) { b.explicitImage = m.group(1).trim(); return true; }
+            return false;
+        });
+
+        if (lines.isEmpty()) {
+            b.title = "Слайд";
+            return b;
         }
-        return out;
+
+        String first = lines.get(0);
+        if (first.startsWith("#")) b.title = first.replaceFirst("^#+\\s*", "").trim();
+        else b.title = first;
+
+        for (int i = 1; i < lines.size(); i++) b.bullets.add(lines.get(i));
+        return b;
     }
 
     private static List<SlideBlock> normalize(List<SlideBlock> raw, int target) {
@@ -249,6 +1132,50 @@ public final class PresentationCreator {
         return set;
     }
 
+    // URL из текста + sources.txt
+    private static Set<String> readSources(Path presFolder, List<SlideBlock> slides) {
+        final Set<String> sources = collectSources(slides);
+        final Path sourcesFile = presFolder.resolve(OPTIONAL_SOURCES_FILE);
+        if (Files.isRegularFile(sourcesFile)) {
+            try {
+                Files.lines(sourcesFile, StandardCharsets.UTF_8)
+                        .map(String::trim).filter(s -> !s.isEmpty())
+                        .forEach(sources::add);
+            } catch (IOException e) {
+                System.err.println("Warning: can't read sources.txt: " + e.getMessage());
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Проверка ссылок перед слайдом «Источники» (--check-links): адрес → причина
+     * для мёртвых. С --drop-dead-links мёртвые сразу убираются из {@code sources}.
+     * Ссылки, которые проверить не удалось (таймаут, 5xx), остаются как есть.
+     */
+    private Map<String, String> checkLinks(String safeName, Set<String> sources) {
+        if (links == null || sources.isEmpty()) return Map.of();
+        Map<String, LinkChecker.Result> results;
+        try {
+            results = links.check(sources, LINK_BUDGET);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of();
+        }
+        Map<String, String> dead = new LinkedHashMap<>();
+        int unknown = 0;
+        for (Map.Entry<String, LinkChecker.Result> e : results.entrySet()) {
+            LinkChecker.Result r = e.getValue();
+            if (r.status == LinkChecker.Status.DEAD) dead.put(e.getKey(), r.reason());
+            else if (r.status == LinkChecker.Status.UNKNOWN) unknown++;
+        }
+        System.out.printf(Locale.ROOT, "[%s] ссылки: %d, мёртвых %d%s, не проверено %d%n", safeName,
+                results.size(), dead.size(), options.dropDeadLinks && !dead.isEmpty() ? " (убраны)" : "", unknown);
+        if (!options.dropDeadLinks) return dead;
+        sources.removeAll(dead.keySet());
+        return Map.of();
+    }
+
     private static String trimPunct(String u) {
         return u.replaceAll("[)\\]\\},.;!?]+$", "");
     }
@@ -273,7 +1200,10 @@ public final class PresentationCreator {
         return new XMLSlideShow();
     }
 
-    private void createContentSlide(XMLSlideShow ppt, SlideBlock b, Path imagePath, int index) throws IOException {
+    private XSLFSlide createContentSlide(XMLSlideShow ppt, String deck, SlideBlock b, Path imagePath, int index,
+                                        PictureRegistry pictures) throws IOException {
+        GenerationEvents.Slide event = new GenerationEvents.Slide();
+        event.begin();
         XSLFSlideMaster master = ppt.getSlideMasters().get(0);
         XSLFSlideLayout cl = getLayout(master, SlideLayout.TITLE_AND_CONTENT);
         XSLFSlide slide = ppt.createSlide(cl);
@@ -313,15 +1243,26 @@ public final class PresentationCreator {
         }
 
         // картинка
-        if (imagePath != null && Files.isRegularFile(imagePath)) {
-            insertImage(ppt, slide, imagePath);
+        boolean hasImage = imagePath != null && Files.isRegularFile(imagePath);
+        if (hasImage) {
+            insertImage(ppt, slide, imagePath, pictures);
         }
 
         // номер слайда
         addFooter(slide, index);
+        if (event.shouldCommit()) {
+            event.generator = "pc";
+            event.deck = deck;
+            event.index = index;
+            event.title = b.title;
+            event.pictures = hasImage ? 1 : 0;
+            event.commit();
+        }
+        return slide;
     }
 
-    private void createSourcesSlide(XMLSlideShow ppt, Set<String> sources) {
+    // мёртвые ссылки (deadLinks: адрес → причина) остаются текстом без гиперссылки и с пометкой
+    private void createSourcesSlide(XMLSlideShow ppt, Set<String> sources, Map<String, String> deadLinks) {
         XSLFSlideMaster master = ppt.getSlideMasters().get(0);
         XSLFSlideLayout cl = getLayout(master, SlideLayout.TITLE_AND_CONTENT);
         XSLFSlide slide = ppt.createSlide(cl);
@@ -357,6 +1298,16 @@ public final class PresentationCreator {
                     r.setFontFamily(FONT_BODY);
                     r.setFontSize(18.0);
                     r.setFontColor(GRAY_TEXT);
+                    String dead = deadLinks.get(src);
+                    if (dead != null) {
+                        XSLFTextRun note = p.addNewTextRun();
+                        note.setText(" — недоступна (" + dead + ")");
+                        note.setFontFamily(FONT_BODY);
+                        note.setFontSize(14.0);
+                        note.setItalic(true);
+                        note.setFontColor(ACCENT);
+                        continue;
+                    }
                     try {
                         XSLFHyperlink link = r.createHyperlink();
                         link.setAddress(src);
@@ -420,21 +1371,21 @@ public final class PresentationCreator {
         }
     }
 
-    private void insertImage(XMLSlideShow ppt, XSLFSlide slide, Path imagePath) throws IOException {
-        byte[] bytes = Files.readAllBytes(imagePath);
-        PictureData.PictureType type = detectPictureType(imagePath);
-        XSLFPictureData picData = ppt.addPicture(bytes, type);
-        XSLFPictureShape pic = slide.createPicture(picData);
+    private void insertImage(XMLSlideShow ppt, XSLFSlide slide, Path imagePath,
+                             PictureRegistry pictures) throws IOException {
+        // байты файла в кучу не читаем: PackageWriter скопирует файл в zip при записи
+        PictureRegistry.Picture picture = pictures.get(imagePath);
+        XSLFPictureShape pic = slide.createPicture(picture.data);
 
         double left = SLIDE_SIZE.getWidth() * LEFT_COL_RATIO + MARGIN;
         double top = 96;
         double maxW = SLIDE_SIZE.getWidth() - left - MARGIN;
         double maxH = SLIDE_SIZE.getHeight() - top - MARGIN;
 
-        BufferedImage bi = ImageIO.read(imagePath.toFile());
-        if (bi != null) {
-            double iw = bi.getWidth();
-            double ih = bi.getHeight();
+        Dimension size = picture.size();
+        if (size != null) {
+            double iw = size.getWidth();
+            double ih = size.getHeight();
             double scale = Math.min(maxW / iw, maxH / ih);
             double w = Math.floor(iw * scale);
             double h = Math.floor(ih * scale);
@@ -454,14 +1405,6 @@ public final class PresentationCreator {
         r.setFontColor(new Color(100, 106, 115));
     }
 
-    private static PictureData.PictureType detectPictureType(Path p) {
-        String n = p.getFileName().toString().toLowerCase(Locale.ROOT);
-        if (n.endsWith(".png")) return PictureData.PictureType.PNG;
-        if (n.endsWith(".jpg") || n.endsWith(".jpeg")) return PictureData.PictureType.JPEG;
-        if (n.endsWith(".gif")) return PictureData.PictureType.GIF;
-        return PictureData.PictureType.PNG;
-    }
-
     // ---------- FS/утилиты ----------
 
     private static void ensureDir(Path p, String what) {
@@ -469,6 +1412,18 @@ public final class PresentationCreator {
         catch (IOException e) { throw new RuntimeException("Cannot create " + what + ": " + e.getMessage(), e); }
     }
 
+    private static String sha256Hex(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] dig = md.digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(dig.length * 2);
+            for (byte b : dig) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static String sanitizeName(String raw) {
         String s = raw.replaceAll("[^\\p{IsAlphabetic}\\p{IsDigit}._-]+", "");
         if (s.equals(".") || s.equals("..")) return "";
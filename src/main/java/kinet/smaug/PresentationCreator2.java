@@ -12,19 +12,31 @@ import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 public final class PresentationCreator2 {
 
@@ -58,17 +70,36 @@ public final class PresentationCreator2 {
     private static final Color FOOTER_COLOR = new Color(0xC8, 0xBE, 0xF0);
 
     // ========== НАСТРОЙКИ СЕТИ И КЭША ==========
-    private static final Duration HTTP_CONNECT_TIMEOUT = Duration.ofSeconds(8);
-    private static final Duration HTTP_REQUEST_TIMEOUT = Duration.ofSeconds(25);
-    private static final int MAX_IMAGE_BYTES = 10 * 1024 * 1024;
     private static final Pattern URL_RE = Pattern.compile("^(?i)https?://.+");
+    // каталог + упакованный pack/ (см. --cache-export / --cache-import)
+    private static final Path DEFAULT_CACHE_DIR = Paths.get("cache_images");
 
-    private static final String UA = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36";
-    private static final String ACCEPT = "image/jpeg,image/png,image/gif,image/*;q=0.8,*/*;q=0.5";
-    private static final String ACCEPT_LANG = "en-US,en;q=0.9";
-    private static final String ACCEPT_ENC = "gzip, deflate, br";
+    // ========== ДЕДЛАЙНЫ ==========
+    // колода должна быть готова к дедлайну: картинки, не успевшие за бюджет слайда
+    // или колоды, заменяются заглушкой, а слайд без единой картинки — текстовым
+    private static final Duration DEFAULT_DECK_DEADLINE = Duration.ofSeconds(90);
+    private static final Duration DEFAULT_SLIDE_DEADLINE = Duration.ofSeconds(20);
+    private static final double EMIT_RESERVE_SHARE = 0.15;          // доля бюджета на сборку и запись PPTX
+    private static final Duration EMIT_RESERVE_MIN = Duration.ofSeconds(2);
 
-    private static final Path CACHE_DIR = Paths.get("cache_images");
+    // потоки фазы планирования: в основном ждут сеть, поэтому больше, чем ядер
+    private static final int DEFAULT_PLAN_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    // колоды пакета, собираемые одновременно
+    private static final int DEFAULT_DECK_JOBS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // подбор кегля — чистая функция текста и размеров рамки; памятка общая для всех колод
+    private static final int FONT_FIT_MEMO_MAX = 50_000;
+
+    // ========== ЗАПИСЬ PPTX ==========
+    // XML-части сжимаются параллельно, медиа (PNG и так сжат) — без повторного сжатия
+    private static final int XML_DEFLATE_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    private static final int MEDIA_DEFLATE_LEVEL = PackageWriter.STORED;
+
+    // ========== ОЦЕНКИ ДЛЯ --plan ==========
+    private static final long PLAN_PPTX_BASE_BYTES = 40_000;        // тема, мастер, макеты
+    private static final long PLAN_SLIDE_XML_BYTES = 3_000;         // сжатый XML одного слайда
+    private static final double PLAN_PNG_BYTES_PER_PIXEL = 1.2;     // PNG фотографии после обрезки
+    private static final long PLAN_UNKNOWN_PICTURE_BYTES = 1_500_000;
 
 
     // НАСТРОЙКА РЕЖИМА: при 1–2 картинках — кладём их ПОД текст, на всю ширину
@@ -80,108 +111,735 @@ public final class PresentationCreator2 {
 
 
 
-    static {
-        ImageIO.setUseCache(false);
-        ImageIO.scanForPlugins();
-        try {
-            Files.createDirectories(CACHE_DIR);
-        } catch (IOException e) {
-            System.err.println("Не удалось создать каталог кэша: " + e.getMessage());
+    // ImageIO инициализируется лениво: колоды без картинок его не трогают.
+    // Чтение — через ImageDecoder (сигнатура → готовый ридер), здесь только запись PNG
+    private static final class ImageIOHolder {
+        static {
+            ImageIO.setUseCache(false);
+        }
+
+        static void init() {}
+    }
+
+    // пикселей на пункт рамки: запас под экраны с высокой плотностью и масштаб в PowerPoint
+    private static final double PICTURE_PX_PER_PT = 2.0;
+    // уменьшаем, только если картинка больше рамки хотя бы на четверть
+    private static final double RESAMPLE_MIN_SHRINK = 1.25;
+
+    // ========== НАСТРОЙКИ ЗАПУСКА ==========
+    static final class Config {
+        static final String USAGE = String.join("\n",
+                "Использование: PresentationCreator2 [опции] [вход.txt [выход.pptx]]",
+                "               PresentationCreator2 [опции] <файл.txt|каталог>... [--out-dir DIR]",
+                "  --plan                 только отчёт о плане (JSON), без сети и без записи",
+                "  --deadline-s N         бюджет на колоду (по умолчанию " + DEFAULT_DECK_DEADLINE.toSeconds() + ")",
+                "  --slide-deadline-s N   бюджет на картинки слайда (по умолчанию " + DEFAULT_SLIDE_DEADLINE.toSeconds() + ")",
+                "  --jobs N               колод одновременно (по умолчанию " + DEFAULT_DECK_JOBS + ")",
+                "  --plan-threads N       потоков подготовки слайдов на весь процесс",
+                "  --out-dir DIR          куда писать колоды пакета (по умолчанию рядом со входом)",
+                "  --cache-dir DIR        каталог кэша картинок (по умолчанию cache_images)",
+                "  --preview              PNG-превью слайдов в <колода>.preview/ (ширина " + SlidePreview.DEFAULT_WIDTH + ")",
+                "  --preview-width N      ширина превью в пикселях",
+                "  --preview-sheet        одна сетка <колода>.preview.png вместо отдельных файлов",
+                "  --chunk-slides N       резать вход на колоды <имя>-001.pptx… по N слайдов (нумерация сквозная)",
+                "  --chunk-mb M           то же по оценке размера колоды (как в --plan), можно вместе с --chunk-slides",
+                "  --cache-export [pack-dir] | --cache-import <pack-dir>");
+
+        boolean planOnly;
+        Duration deckDeadline = DEFAULT_DECK_DEADLINE;
+        Duration slideDeadline = DEFAULT_SLIDE_DEADLINE;
+        int jobs = DEFAULT_DECK_JOBS;
+        int planThreads = DEFAULT_PLAN_THREADS;
+        Path cacheDir = DEFAULT_CACHE_DIR;
+        Path outDir;                         // null — рядом со входным файлом
+        int previewWidth;                    // 0 — без превью
+        boolean previewSheet;
+        int chunkSlides;                     // 0 — без ограничения по числу слайдов
+        long chunkBytes;                     // 0 — без ограничения по размеру
+        final List<String> positional = new ArrayList<>();
+
+        static Config parse(String[] args) {
+            Config c = new Config();
+            String[] argv = args != null ? args : new String[0];
+            for (int i = 0; i < argv.length; i++) {
+                String a = argv[i];
+                switch (a) {
+                    case "--plan" -> c.planOnly = true;
+                    case "--deadline-s" -> c.deckDeadline = Duration.ofSeconds(longArg(argv, ++i, a));
+                    case "--slide-deadline-s" -> c.slideDeadline = Duration.ofSeconds(longArg(argv, ++i, a));
+                    case "--jobs" -> c.jobs = Math.max(1, (int) longArg(argv, ++i, a));
+                    case "--plan-threads" -> c.planThreads = Math.max(1, (int) longArg(argv, ++i, a));
+                    case "--out-dir" -> c.outDir = Paths.get(stringArg(argv, ++i, a));
+                    case "--cache-dir" -> c.cacheDir = Paths.get(stringArg(argv, ++i, a));
+                    case "--preview" -> c.previewWidth = Math.max(c.previewWidth, SlidePreview.DEFAULT_WIDTH);
+                    case "--preview-width" -> c.previewWidth = Math.max(16, (int) longArg(argv, ++i, a));
+                    case "--chunk-slides" -> c.chunkSlides = Math.max(1, (int) longArg(argv, ++i, a));
+                    case "--chunk-mb" -> c.chunkBytes = Math.max(1, longArg(argv, ++i, a)) << 20;
+                    case "--preview-sheet" -> {
+                        c.previewSheet = true;
+                        c.previewWidth = Math.max(c.previewWidth, SlidePreview.DEFAULT_WIDTH);
+                    }
+                    default -> {
+                        if (a.startsWith("--")) throw new IllegalArgumentException("Неизвестный параметр: " + a);
+                        c.positional.add(a);
+                    }
+                }
+            }
+            return c;
+        }
+
+        /**
+         * Пары вход → выход. Старая форма {@code вход.txt [выход.pptx]} сохраняется;
+         * иначе каждый файл или каталог (все *.txt в нём) даёт колоду {@code <имя>.pptx}.
+         */
+        List<Path[]> decks() throws IOException {
+            List<Path[]> out = new ArrayList<>();
+            if (positional.isEmpty()) {
+                out.add(new Path[]{Paths.get("txt.txt"), Paths.get("presentation.pptx")});
+                return out;
+            }
+            boolean legacy = outDir == null && positional.size() <= 2
+                    && !Files.isDirectory(Paths.get(positional.get(0)))
+                    && (positional.size() == 1 || positional.get(1).toLowerCase(Locale.ROOT).endsWith(".pptx"));
+            if (legacy) {
+                String outPath = positional.size() == 2 ? positional.get(1) : "presentation.pptx";
+                out.add(new Path[]{Paths.get(positional.get(0)), Paths.get(outPath)});
+                return out;
+            }
+            for (String p : positional) {
+                Path in = Paths.get(p);
+                if (Files.isDirectory(in)) {
+                    try (Stream<Path> files = Files.list(in)) {
+                        for (Path f : files.filter(f -> f.toString().toLowerCase(Locale.ROOT).endsWith(".txt")).sorted().toList()) {
+                            out.add(new Path[]{f, outputFor(f)});
+                        }
+                    }
+                } else {
+                    out.add(new Path[]{in, outputFor(in)});
+                }
+            }
+            return out;
+        }
+
+        boolean chunked() {
+            return chunkSlides > 0 || chunkBytes > 0;
+        }
+
+        private Path outputFor(Path in) {
+            String name = in.getFileName().toString().replaceFirst("(?i)\\.txt$", "") + ".pptx";
+            return outDir != null ? outDir.resolve(name) : in.resolveSibling(name);
+        }
+
+        private static long longArg(String[] argv, int i, String flag) {
+            return Long.parseLong(stringArg(argv, i, flag));
+        }
+
+        private static String stringArg(String[] argv, int i, String flag) {
+            if (i >= argv.length) throw new IllegalArgumentException("Нет значения для " + flag);
+            return argv[i];
         }
     }
 
+    // ========== ДВИЖОК ==========
+    // Всё, что живёт дольше одной колоды: кэш, загрузчик (с состоянием хостов),
+    // запись пакета, памятка подбора шрифтов, буферы обрезки и пулы потоков. Колоды пакета
+    // собираются параллельно и делят эти ресурсы.
+    private final Config config;
+    private final ImageCache cache;
+    private final ImageFetcher fetcher;
+    private final PackageWriter packageWriter;
+    private final RasterPool rasters = new RasterPool();
+    private final Resampler resampler = new Resampler();
+    private final Map<String, Double> fontFits = new ConcurrentHashMap<>();
+    private final ExecutorService planPool;
+    private final ExecutorService imagePool;
+
+    PresentationCreator2(Config config) {
+        this.config = config;
+        this.cache = new ImageCache(config.cacheDir);
+        this.fetcher = new ImageFetcher();
+        this.packageWriter = new PackageWriter(XML_DEFLATE_LEVEL, MEDIA_DEFLATE_LEVEL);
+        // потоки — демоны: зависший на сети поток не задерживает выход после записи колод
+        this.planPool = Executors.newFixedThreadPool(config.planThreads, daemonThreads("plan"));
+        this.imagePool = Executors.newCachedThreadPool(daemonThreads("image"));
+    }
+
     // ========== ОСНОВНОЙ МЕТОД ==========
     public static void main(String[] args) {
-        String inPath = (args != null && args.length >= 1) ? args[0] : "txt.txt";
-        String outPath = (args != null && args.length >= 2) ? args[1] : "presentation.pptx";
+        // --cache-export [pack-dir] / --cache-import <pack-dir>: перенос кэша на офлайн-узлы
+        if (args != null && args.length >= 1 && args[0].startsWith("--cache-")
+                && !"--cache-dir".equals(args[0])) {
+            runCacheCommand(args);
+            return;
+        }
 
-        List<SlideSpec> slides;
+        Config config;
+        try {
+            config = Config.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Config.USAGE);
+            return;
+        }
+
+        PresentationCreator2 engine = new PresentationCreator2(config);
         try {
-            slides = parseSlides(new File(inPath));
+            engine.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Прервано");
         } catch (IOException e) {
-            System.err.println("Не удалось прочитать входной файл: " + e.getMessage());
+            System.err.println("Не удалось прочитать входные данные: " + e.getMessage());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    // --plan: только разбор, кэш, заголовки картинок и подбор шрифтов → JSON в stdout
+    void run() throws IOException, InterruptedException {
+        List<Path[]> decks = config.decks();
+        if (config.planOnly) {
+            for (Path[] d : decks) {
+                try {
+                    System.out.println(planReport(d[0].toString(), parseSlides(d[0].toFile())));
+                } catch (IOException e) {
+                    System.err.println("Не удалось прочитать входной файл: " + d[0] + " — " + e.getMessage());
+                }
+            }
             return;
         }
 
+        long t0 = System.nanoTime();
+        // части одного входа собираются параллельно — пул по --jobs, даже если вход один
+        int jobs = config.chunked() ? config.jobs : Math.min(config.jobs, decks.size());
+        ExecutorService deckPool = Executors.newFixedThreadPool(jobs, daemonThreads("deck"));
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(decks.size());
+        try {
+            if (config.chunked()) {
+                int ok = 0;
+                for (Path[] d : decks) {
+                    if (renderChunked(d[0], d[1], deckPool)) ok++;
+                }
+                if (decks.size() > 1) {
+                    System.out.printf(Locale.ROOT, "Входов: %d (с ошибками: %d) за %.1f с%n",
+                            decks.size(), decks.size() - ok, (System.nanoTime() - t0) / 1e9);
+                }
+                return;
+            }
+            for (Path[] d : decks) {
+                results.add(CompletableFuture.supplyAsync(() -> renderDeck(d[0], d[1]), deckPool));
+            }
+            int ok = 0;
+            for (CompletableFuture<Boolean> r : results) {
+                try {
+                    if (r.get()) ok++;
+                } catch (ExecutionException e) {
+                    System.err.println("Ошибка сборки колоды: " + e.getCause());
+                }
+            }
+            if (decks.size() > 1) {
+                double sec = (System.nanoTime() - t0) / 1e9;
+                System.out.printf(Locale.ROOT, "Колод: %d (ошибок: %d) за %.1f с — %.1f колод/мин, потоков колод: %d%n",
+                        ok, decks.size() - ok, sec, ok * 60.0 / Math.max(sec, 1e-9), jobs);
+            }
+        } finally {
+            deckPool.shutdownNow();
+        }
+    }
+
+    void shutdown() {
+        planPool.shutdownNow();
+        imagePool.shutdownNow();
+    }
+
+    // превью по уже собранной колоде; картинки — из фазы планирования
+    private void writePreview(XMLSlideShow ppt, List<SlidePlan> plans, Path outPath) {
+        long t0 = System.nanoTime();
+        SlidePreview preview = new SlidePreview(config.previewWidth, config.previewSheet);
+        for (SlidePlan plan : plans) {
+            for (PicturePlan picture : plan.pictures) {
+                if (picture.png != null && picture.preview != null) preview.register(picture.png, picture.preview);
+            }
+        }
+        try {
+            Path out = preview.render(ppt, outPath, ForkJoinPool.commonPool());
+            System.out.println("Превью: " + out + " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " мс)");
+        } catch (IOException e) {
+            System.err.println("Не удалось сделать превью " + outPath + ": " + e.getMessage());
+        }
+    }
+
+    /** Одна колода: план → слайды → запись. true — файл записан. */
+    boolean renderDeck(Path inPath, Path outPath) {
+        GenerationEvents.Deck event = new GenerationEvents.Deck();
+        event.begin();
+        event.ok = buildDeck(inPath, outPath, event);
+        if (event.shouldCommit()) {
+            event.generator = "pc2";
+            event.input = inPath.toString();
+            event.output = outPath.toString();
+            event.commit();
+        }
+        return event.ok;
+    }
+
+    private boolean buildDeck(Path inPath, Path outPath, GenerationEvents.Deck event) {
+        long deckStart = System.nanoTime();
+        List<SlideSpec> slides;
+        try {
+            slides = parseSlides(inPath.toFile());
+        } catch (IOException e) {
+            System.err.println("Не удалось прочитать входной файл: " + inPath + " — " + e.getMessage());
+            return false;
+        }
+        event.slides = slides.size();
+        return renderSlides(inPath.getFileName().toString(), slides, outPath, deckStart, 1, slides.size(), "");
+    }
+
+    /**
+     * План и запись одной колоды. Слайды нумеруются с {@code firstPage} из
+     * {@code totalPages}; {@code footerPrefix} — подпись части перед номером
+     * (пусто вне --chunk-*). Бюджет колоды отсчитывается от {@code deckStart}.
+     */
+    private boolean renderSlides(String deck, List<SlideSpec> slides, Path outPath, long deckStart,
+                                 int firstPage, int totalPages, String footerPrefix) {
+        // Фаза 1 (параллельно): раскладка, подбор шрифтов, загрузка и обрезка картинок.
+        // POI не трогаем — XMLSlideShow не потокобезопасен.
+        // На картинки уходит бюджет колоды за вычетом запаса на фазу 2.
+        Duration deckDeadline = config.deckDeadline;
+        long reserve = Math.max(EMIT_RESERVE_MIN.toMillis(), (long) (deckDeadline.toMillis() * EMIT_RESERVE_SHARE));
+        long imagesDeadline = deckStart + TimeUnit.MILLISECONDS.toNanos(Math.max(0, deckDeadline.toMillis() - reserve));
+        List<SlidePlan> plans;
+        try {
+            plans = planAll(deck, slides, imagesDeadline, config.slideDeadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Прервано при подготовке слайдов: " + deck);
+            return false;
+        }
+
+        // Фаза 2 (последовательно): только создание фигур в презентации.
         try (XMLSlideShow ppt = new XMLSlideShow()) {
             ppt.setPageSize(new Dimension(SLIDE_W, SLIDE_H));
 
-            int page = 1;
-            for (SlideSpec spec : slides) {
-                XSLFSlide slide = ppt.createSlide();
-                applyPurpleTheme(slide);
-
-                // Расчет областей размещения контента
-                double left = MARGIN;
-                double top = MARGIN;
-                double width = SLIDE_W - 2 * MARGIN;
+            int page = firstPage;
+            for (SlidePlan plan : plans) {
+                emitSlide(ppt, plan, footerPrefix + page++ + " / " + totalPages);
+            }
 
-                Rectangle2D titleBox = new Rectangle2D.Double(left, top, width, TITLE_H);
-                addTitle(slide, spec.title, titleBox);
+            packageWriter.writeAtomically(ppt, outPath);
+            if (config.previewWidth > 0) writePreview(ppt, plans, outPath);
+            long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deckStart);
+            System.out.println("Готово: " + outPath + " (" + tookMs + " мс из " + deckDeadline.toMillis() + ")");
+            return true;
+        } catch (Exception e) {
+            System.err.println("Ошибка при формировании презентации " + outPath + ": " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
 
-                double contentTop = top + TITLE_H + (GAP * 2);
-                double contentHeight = SLIDE_H - contentTop - MARGIN;
+    // ========== ЧАСТИ (--chunk-slides / --chunk-mb) ==========
+    // Вход читается потоком дважды: первый проход только режет его на части (число
+    // слайдов и оценка размера, как в --plan), второй отдаёт части в пул колод.
+    // Впереди сборки прочитано не больше --jobs частей, так что в памяти — только они.
+    // Кэш картинок, загрузчик, памятка шрифтов и пулы общие для всех частей.
+    private boolean renderChunked(Path inPath, Path outPath, ExecutorService deckPool) throws InterruptedException {
+        long t0 = System.nanoTime();
+        List<Integer> sizes;
+        try {
+            sizes = chunkSizes(inPath);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Не удалось прочитать входной файл: " + inPath + " — " + e.getMessage());
+            return false;
+        }
+        if (sizes.isEmpty()) {
+            System.err.println("Во входном файле нет слайдов: " + inPath);
+            return false;
+        }
+        int parts = sizes.size();
+        int total = sizes.stream().mapToInt(Integer::intValue).sum();
+        System.out.println(inPath + ": слайдов " + total + " → частей " + parts);
+
+        Semaphore ahead = new Semaphore(config.jobs);
+        List<Path> outs = new ArrayList<>(parts);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(parts);
+        boolean readOk = true;
+        try (SlideReader reader = new SlideReader(inPath.toFile())) {
+            int first = 1;
+            for (int k = 0; k < parts; k++) {
+                List<SlideSpec> chunk = new ArrayList<>(sizes.get(k));
+                for (int i = 0; i < sizes.get(k); i++) {
+                    SlideSpec spec = reader.next();
+                    if (spec == null) throw new IOException("файл изменился во время сборки");
+                    chunk.add(spec);
+                }
+                Path partOut = partPath(outPath, k, parts);
+                int firstPage = first;
+                int part = k + 1;
+                outs.add(partOut);
+                ahead.acquire();
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return renderPart(inPath, partOut, chunk, firstPage, total, part, parts);
+                    } finally {
+                        ahead.release();
+                    }
+                }, deckPool));
+                first += chunk.size();
+            }
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Не удалось прочитать входной файл: " + inPath + " — " + e.getMessage());
+            readOk = false;   // дочитанные части всё равно дособираются
+        }
 
-                boolean hasImages = !spec.imageUrls.isEmpty();
-                boolean hasText = !(spec.paragraphs.isEmpty() && spec.bullets.isEmpty());
-                boolean fewImgs = hasImages && spec.imageUrls.size() <= 3 && STACK_IMAGES_IF_LESS_OR_EQ_2;
+        boolean[] ok = new boolean[results.size()];
+        for (int k = 0; k < results.size(); k++) {
+            try {
+                ok[k] = results.get(k).get();
+            } catch (ExecutionException e) {
+                System.err.println("Ошибка сборки части " + (k + 1) + ": " + e.getCause());
+            }
+        }
+        int failed = 0;
+        for (boolean b : ok) if (!b) failed++;
+        writePartsIndex(inPath, outPath, outs, sizes, ok, System.nanoTime() - t0);
+        double sec = (System.nanoTime() - t0) / 1e9;
+        System.out.printf(Locale.ROOT, "%s: частей %d (ошибок: %d), слайдов %d за %.1f с%n",
+                inPath, outs.size(), failed, total, sec);
+        return readOk && failed == 0;
+    }
 
-                Rectangle2D textBox;
-                Rectangle2D imagesArea = null;
+    private boolean renderPart(Path inPath, Path outPath, List<SlideSpec> slides, int firstPage, int totalPages,
+                               int part, int parts) {
+        GenerationEvents.Deck event = new GenerationEvents.Deck();
+        event.begin();
+        event.slides = slides.size();
+        event.ok = renderSlides(outPath.getFileName().toString(), slides, outPath, System.nanoTime(),
+                firstPage, totalPages, "часть " + part + "/" + parts + " · ");
+        if (event.shouldCommit()) {
+            event.generator = "pc2";
+            event.input = inPath + "#" + part;
+            event.output = outPath.toString();
+            event.commit();
+        }
+        return event.ok;
+    }
 
-                if (fewImgs) {
-                    // СТЕКОВЫЙ РЕЖИМ: текст сверху на всю ширину, картинки снизу по центру
-                    double textH = contentHeight * FEW_IMG_TEXT_HEIGHT_RATIO;
-                    double imgH  = contentHeight - textH;
+    // первый проход: размеры частей; --chunk-mb считает по оценке --plan (кэш и заголовки, без сети)
+    private List<Integer> chunkSizes(Path inPath) throws IOException {
+        List<Integer> sizes = new ArrayList<>();
+        int count = 0;
+        long bytes = PLAN_PPTX_BASE_BYTES;
+        try (SlideReader reader = new SlideReader(inPath.toFile())) {
+            for (SlideSpec spec; (spec = reader.next()) != null; ) {
+                long slideBytes = config.chunkBytes > 0 ? estimateSlideBytes(spec) : 0;
+                boolean full = count > 0 && ((config.chunkSlides > 0 && count >= config.chunkSlides)
+                        || (config.chunkBytes > 0 && bytes + slideBytes > config.chunkBytes));
+                if (full) {
+                    sizes.add(count);
+                    count = 0;
+                    bytes = PLAN_PPTX_BASE_BYTES;
+                }
+                count++;
+                bytes += slideBytes;
+            }
+        }
+        if (count > 0) sizes.add(count);
+        return sizes;
+    }
 
-                    // Текст — ширина почти во весь слайд
-                    double textLeft = left + CONTENT_SIDE_PADDING;
-                    double textWidth = width - 2 * CONTENT_SIDE_PADDING;
+    private long estimateSlideBytes(SlideSpec spec) {
+        long bytes = PLAN_SLIDE_XML_BYTES;
+        int pictures = layoutSlide(spec).imageRects.size();
+        for (int k = 0; k < pictures; k++) {
+            String url = spec.imageUrls.get(k);
+            String key = URL_RE.matcher(url).matches() ? lookupCached(url) : null;
+            bytes += estimatePictureBytes(key != null && cache.size(key) > 0 ? probeImageSize(key) : null);
+        }
+        return bytes;
+    }
 
-                    textBox = hasText
-                            ? new Rectangle2D.Double(textLeft, contentTop, textWidth, textH - GAP * 0.5)
-                            : new Rectangle2D.Double(0, 0, 0, 0);
+    // вход.pptx → вход-001.pptx …; ширина номера по числу частей, чтобы файлы шли по порядку
+    private static Path partPath(Path outPath, int part, int parts) {
+        String base = outPath.getFileName().toString().replaceFirst("(?i)\\.pptx$", "");
+        int width = Math.max(3, Integer.toString(parts).length());
+        return outPath.resolveSibling(base + "-" + String.format(Locale.ROOT, "%0" + width + "d", part + 1) + ".pptx");
+    }
 
-                    // Картинки — на всю ширину слайдовой области, строго по центру
-                    imagesArea = new Rectangle2D.Double(
-                            left + CONTENT_SIDE_PADDING,
-                            contentTop + textH + GAP * 0.5,
-                            width - 2 * CONTENT_SIDE_PADDING,
-                            imgH - GAP * 0.5
-                    );
+    // <выход>.parts.json: какие слайды в какой части — для сшивки и повторной сборки
+    private void writePartsIndex(Path inPath, Path outPath, List<Path> outs, List<Integer> sizes, boolean[] ok,
+                                 long nanos) {
+        JsonWriter json = new JsonWriter().beginObject()
+                .field("input", inPath.toString())
+                .field("slides", sizes.stream().mapToInt(Integer::intValue).sum())
+                .field("chunkSlides", config.chunkSlides)
+                .field("chunkBytes", config.chunkBytes)
+                .field("millis", nanos / 1_000_000)
+                .name("parts").beginArray();
+        int first = 1;
+        for (int k = 0; k < outs.size(); k++) {
+            json.beginObject()
+                    .field("file", outs.get(k).getFileName().toString())
+                    .field("firstSlide", first)
+                    .field("lastSlide", first + sizes.get(k) - 1)
+                    .field("ok", k < ok.length && ok[k])
+                    .endObject();
+            first += sizes.get(k);
+        }
+        json.endArray().endObject();
+        Path index = outPath.resolveSibling(outPath.getFileName().toString().replaceFirst("(?i)\\.pptx$", "") + ".parts.json");
+        try {
+            Path tmp = PackageWriter.tempSibling(index);
+            Files.writeString(tmp, json.toString(), StandardCharsets.UTF_8);
+            PackageWriter.replace(tmp, index);
+        } catch (IOException e) {
+            System.err.println("Не удалось записать " + index + ": " + e.getMessage());
+        }
+    }
 
-                    if (hasText) addBody(slide, spec, textBox);
-                    if (hasImages) addImagesThreeColumns(slide, spec.imageUrls, imagesArea, ppt);
-                } else {
-                    // КОЛОНОЧНЫЙ РЕЖИМ: текст слева, картинки справа (для 3+ шт.)
-                    double textAreaWidth = width * (hasImages ? TEXT_WIDTH_RATIO_WITH_IMAGES : TEXT_WIDTH_RATIO_NO_IMAGES);
-                    double textAreaLeft = hasImages ? left : left + (width - textAreaWidth) / 2.0;
-
-                    Rectangle2D tb = new Rectangle2D.Double(textAreaLeft, contentTop, textAreaWidth, contentHeight);
-                    addBody(slide, spec, tb);
-
-                    if (hasImages) {
-                        double imgAreaLeft = left + textAreaWidth + GAP;
-                        double imgAreaWidth = width - textAreaWidth - GAP;
-                        imagesArea = new Rectangle2D.Double(imgAreaLeft, contentTop, imgAreaWidth, contentHeight);
-                        addImagesThreeColumns(slide, spec.imageUrls, imagesArea, ppt);
+    // ========== ФАЗА ПЛАНИРОВАНИЯ ==========
+    // Слайды, не готовые к imagesDeadline, отменяются и собираются текстовыми.
+    // Пулы общие для всех колод процесса; отмена — через группу с дедлайном.
+    private List<SlidePlan> planAll(String deck, List<SlideSpec> slides, long imagesDeadline, Duration slideDeadline)
+            throws InterruptedException {
+        // одинаковые байты (разные URL одной картинки) декодируются и обрезаются один раз за колоду
+        Map<String, CompletableFuture<PreparedPicture>> pictureMemo = new ConcurrentHashMap<>();
+        try (DeadlineScope<SlidePlan> scope = new DeadlineScope<>(planPool, imagesDeadline)) {
+            for (int i = 0; i < slides.size(); i++) {
+                SlideSpec spec = slides.get(i);
+                int index = i + 1;
+                scope.fork(() -> {
+                    GenerationEvents.Slide event = new GenerationEvents.Slide();
+                    event.begin();
+                    long slideEnd = Math.min(imagesDeadline, DeadlineScope.deadlineIn(slideDeadline.toMillis()));
+                    SlidePlan plan = planSlide(spec, pictureMemo, slideEnd);
+                    if (event.shouldCommit()) {
+                        event.generator = "pc2";
+                        event.deck = deck;
+                        event.index = index;
+                        event.title = spec.title;
+                        event.pictures = (int) plan.pictures.stream().filter(p -> p.png != null).count();
+                        event.commit();
                     }
+                    return plan;
+                });
+            }
+            List<SlidePlan> planned = scope.joinUntilDeadline();
+            List<SlidePlan> plans = new ArrayList<>(slides.size());
+            for (int i = 0; i < slides.size(); i++) {
+                SlidePlan plan = planned.get(i);
+                if (plan == null) {
+                    if (scope.late(i)) System.err.println("Дедлайн колоды: слайд " + (i + 1) + " собран без картинок");
+                    plan = planText(textOnly(slides.get(i)));
                 }
+                plans.add(plan);
+            }
+            return plans;
+        }
+    }
+
+    private SlidePlan planSlide(SlideSpec spec, Map<String, CompletableFuture<PreparedPicture>> pictureMemo,
+                                long deadlineNanos) throws InterruptedException {
+        SlideLayout layout = layoutSlide(spec);
+        List<PicturePlan> pictures = planPictures(spec.imageUrls, layout.imageRects, pictureMemo, deadlineNanos);
+        // ни одна картинка не успела (остались только заглушки) — текст занимает весь слайд
+        if (!pictures.isEmpty() && pictures.stream().allMatch(p -> p.png == null)) {
+            System.err.println("Дедлайн слайда «" + spec.title + "»: картинки не успели, текстовый макет");
+            return planText(textOnly(spec));
+        }
+        TextPlan title = planTitle(spec.title, layout.titleBox);
+        BodyPlan body = layout.bodyBox != null ? planBody(spec, layout.bodyBox) : null;
+        return new SlidePlan(title, body, pictures);
+    }
 
+    private SlidePlan planText(SlideSpec spec) {
+        SlideLayout layout = layoutSlide(spec);
+        TextPlan title = planTitle(spec.title, layout.titleBox);
+        BodyPlan body = layout.bodyBox != null ? planBody(spec, layout.bodyBox) : null;
+        return new SlidePlan(title, body, List.of());
+    }
+
+    private static SlideSpec textOnly(SlideSpec spec) {
+        SlideSpec copy = new SlideSpec(spec.title);
+        copy.paragraphs.addAll(spec.paragraphs);
+        copy.bullets.addAll(spec.bullets);
+        return copy;
+    }
 
-                addFooter(slide, page++, slides.size());
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Геометрия слайда без загрузки картинок — общая для сборки и для --plan
+    private static SlideLayout layoutSlide(SlideSpec spec) {
+        // Расчет областей размещения контента
+        double left = MARGIN;
+        double top = MARGIN;
+        double width = SLIDE_W - 2 * MARGIN;
+
+        Rectangle2D titleBox = new Rectangle2D.Double(left, top, width, TITLE_H);
+
+        double contentTop = top + TITLE_H + (GAP * 2);
+        double contentHeight = SLIDE_H - contentTop - MARGIN;
+
+        boolean hasImages = !spec.imageUrls.isEmpty();
+        boolean hasText = !(spec.paragraphs.isEmpty() && spec.bullets.isEmpty());
+        boolean fewImgs = hasImages && spec.imageUrls.size() <= 3 && STACK_IMAGES_IF_LESS_OR_EQ_2;
+
+        Rectangle2D bodyBox = null;
+        List<Rectangle2D> imageRects = List.of();
+
+        if (fewImgs) {
+            // СТЕКОВЫЙ РЕЖИМ: текст сверху на всю ширину, картинки снизу по центру
+            double textH = contentHeight * FEW_IMG_TEXT_HEIGHT_RATIO;
+            double imgH  = contentHeight - textH;
+
+            // Текст — ширина почти во весь слайд
+            double textLeft = left + CONTENT_SIDE_PADDING;
+            double textWidth = width - 2 * CONTENT_SIDE_PADDING;
+
+            // Картинки — на всю ширину слайдовой области, строго по центру
+            Rectangle2D imagesArea = new Rectangle2D.Double(
+                    left + CONTENT_SIDE_PADDING,
+                    contentTop + textH + GAP * 0.5,
+                    width - 2 * CONTENT_SIDE_PADDING,
+                    imgH - GAP * 0.5
+            );
+
+            if (hasText) bodyBox = new Rectangle2D.Double(textLeft, contentTop, textWidth, textH - GAP * 0.5);
+            imageRects = imageRectsThreeColumns(spec.imageUrls.size(), imagesArea);
+        } else {
+            // КОЛОНОЧНЫЙ РЕЖИМ: текст слева, картинки справа (для 3+ шт.)
+            double textAreaWidth = width * (hasImages ? TEXT_WIDTH_RATIO_WITH_IMAGES : TEXT_WIDTH_RATIO_NO_IMAGES);
+            double textAreaLeft = hasImages ? left : left + (width - textAreaWidth) / 2.0;
+
+            bodyBox = new Rectangle2D.Double(textAreaLeft, contentTop, textAreaWidth, contentHeight);
+
+            if (hasImages) {
+                double imgAreaLeft = left + textAreaWidth + GAP;
+                double imgAreaWidth = width - textAreaWidth - GAP;
+                Rectangle2D imagesArea = new Rectangle2D.Double(imgAreaLeft, contentTop, imgAreaWidth, contentHeight);
+                imageRects = imageRectsThreeColumns(spec.imageUrls.size(), imagesArea);
             }
+        }
+
+        return new SlideLayout(titleBox, bodyBox, imageRects);
+    }
 
-            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outPath))) {
-                ppt.write(os);
+    // ========== РЕЖИМ --plan ==========
+    // Без POI и без сети: раскладка, подбор шрифтов, поиск в кэше и чтение только заголовков картинок
+    private String planReport(String inPath, List<SlideSpec> slides) {
+        long t0 = System.nanoTime();
+        int images = 0, cached = 0, atMinFont = 0;
+        long cachedBytes = 0, estimatedOut = PLAN_PPTX_BASE_BYTES;
+
+        JsonWriter json = new JsonWriter();
+        json.beginObject().field("input", inPath).field("slides", slides.size());
+        json.name("slidePlans").beginArray();
+        for (int i = 0; i < slides.size(); i++) {
+            SlideSpec spec = slides.get(i);
+            SlideLayout layout = layoutSlide(spec);
+            TextPlan title = planTitle(spec.title, layout.titleBox);
+            BodyPlan body = layout.bodyBox != null ? planBody(spec, layout.bodyBox) : null;
+
+            json.beginObject()
+                    .field("index", i + 1)
+                    .field("title", spec.title)
+                    .field("titleFontSize", title.fontSize)
+                    .field("titleLines", title.lines.size());
+            if (body != null) {
+                int lines = 0;
+                for (List<String> l : body.paragraphs) lines += l.size();
+                for (List<String> l : body.bullets) lines += l.size();
+                boolean atMin = body.fontSize <= BODY_FONT_MIN;
+                if (atMin) atMinFont++;
+                json.field("bodyFontSize", body.fontSize)
+                        .field("bodyLines", lines)
+                        .field("bodyAtMinFont", atMin)
+                        .field("bodyOverflow", lines * body.fontSize * BODY_LINE_H_K > body.box.getHeight() - 20);
             }
-            System.out.println("Готово: " + outPath);
-        } catch (Exception e) {
-            System.err.println("Ошибка при формировании презентации: " + e.getMessage());
-            e.printStackTrace(System.err);
+
+            json.name("images").beginArray();
+            for (int k = 0; k < layout.imageRects.size(); k++) {
+                String url = spec.imageUrls.get(k);
+                images++;
+                json.beginObject().field("url", url);
+                String key = URL_RE.matcher(url).matches() ? lookupCached(url) : null;
+                long size = key != null ? cache.size(key) : -1;
+                Dimension dim = size > 0 ? probeImageSize(key) : null;
+                json.field("cached", size > 0);
+                if (size > 0) {
+                    cached++;
+                    cachedBytes += size;
+                    json.field("bytes", size);
+                }
+                if (dim != null) json.field("width", dim.width).field("height", dim.height);
+                json.endObject();
+                estimatedOut += estimatePictureBytes(dim);
+            }
+            json.endArray().endObject();
+            estimatedOut += PLAN_SLIDE_XML_BYTES;
+        }
+        json.endArray();
+
+        json.field("images", images)
+                .field("imagesCached", cached)
+                .field("imagesToFetch", images - cached)
+                .field("cachedBytes", cachedBytes)
+                .field("slidesAtMinFont", atMinFont)
+                .field("estimatedOutputBytes", estimatedOut)
+                .field("planMillis", (System.nanoTime() - t0) / 1_000_000);
+        return json.endObject().toString();
+    }
+
+    // только кэш, без сети; ошибка чтения кэша = промах
+    private String lookupCached(String url) {
+        try {
+            return cache.lookup(url);
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // PNG после обрезки до 16:9; без размеров (нет в кэше) — средняя оценка
+    private static long estimatePictureBytes(Dimension dim) {
+        if (dim == null || dim.width <= 0 || dim.height <= 0) return PLAN_UNKNOWN_PICTURE_BYTES;
+        double w = dim.width, h = dim.height;
+        if (w / h > 16.0 / 9.0) w = h * 16.0 / 9.0;
+        else h = w * 9.0 / 16.0;
+        return (long) (w * h * PLAN_PNG_BYTES_PER_PIXEL);
+    }
+
+    // размеры из заголовка закэшированных данных, без декодирования пикселей
+    private Dimension probeImageSize(String contentKey) {
+        try (InputStream in = cache.open(contentKey)) {
+            return in == null ? null : ImageDecoder.size(in);
+        } catch (IOException e) {
+            return null;
         }
     }
 
+    // ========== ФАЗА СБОРКИ ==========
+    private static void emitSlide(XMLSlideShow ppt, SlidePlan plan, String footer) {
+        XSLFSlide slide = ppt.createSlide();
+        applyPurpleTheme(slide);
+
+        addTitle(slide, plan.title);
+        if (plan.body != null) addBody(slide, plan.body);
+        addImages(slide, plan.pictures, ppt);
+
+        addFooter(slide, footer);
+    }
+
     // ========== ТЕМА И ОФОРМЛЕНИЕ ==========
     private static void applyPurpleTheme(XSLFSlide slide) {
         slide.getBackground().setFillColor(BG_PURPLE_DARK);
@@ -199,7 +857,7 @@ public final class PresentationCreator2 {
         accent.setLineWidth(0);
     }
 
-    private static void addFooter(XSLFSlide slide, int page, int total) {
+    private static void addFooter(XSLFSlide slide, String footer) {
         XSLFTextBox tb = slide.createTextBox();
         tb.setAnchor(new Rectangle((int) MARGIN, SLIDE_H - (int) (MARGIN * 0.6), SLIDE_W - (int) (2 * MARGIN), 22));
         tb.setTextAutofit(TextAutofit.NONE);
@@ -208,7 +866,7 @@ public final class PresentationCreator2 {
         XSLFTextParagraph p = tb.addNewTextParagraph();
         p.setTextAlign(TextParagraph.TextAlign.RIGHT);
         XSLFTextRun r = p.addNewTextRun();
-        r.setText(page + " / " + total);
+        r.setText(footer);
         r.setFontFamily(FONT_FAMILY);
         r.setFontSize(11.0);
         r.setFontColor(FOOTER_COLOR);
@@ -217,19 +875,35 @@ public final class PresentationCreator2 {
     // ========== ПАРСИНГ ВХОДНОГО ФАЙЛА ==========
     private static List<SlideSpec> parseSlides(File file) throws IOException {
         List<SlideSpec> out = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
-            SlideSpec curr = null;
+        try (SlideReader reader = new SlideReader(file)) {
+            for (SlideSpec spec; (spec = reader.next()) != null; ) out.add(spec);
+        }
+        return out;
+    }
+
+    // разбор по одному слайду: для --chunk-* весь вход в памяти не держим
+    private static final class SlideReader implements Closeable {
+        private final BufferedReader br;
+        private SlideSpec curr;   // начат, ещё не отдан
+
+        SlideReader(File file) throws IOException {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        }
+
+        /** Следующий слайд или null в конце файла. */
+        SlideSpec next() throws IOException {
             String line;
             while ((line = br.readLine()) != null) {
                 String s = line.strip();
                 if (s.isEmpty()) continue;
 
                 if (s.startsWith("# Слайд")) {
-                    if (curr != null) out.add(curr);
+                    SlideSpec done = curr;
                     String title = s;
                     int idx = s.indexOf(':');
                     if (idx >= 0 && idx + 1 < s.length()) title = s.substring(idx + 1).trim();
                     curr = new SlideSpec(title);
+                    if (done != null) return done;
                 } else if (s.startsWith("- ")) {
                     ensureSlide(curr);
                     curr.bullets.add(s.substring(2).trim());
@@ -245,9 +919,15 @@ public final class PresentationCreator2 {
                     curr.paragraphs.add(s);
                 }
             }
-            if (curr != null) out.add(curr);
+            SlideSpec last = curr;
+            curr = null;
+            return last;
+        }
+
+        @Override
+        public void close() throws IOException {
+            br.close();
         }
-        return out;
     }
 
     private static void ensureSlide(SlideSpec s) {
@@ -255,9 +935,15 @@ public final class PresentationCreator2 {
     }
 
     // ========== ЗАГОЛОВОК СЛАЙДА ==========
-    private static void addTitle(XSLFSlide slide, String title, Rectangle2D box) {
+    private TextPlan planTitle(String title, Rectangle2D box) {
+        double fs = fitFontSizeMemo(title, box.getWidth() - 28, box.getHeight() - 16, TITLE_FONT_MAX, TITLE_FONT_MIN);
+        List<String> lines = wrapSmart(title, charsPerLine(box.getWidth() - 28, fs));
+        return new TextPlan(box, fs, lines);
+    }
+
+    private static void addTitle(XSLFSlide slide, TextPlan plan) {
         XSLFTextBox tb = slide.createTextBox();
-        tb.setAnchor(toRect(box));
+        tb.setAnchor(toRect(plan.box));
         tb.clearText();
         tb.setTextAutofit(TextAutofit.NONE);
         tb.setWordWrap(true);
@@ -269,8 +955,8 @@ public final class PresentationCreator2 {
         p.setSpaceBefore(0.0);
         p.setSpaceAfter(0.0);
 
-        double fs = fitFontSize(title, box.getWidth() - 28, box.getHeight() - 16, TITLE_FONT_MAX, TITLE_FONT_MIN);
-        List<String> lines = wrapSmart(title, charsPerLine(box.getWidth() - 28, fs));
+        double fs = plan.fontSize;
+        List<String> lines = plan.lines;
         p.setLineSpacing(fs * TITLE_LINE_H_K);
 
         for (int i = 0; i < lines.size(); i++) {
@@ -285,16 +971,8 @@ public final class PresentationCreator2 {
     }
 
     // ========== ОСНОВНОЙ ТЕКСТ СЛАЙДА ==========
-    private static void addBody(XSLFSlide slide, SlideSpec spec, Rectangle2D box) {
-        if (spec.paragraphs.isEmpty() && spec.bullets.isEmpty()) return;
-
-        XSLFTextBox tb = slide.createTextBox();
-        tb.setAnchor(toRect(box));
-        tb.clearText();
-        tb.setInsets(new Insets2D(20, 14, 10, 14));
-        tb.setTextAutofit(TextAutofit.NONE);
-        tb.setWordWrap(true);
-        tb.setVerticalAlignment(VerticalAlignment.TOP);
+    private BodyPlan planBody(SlideSpec spec, Rectangle2D box) {
+        if (spec.paragraphs.isEmpty() && spec.bullets.isEmpty()) return null;
 
         StringBuilder all = new StringBuilder();
         for (String s : spec.paragraphs) {
@@ -306,12 +984,31 @@ public final class PresentationCreator2 {
             all.append(s);
         }
 
-        double fs = fitFontSize(all.toString(), box.getWidth() - 28, box.getHeight() - 20, BODY_FONT_MAX, BODY_FONT_MIN);
+        double fs = fitFontSizeMemo(all.toString(), box.getWidth() - 28, box.getHeight() - 20, BODY_FONT_MAX, BODY_FONT_MIN);
         int cpl = charsPerLine(box.getWidth() - 28, fs);
 
+        List<List<String>> paragraphs = new ArrayList<>(spec.paragraphs.size());
+        for (String para : spec.paragraphs) paragraphs.add(List.copyOf(wrapSmart(para, cpl)));
+
+        List<List<String>> bullets = new ArrayList<>(spec.bullets.size());
+        for (String bullet : spec.bullets) bullets.add(List.copyOf(wrapSmart(bullet, Math.max(12, cpl - 2))));
+
+        return new BodyPlan(box, fs, paragraphs, bullets);
+    }
+
+    private static void addBody(XSLFSlide slide, BodyPlan plan) {
+        XSLFTextBox tb = slide.createTextBox();
+        tb.setAnchor(toRect(plan.box));
+        tb.clearText();
+        tb.setInsets(new Insets2D(20, 14, 10, 14));
+        tb.setTextAutofit(TextAutofit.NONE);
+        tb.setWordWrap(true);
+        tb.setVerticalAlignment(VerticalAlignment.TOP);
+
+        double fs = plan.fontSize;
+
         // Абзацы
-        for (String para : spec.paragraphs) {
-            List<String> lines = wrapSmart(para, cpl);
+        for (List<String> lines : plan.paragraphs) {
             XSLFTextParagraph p = tb.addNewTextParagraph();
             p.setTextAlign(TextParagraph.TextAlign.LEFT);
             p.setBullet(false);
@@ -330,8 +1027,7 @@ public final class PresentationCreator2 {
         }
 
         // Маркированные списки
-        for (String bullet : spec.bullets) {
-            List<String> lines = wrapSmart(bullet, Math.max(12, cpl - 2));
+        for (List<String> lines : plan.bullets) {
             XSLFTextParagraph p = tb.addNewTextParagraph();
             p.setTextAlign(TextParagraph.TextAlign.LEFT);
             p.setBullet(true);
@@ -354,11 +1050,10 @@ public final class PresentationCreator2 {
         }
     }
 
-    // ========== КАРТИНКИ (3 КОЛОНКИ С ЦЕНТРИРОВАНИЕМ) ==========
-// ========== КАРТИНКИ (ЦЕНТРИРОВАННЫЕ) ==========
-    private static void addImagesThreeColumns(XSLFSlide slide, List<String> urls, Rectangle2D area, XMLSlideShow ppt) {
-        int count = Math.min(urls.size(), 3);
-        if (count <= 0) return;
+    // ========== КАРТИНКИ (ЦЕНТРИРОВАННЫЕ) ==========
+    private static List<Rectangle2D> imageRectsThreeColumns(int urlCount, Rectangle2D area) {
+        int count = Math.min(urlCount, 3);
+        if (count <= 0) return List.of();
 
         // Размеры и отступы
         double imgGap = 20; // Отступ между картинками
@@ -375,47 +1070,103 @@ public final class PresentationCreator2 {
         // Позиция Y для вертикального центрирования
         double startY = area.getY() + (area.getHeight() - imgHeight) / 2;
 
+        List<Rectangle2D> rects = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
             double x = startX + i * (imgWidth + imgGap);
-            Rectangle2D imgRect = new Rectangle2D.Double(x, startY, imgWidth, imgHeight);
+            rects.add(new Rectangle2D.Double(x, startY, imgWidth, imgHeight));
+        }
+        return rects;
+    }
 
-            String url = urls.get(i);
-            try {
-                BufferedImage img = downloadImageWithCache(url);
-                if (img == null) {
-                    System.err.println("Пропуск: не удалось получить " + url);
-                    continue;
+    // Картинки слайда грузятся параллельно в одной группе с дедлайном слайда.
+    // Не успевшие — заглушки (PicturePlan с png == null), упавшие — пропускаются, как раньше.
+    private List<PicturePlan> planPictures(List<String> urls, List<Rectangle2D> rects,
+                                           Map<String, CompletableFuture<PreparedPicture>> pictureMemo,
+                                           long deadlineNanos) throws InterruptedException {
+        List<PicturePlan> out = new ArrayList<>(rects.size());
+        if (rects.isEmpty()) return out;
+        try (DeadlineScope<PreparedPicture> scope = new DeadlineScope<>(imagePool, deadlineNanos)) {
+            for (int i = 0; i < rects.size(); i++) {
+                String url = urls.get(i);
+                Rectangle2D rect = rects.get(i);
+                scope.fork(() -> {
+                    try {
+                        PreparedPicture picture = preparePicture(url, rect, pictureMemo, deadlineNanos);
+                        if (picture == null) System.err.println("Пропуск: не удалось получить " + url);
+                        return picture;
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        System.err.println("Не удалось добавить изображение: " + url + " (" + e.getMessage() + ")");
+                        return null;
+                    }
+                });
+            }
+            List<PreparedPicture> prepared = scope.joinUntilDeadline();
+            for (int i = 0; i < rects.size(); i++) {
+                PreparedPicture picture = prepared.get(i);
+                if (picture != null) {
+                    out.add(new PicturePlan(rects.get(i), picture.png, picture.preview));
+                } else if (scope.late(i)) {
+                    System.err.println("Дедлайн: заглушка вместо " + urls.get(i));
+                    out.add(new PicturePlan(rects.get(i), null, null));
                 }
+            }
+        }
+        return out;
+    }
 
-                BufferedImage cropped = cropToAspect(img, 16.0 / 9.0);
-
-                // Тень
-                Rectangle2D shadow = new Rectangle2D.Double(
-                        imgRect.getX() + 6,
-                        imgRect.getY() + 6,
-                        imgRect.getWidth() - 12,
-                        imgRect.getHeight() - 12
-                );
-                XSLFAutoShape sh = slide.createAutoShape();
-                sh.setShapeType(ShapeType.ROUND_RECT);
-                sh.setAnchor(toRect(shadow));
-                sh.setFillColor(new Color(0, 0, 0, 50));
-                sh.setLineWidth(0);
-
-                // Картинка
-                XSLFPictureData pd = ppt.addPicture(toPngBytes(cropped), PictureData.PictureType.PNG);
-                XSLFPictureShape pic = slide.createPicture(pd);
-                pic.setAnchor(toRect(imgRect));
-                pic.setLineColor(new Color(255, 255, 255, 60));
-                pic.setLineWidth(1.5);
-
-            } catch (Exception e) {
-                System.err.println("Не удалось добавить изображение: " + url + " (" + e.getMessage() + ")");
+    private static void addImages(XSLFSlide slide, List<PicturePlan> pictures, XMLSlideShow ppt) {
+        for (PicturePlan picture : pictures) {
+            Rectangle2D imgRect = picture.rect;
+
+            // Тень
+            Rectangle2D shadow = new Rectangle2D.Double(
+                    imgRect.getX() + 6,
+                    imgRect.getY() + 6,
+                    imgRect.getWidth() - 12,
+                    imgRect.getHeight() - 12
+            );
+            XSLFAutoShape sh = slide.createAutoShape();
+            sh.setShapeType(ShapeType.ROUND_RECT);
+            sh.setAnchor(toRect(shadow));
+            sh.setFillColor(new Color(0, 0, 0, 50));
+            sh.setLineWidth(0);
+
+            if (picture.png == null) {
+                addPlaceholder(slide, imgRect);
+                continue;
             }
+
+            // Картинка
+            XSLFPictureData pd = ppt.addPicture(picture.png, PictureData.PictureType.PNG);
+            XSLFPictureShape pic = slide.createPicture(pd);
+            pic.setAnchor(toRect(imgRect));
+            pic.setLineColor(new Color(255, 255, 255, 60));
+            pic.setLineWidth(1.5);
         }
     }
 
-    private static BufferedImage cropToAspect(BufferedImage src, double aspect) {
+    // картинка не успела к дедлайну: рамка с подписью на её месте
+    private static void addPlaceholder(XSLFSlide slide, Rectangle2D rect) {
+        XSLFAutoShape ph = slide.createAutoShape();
+        ph.setShapeType(ShapeType.ROUND_RECT);
+        ph.setAnchor(toRect(rect));
+        ph.setFillColor(new Color(255, 255, 255, 30));
+        ph.setLineColor(new Color(255, 255, 255, 90));
+        ph.setLineWidth(1.5);
+        ph.setVerticalAlignment(VerticalAlignment.MIDDLE);
+        XSLFTextParagraph p = ph.addNewTextParagraph();
+        p.setTextAlign(TextParagraph.TextAlign.CENTER);
+        XSLFTextRun r = p.addNewTextRun();
+        r.setText("Изображение недоступно");
+        r.setFontSize(18.0);
+        r.setFontColor(new Color(255, 255, 255, 170));
+    }
+
+    // центральная область нужной пропорции — прямым копированием в буфер из пула,
+    // без масштабирования и без Graphics2D; буфер вернуть через close()
+    private RasterPool.Lease cropToAspect(BufferedImage src, double aspect) {
         int w = src.getWidth(), h = src.getHeight();
         double cur = (double) w / h;
         int x = 0, y = 0, cw = w, ch = h;
@@ -428,17 +1179,38 @@ public final class PresentationCreator2 {
             y = (h - ch) / 2;
         }
 
-        BufferedImage sub = src.getSubimage(x, y, Math.max(1, cw), Math.max(1, ch));
-        BufferedImage out = new BufferedImage(sub.getWidth(), sub.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = out.createGraphics();
-        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g.drawImage(sub, 0, 0, null);
-        g.dispose();
+        return rasters.copyArgb(src, x, y, Math.max(1, cw), Math.max(1, ch));
+    }
+
+    // после прореживания картинка бывает до двух раз больше рамки — доводим до рамки
+    // усреднением по площади (Resampler); null — уменьшать не нужно
+    private RasterPool.Lease fitToFrame(RasterPool.Lease src, int frameW, int frameH) {
+        int sw = src.image.getWidth(), sh = src.image.getHeight();
+        double k = Math.min((double) frameW / sw, (double) frameH / sh);
+        if (k * RESAMPLE_MIN_SHRINK > 1.0) return null;
+        int dw = Math.max(1, (int) Math.round(sw * k));
+        int dh = Math.max(1, (int) Math.round(sh * k));
+        RasterPool.Lease out = rasters.argb(dw, dh);
+        resampler.downscale(RasterPool.pixels(src), sw, sh, RasterPool.pixels(out), dw, dh);
+        return out;
+    }
+
+    // уменьшенная копия для --preview, чтобы превью не декодировало PNG заново
+    private BufferedImage previewImage(RasterPool.Lease src, Rectangle2D rect) {
+        if (config.previewWidth <= 0) return null;
+        int sw = src.image.getWidth(), sh = src.image.getHeight();
+        double pxPerPt = (double) config.previewWidth / SLIDE_W;
+        double k = Math.min(1.0, Math.min(rect.getWidth() * pxPerPt / sw, rect.getHeight() * pxPerPt / sh));
+        int dw = Math.max(1, (int) Math.round(sw * k));
+        int dh = Math.max(1, (int) Math.round(sh * k));
+        BufferedImage out = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        resampler.downscale(RasterPool.pixels(src), sw, sh, dst, dw, dh);
         return out;
     }
 
     private static byte[] toPngBytes(BufferedImage img) throws IOException {
+        ImageIOHolder.init();
         try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
             ImageIO.write(img, "png", baos);
             return baos.toByteArray();
@@ -446,145 +1218,131 @@ public final class PresentationCreator2 {
     }
 
     // ========== РАБОТА С ИЗОБРАЖЕНИЯМИ И КЭШИРОВАНИЕ ==========
-    private static BufferedImage downloadImageWithCache(String url) throws IOException, InterruptedException {
+    // PNG, обрезанный до 16:9 и вписанный в рамку, по ключу содержимого, шагу прореживания
+    // и размеру рамки: второй URL с теми же байтами в рамке того же размера ждёт результат
+    // первого, в другой рамке — готовит свой PNG и превью. Одинаковые PNG POI кладёт в пакет один раз.
+    private PreparedPicture preparePicture(String url, Rectangle2D rect, Map<String, CompletableFuture<PreparedPicture>> pictureMemo,
+                                  long deadlineNanos) throws IOException, InterruptedException {
         if (!URL_RE.matcher(url).matches()) return null;
-        byte[] bytes = getBytesCached(url);
-        if (bytes == null) return null;
-        if (bytes.length == 0 || bytes.length > MAX_IMAGE_BYTES) return null;
-
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes)) {
-            BufferedImage img = ImageIO.read(bis);
-            if (img != null) return img;
-        }
-
-        ImageIO.scanForPlugins();
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes)) {
-            return ImageIO.read(bis);
-        }
-    }
-
-    private static byte[] getBytesCached(String url) throws IOException, InterruptedException {
-        String key = sha256Hex(url);
-        Path target = CACHE_DIR.resolve(key + ".bin");
-
-        if (Files.isReadable(target)) {
+        String key = getContentKeyCached(url, deadlineNanos);
+        if (key == null) return null;
+        byte[] bytes = cache.read(key);
+        if (bytes == null || bytes.length == 0 || bytes.length > ImageFetcher.MAX_IMAGE_BYTES) return null;
+
+        int targetW = (int) Math.ceil(rect.getWidth() * PICTURE_PX_PER_PT);
+        int targetH = (int) Math.ceil(rect.getHeight() * PICTURE_PX_PER_PT);
+        Dimension src = ImageDecoder.size(bytes);
+        int step = src == null ? 1 : ImageDecoder.subsampling(src.width, src.height, targetW, targetH);
+
+        CompletableFuture<PreparedPicture> mine = new CompletableFuture<>();
+        CompletableFuture<PreparedPicture> prev = pictureMemo.putIfAbsent(key + "/" + step + "/" + targetW + "x" + targetH, mine);
+        if (prev != null) {
             try {
-                byte[] data = Files.readAllBytes(target);
-                if (data.length > 0) return data;
-            } catch (IOException e) {
-                System.err.println("Ошибка чтения кэша: " + target + " — " + e.getMessage());
+                return prev.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
             }
         }
-
-        byte[] fresh = fetchBytesWithRetries(url);
-        if (fresh == null) return null;
-
-        Path tmp = CACHE_DIR.resolve(key + ".tmp");
-        try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
-            os.write(fresh);
-        }
-
         try {
-            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (AtomicMoveNotSupportedException ex) {
-            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            BufferedImage img = ImageDecoder.decode(bytes, targetW, targetH);
+            PreparedPicture picture = null;
+            if (img != null) {
+                GenerationEvents.ImageCropEncode event = new GenerationEvents.ImageCropEncode();
+                event.begin();
+                try (RasterPool.Lease cropped = cropToAspect(img, 16.0 / 9.0);
+                     RasterPool.Lease fitted = fitToFrame(cropped, targetW, targetH)) {
+                    RasterPool.Lease ready = fitted != null ? fitted : cropped;
+                    picture = new PreparedPicture(toPngBytes(ready.image), previewImage(ready, rect));
+                    event.sourceWidth = img.getWidth();
+                    event.sourceHeight = img.getHeight();
+                    event.width = ready.image.getWidth();
+                    event.height = ready.image.getHeight();
+                    event.resampled = fitted != null;
+                    event.pngBytes = picture.png.length;
+                }
+                event.commit();
+            }
+            mine.complete(picture);
+            return picture;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
         }
+    }
 
-        return fresh;
+    // ключ содержимого: индекс каталога, pack (mmap), старые файлы, потом сеть;
+    // скачанное пишется в objects/ под хэшем байтов, каждый URL качается один раз
+    // даже при нескольких процессах на одном cache_images/
+    private String getContentKeyCached(String url, long deadlineNanos) throws IOException, InterruptedException {
+        GenerationEvents.ImageFetch event = new GenerationEvents.ImageFetch();
+        event.begin();
+        long[] fetched = {-1};   // байт из сети; -1 — ключ нашёлся в кэше
+        String key = cache.getOrFetch(url, u -> {
+            byte[] b = fetcher.fetch(u, deadlineNanos);
+            fetched[0] = b == null ? 0 : b.length;
+            return b;
+        });
+        if (event.shouldCommit()) {
+            event.url = url;
+            event.host = hostOf(url);
+            event.cacheHit = fetched[0] < 0;
+            event.ok = key != null;
+            event.bytes = fetched[0] >= 0 ? fetched[0] : key != null ? cache.size(key) : 0;
+            event.commit();
+        }
+        return key;
     }
 
-    private static String sha256Hex(String s) {
+    private static String hostOf(String url) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] dig = md.digest(s.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder(dig.length * 2);
-            for (byte b : dig) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            String host = URI.create(url).getHost();
+            return host == null ? "" : host;
+        } catch (IllegalArgumentException e) {
+            return "";
         }
     }
 
-    private static byte[] fetchBytesWithRetries(String url) throws IOException, InterruptedException {
-        java.net.URI uri = java.net.URI.create(url);
-        String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase();
-        String referer = host.endsWith("gstatic.com") || host.contains("google") ?
-                "https://www.google.com/" : "https://" + host + "/";
-
-        IOException lastIoEx = null;
-        int lastSc = 0;
-
-        for (int attempt = 1; attempt <= 3; attempt++) {
-            try {
-                HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-                conn.setRequestMethod("GET");
-                conn.setConnectTimeout((int) HTTP_CONNECT_TIMEOUT.toMillis());
-                conn.setReadTimeout((int) HTTP_REQUEST_TIMEOUT.toMillis());
-                conn.setInstanceFollowRedirects(true);
-                conn.setRequestProperty("User-Agent", UA);
-                conn.setRequestProperty("Accept", ACCEPT);
-                conn.setRequestProperty("Accept-Language", ACCEPT_LANG);
-                conn.setRequestProperty("Accept-Encoding", ACCEPT_ENC);
-                conn.setRequestProperty("Referer", referer);
-
-                int sc = conn.getResponseCode();
-                lastSc = sc;
-
-                if (sc >= 200 && sc < 300) {
-                    String ct = conn.getContentType();
-                    if (ct != null && ct.toLowerCase().contains("text/html")) {
-                        System.err.println("Пропуск (HTML вместо изображения): " + url + " [CT=" + ct + "]");
-                        return null;
-                    }
-
-                    try (InputStream is = conn.getInputStream();
-                         ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                        byte[] buffer = new byte[8192];
-                        int len, total = 0;
-                        while ((len = is.read(buffer)) != -1) {
-                            baos.write(buffer, 0, len);
-                            total += len;
-                            if (total > MAX_IMAGE_BYTES) {
-                                System.err.println("Изображение слишком большое: " + url);
-                                return null;
-                            }
-                        }
-                        byte[] body = baos.toByteArray();
-                        return body.length > 0 ? body : null;
-                    }
-                } else if (sc == 401 || sc == 403 || sc == 404) {
-                    System.err.println("Доступ закрыт/не найден: " + url + " [HTTP " + sc + "]");
-                    return null;
-                } else if (sc == 429 || (sc >= 500 && sc < 600)) {
-                    backoff(attempt);
-                } else {
-                    System.err.println("Статус " + sc + " для: " + url);
-                    return null;
-                }
-            } catch (IOException io) {
-                lastIoEx = io;
-                System.err.println("IOException на попытке " + attempt + ": " + io.getMessage());
-                backoff(attempt);
+    private static void runCacheCommand(String[] args) {
+        String cmd = args[0];
+        Path packDir = args.length >= 2 ? Paths.get(args[1]) : DEFAULT_CACHE_DIR.resolve(ImageCache.PACK_DIR);
+        try {
+            if ("--cache-export".equals(cmd)) {
+                int n = ImageCache.exportPack(DEFAULT_CACHE_DIR, packDir);
+                System.out.println("В pack добавлено записей: " + n + " → " + packDir);
+            } else if ("--cache-import".equals(cmd) && args.length >= 2) {
+                int n = ImageCache.importPack(packDir, DEFAULT_CACHE_DIR);
+                System.out.println("Из pack распаковано записей: " + n + " → " + DEFAULT_CACHE_DIR);
+            } else {
+                System.err.println("Использование: --cache-export [pack-dir] | --cache-import <pack-dir>");
             }
+        } catch (IOException e) {
+            System.err.println("Ошибка работы с кэшем: " + e.getMessage());
         }
-
-        if (lastIoEx != null) throw lastIoEx;
-        System.err.println("Не удалось получить: " + url + " [HTTP " + lastSc + "]");
-        return null;
     }
 
-    private static void backoff(int attempt) {
-        try {
-            long base = 250L * attempt;
-            long jitter = ThreadLocalRandom.current().nextLong(0, 200);
-            Thread.sleep(base + jitter);
-        } catch (InterruptedException ignored) {}
+    // ========== РАБОТА С ТЕКСТОМ И ШРИФТАМИ ==========
+    // одинаковые заголовки/тексты в одинаковых рамках встречаются между колодами пакета
+    private double fitFontSizeMemo(String text, double boxW, double boxH, double maxPt, double minPt) {
+        if (fontFits.size() > FONT_FIT_MEMO_MAX) fontFits.clear();
+        String key = boxW + "|" + boxH + "|" + maxPt + "|" + minPt + "|" + text;
+        GenerationEvents.TextFit event = new GenerationEvents.TextFit();
+        event.begin();
+        event.memoHit = true;
+        double size = fontFits.computeIfAbsent(key, k -> fitFontSize(text, boxW, boxH, maxPt, minPt, event));
+        event.chars = text.length();
+        event.boxWidth = boxW;
+        event.boxHeight = boxH;
+        event.size = size;
+        event.commit();
+        return size;
     }
 
-    // ========== РАБОТА С ТЕКСТОМ И ШРИФТАМИ ==========
-    private static double fitFontSize(String text, double boxW, double boxH, double maxPt, double minPt) {
+    private static double fitFontSize(String text, double boxW, double boxH, double maxPt, double minPt,
+                                      GenerationEvents.TextFit event) {
+        event.memoHit = false;
         double lo = minPt, hi = maxPt, best = minPt;
         for (int iter = 0; iter < 18; iter++) {
+            event.iterations = iter + 1;
             double mid = (lo + hi) * 0.5;
             if (fits(text, boxW, boxH, mid)) {
                 best = mid;
@@ -729,4 +1487,78 @@ public final class PresentationCreator2 {
             this.title = Objects.requireNonNullElse(title, "");
         }
     }
+
+    private static final class SlideLayout {
+        final Rectangle2D titleBox;
+        final Rectangle2D bodyBox;           // null — место под текст не выделено
+        final List<Rectangle2D> imageRects;  // не больше трёх
+
+        SlideLayout(Rectangle2D titleBox, Rectangle2D bodyBox, List<Rectangle2D> imageRects) {
+            this.titleBox = titleBox;
+            this.bodyBox = bodyBox;
+            this.imageRects = List.copyOf(imageRects);
+        }
+    }
+
+    // Результат фазы планирования: всё посчитано, осталось только создать фигуры
+    private static final class SlidePlan {
+        final TextPlan title;
+        final BodyPlan body;                 // null — текста нет
+        final List<PicturePlan> pictures;
+
+        SlidePlan(TextPlan title, BodyPlan body, List<PicturePlan> pictures) {
+            this.title = title;
+            this.body = body;
+            this.pictures = List.copyOf(pictures);
+        }
+    }
+
+    private static final class TextPlan {
+        final Rectangle2D box;
+        final double fontSize;
+        final List<String> lines;
+
+        TextPlan(Rectangle2D box, double fontSize, List<String> lines) {
+            this.box = (Rectangle2D) box.clone();
+            this.fontSize = fontSize;
+            this.lines = List.copyOf(lines);
+        }
+    }
+
+    private static final class BodyPlan {
+        final Rectangle2D box;
+        final double fontSize;
+        final List<List<String>> paragraphs; // строки после переноса
+        final List<List<String>> bullets;
+
+        BodyPlan(Rectangle2D box, double fontSize, List<List<String>> paragraphs, List<List<String>> bullets) {
+            this.box = (Rectangle2D) box.clone();
+            this.fontSize = fontSize;
+            this.paragraphs = List.copyOf(paragraphs);
+            this.bullets = List.copyOf(bullets);
+        }
+    }
+
+    private static final class PicturePlan {
+        final Rectangle2D rect;
+        final byte[] png;
+        final BufferedImage preview;   // только с --preview
+
+        PicturePlan(Rectangle2D rect, byte[] png, BufferedImage preview) {
+            this.rect = (Rectangle2D) rect.clone();
+            this.png = png;
+            this.preview = preview;
+        }
+    }
+
+    // результат подготовки картинки, общий для одинаковых байтов в колоде
+    private static final class PreparedPicture {
+        final byte[] png;
+        final BufferedImage preview;
+
+        PreparedPicture(byte[] png, BufferedImage preview) {
+            this.png = png;
+            this.preview = preview;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package kinet.smaug;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Журнал готовых папок пакета: перезапуск после сбоя продолжает с того места,
+ * где остановился, и не пересобирает готовое.
+ * <p>
+ * Строка на папку: {@code имя \t отпечаток входа \t мс}, дописывается после того,
+ * как колода уже атомарно легла на место, и сразу сбрасывается на диск. Папка
+ * считается готовой, если её отпечаток не изменился; последняя строка,
+ * оборванная сбоем, при чтении отбрасывается и обрезается в файле, чтобы
+ * следующая запись не склеилась с её хвостом.
+ */
+final class ProgressJournal implements AutoCloseable {
+
+    static final String FILE = ".progress.journal";
+
+    private final Map<String, String> done = new ConcurrentHashMap<>();   // имя → отпечаток
+    private final FileChannel channel;
+
+    /** {@code fresh} — начать новый пакет: прежние записи отбрасываются. */
+    ProgressJournal(Path file, boolean fresh) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        long valid = !fresh && Files.isRegularFile(file) ? load(file) : 0;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    int size() {
+        return done.size();
+    }
+
+    boolean isDone(String name, String fingerprint) {
+        return fingerprint.equals(done.get(name));
+    }
+
+    synchronized void record(String name, String fingerprint, long millis) throws IOException {
+        byte[] line = (name + '\t' + fingerprint + '\t' + millis + '\n').getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.wrap(line);
+        while (buf.hasRemaining()) channel.write(buf);
+        channel.force(false);
+        done.put(name, fingerprint);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // длина целых строк в байтах: хвост без перевода строки — оборванная запись
+    private long load(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') end--;
+        if (end == 0) return 0;
+        for (String line : new String(bytes, 0, end - 1, StandardCharsets.UTF_8).split("\n")) {
+            String[] f = line.split("\t");
+            if (f.length == 3) done.put(f[0], f[1]);
+        }
+        return end;
+    }
+}
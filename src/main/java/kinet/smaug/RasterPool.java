@@ -0,0 +1,163 @@
+package kinet.smaug;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул буферов ARGB для обрезки картинок.
+ * <p>
+ * Буферы {@code int[]} раздаются по корзинам (степени двойки по числу пикселей),
+ * поэтому на типичных фото пул быстро «прогревается», и дальше обрезка больших
+ * картинок не создаёт новых массивов в куче больших объектов. Поверх буфера
+ * строится лёгкий {@link BufferedImage} той же раскладки, что {@code TYPE_INT_ARGB}.
+ * <p>
+ * Копирование из исходного растра — напрямую по строкам для частых раскладок
+ * (INT_RGB/INT_ARGB, 3BYTE_BGR, 4BYTE_ABGR), без {@code Graphics2D}.
+ */
+final class RasterPool {
+
+    private static final int MIN_BUCKET_SHIFT = 16;         // 64K пикселей
+    private static final int MAX_BUCKET_SHIFT = 26;         // 64M пикселей — больше не храним
+    private static final long RETAINED_BYTES_MAX = 256L * 1024 * 1024;
+
+    private static final ColorModel ARGB = new DirectColorModel(32,
+            0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000);
+
+    private final Queue<int[]>[] buckets;
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    RasterPool() {
+        buckets = (Queue<int[]>[]) new Queue<?>[MAX_BUCKET_SHIFT + 1];
+        for (int i = MIN_BUCKET_SHIFT; i <= MAX_BUCKET_SHIFT; i++) buckets[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /** Картинка ARGB поверх буфера из пула; вернуть буфер — {@link Lease#close()}. */
+    final class Lease implements AutoCloseable {
+        final BufferedImage image;
+        private int[] data;
+
+        private Lease(int[] data, int w, int h) {
+            this.data = data;
+            DataBufferInt db = new DataBufferInt(data, w * h);
+            WritableRaster raster = Raster.createWritableRaster(
+                    new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, w, h,
+                            new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000}), db, null);
+            this.image = new BufferedImage(ARGB, raster, false, null);
+        }
+
+        @Override
+        public void close() {
+            if (data != null) release(data);
+            data = null;
+        }
+    }
+
+    /** Пустая ARGB-картинка {@code w×h} на буфере из пула. */
+    Lease argb(int w, int h) {
+        return new Lease(acquire((long) w * h), w, h);
+    }
+
+    /** Буфер пикселей картинки из {@link Lease} (строки без отступов). */
+    static int[] pixels(Lease lease) {
+        return ((DataBufferInt) lease.image.getRaster().getDataBuffer()).getData();
+    }
+
+    /** Область {@code (x, y, w, h)} источника, скопированная в ARGB-буфер из пула. */
+    Lease copyArgb(BufferedImage src, int x, int y, int w, int h) {
+        Lease lease = argb(w, h);
+        int[] dst = pixels(lease);
+        if (!copyDirect(src, x, y, w, h, dst)) {
+            // редкие раскладки (палитра, серый, 16 бит): поштучное преобразование в sRGB
+            src.getRGB(x, y, w, h, dst, 0, w);
+        }
+        return lease;
+    }
+
+    private int[] acquire(long pixels) {
+        int shift = bucketShift(pixels);
+        if (shift > MAX_BUCKET_SHIFT) return new int[(int) pixels];
+        int[] a = buckets[shift].poll();
+        if (a != null) {
+            retainedBytes.addAndGet(-4L * a.length);
+            return a;
+        }
+        return new int[1 << shift];
+    }
+
+    private void release(int[] a) {
+        int shift = Integer.numberOfTrailingZeros(a.length);
+        if (a.length != 1 << shift || shift < MIN_BUCKET_SHIFT || shift > MAX_BUCKET_SHIFT) return;
+        long bytes = 4L * a.length;
+        if (retainedBytes.addAndGet(bytes) > RETAINED_BYTES_MAX) {
+            retainedBytes.addAndGet(-bytes);
+            return;
+        }
+        buckets[shift].offer(a);
+    }
+
+    private static int bucketShift(long pixels) {
+        int shift = 64 - Long.numberOfLeadingZeros(Math.max(1, pixels - 1));
+        return Math.max(MIN_BUCKET_SHIFT, shift);
+    }
+
+    private static boolean copyDirect(BufferedImage src, int x, int y, int w, int h, int[] dst) {
+        WritableRaster r = src.getRaster();
+        int tx = x - r.getSampleModelTranslateX();
+        int ty = y - r.getSampleModelTranslateY();
+        switch (src.getType()) {
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) r.getSampleModel();
+                DataBufferInt db = (DataBufferInt) r.getDataBuffer();
+                int[] s = db.getData();
+                int stride = sm.getScanlineStride();
+                int base = db.getOffset();
+                boolean opaque = src.getType() == BufferedImage.TYPE_INT_RGB;
+                for (int row = 0; row < h; row++) {
+                    int si = base + (ty + row) * stride + tx;
+                    int di = row * w;
+                    if (opaque) {
+                        for (int i = 0; i < w; i++) dst[di + i] = 0xff000000 | s[si + i];
+                    } else {
+                        System.arraycopy(s, si, dst, di, w);
+                    }
+                }
+                return true;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) r.getSampleModel();
+                DataBufferByte db = (DataBufferByte) r.getDataBuffer();
+                byte[] s = db.getData();
+                int stride = sm.getScanlineStride();
+                int ps = sm.getPixelStride();
+                int[] off = sm.getBandOffsets();   // R, G, B[, A]
+                boolean alpha = off.length == 4;
+                int base = db.getOffset();
+                for (int row = 0; row < h; row++) {
+                    int si = base + (ty + row) * stride + tx * ps;
+                    int di = row * w;
+                    for (int i = 0; i < w; i++, si += ps) {
+                        int a = alpha ? s[si + off[3]] & 0xff : 0xff;
+                        dst[di + i] = a << 24 | (s[si + off[0]] & 0xff) << 16
+                                | (s[si + off[1]] & 0xff) << 8 | (s[si + off[2]] & 0xff);
+                    }
+                }
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package kinet.smaug;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Замер уменьшения картинок: прежний путь через {@code Graphics2D.drawImage}
+ * с бикубической интерполяцией против {@link Resampler} (скалярное и векторное ядро).
+ * Для каждого варианта — среднее время и отличие от результата Graphics2D.
+ * <pre>
+ *   java --add-modules jdk.incubator.vector -cp ... kinet.smaug.ResampleBenchmark
+ *        [картинка] [--size 2400x1350] [--target 1280x720] [--iterations 20]
+ * </pre>
+ * Без файла генерируется синтетическая картинка заданного размера. По умолчанию —
+ * как на входе {@code fitToFrame}: после прореживания до двух раз больше рамки.
+ * Векторное ядро работает только с C2; под {@code -XX:TieredStopAtLevel=1} сравнивается скалярное.
+ */
+public final class ResampleBenchmark {
+
+    private ResampleBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        String file = null;
+        int sw = 2400, sh = 1350, tw = 1280, th = 720, iterations = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size" -> {
+                    int[] d = dims(args[++i]);
+                    sw = d[0];
+                    sh = d[1];
+                }
+                case "--target" -> {
+                    int[] d = dims(args[++i]);
+                    tw = d[0];
+                    th = d[1];
+                }
+                case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+                default -> file = args[i];
+            }
+        }
+
+        BufferedImage src = file != null ? ImageDecoder.decode(Files.readAllBytes(Paths.get(file)), 0, 0) : synthetic(sw, sh);
+        if (src == null) {
+            System.err.println("Не удалось прочитать картинку: " + file);
+            System.exit(2);
+        }
+        RasterPool pool = new RasterPool();
+        RasterPool.Lease argb = pool.copyArgb(src, 0, 0, src.getWidth(), src.getHeight());
+        int w = src.getWidth(), h = src.getHeight();
+        double k = Math.min((double) tw / w, (double) th / h);
+        int dw = Math.max(1, (int) Math.round(w * k)), dh = Math.max(1, (int) Math.round(h * k));
+        System.out.printf(Locale.ROOT, "%dx%d → %dx%d, повторов: %d, потоков fork-join: %d%n",
+                w, h, dw, dh, iterations, ForkJoinPool.getCommonPoolParallelism());
+
+        int[] reference = new int[dw * dh];
+        double g2dMs = time(iterations, () -> graphics2d(argb.image, dw, dh, reference));
+        report("graphics2d/bicubic", g2dMs, w, h, null, reference);
+
+        int[] out = new int[dw * dh];
+        Resampler scalar = new Resampler(Resampler.SCALAR);
+        double scalarMs = time(iterations, () -> scalar.downscale(RasterPool.pixels(argb), w, h, out, dw, dh));
+        report("resampler/scalar", scalarMs, w, h, out, reference);
+
+        if (Resampler.defaultKernel() != Resampler.SCALAR) {
+            Resampler vector = new Resampler(Resampler.defaultKernel());
+            double vectorMs = time(iterations, () -> vector.downscale(RasterPool.pixels(argb), w, h, out, dw, dh));
+            report("resampler/" + Resampler.defaultKernel().name(), vectorMs, w, h, out, reference);
+        } else {
+            System.out.println("векторное ядро недоступно: нужны --add-modules jdk.incubator.vector и C2");
+        }
+        argb.close();
+    }
+
+    // прежний способ: drawImage с бикубическими подсказками в картинку ARGB нужного размера
+    private static void graphics2d(BufferedImage src, int dw, int dh, int[] out) {
+        BufferedImage dst = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.drawImage(src, 0, 0, dw, dh, null);
+        g.dispose();
+        dst.getRGB(0, 0, dw, dh, out, 0, dw);
+    }
+
+    private static double time(int iterations, Runnable r) {
+        for (int i = 0; i < Math.max(3, iterations / 4); i++) r.run();   // прогрев JIT
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) r.run();
+        return (System.nanoTime() - t0) / 1e6 / iterations;
+    }
+
+    private static void report(String name, double ms, int w, int h, int[] out, int[] reference) {
+        String diff = "";
+        if (out != null) {
+            long sum = 0;
+            int max = 0;
+            for (int i = 0; i < out.length; i++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int d = Math.abs(((out[i] >>> shift) & 0xff) - ((reference[i] >>> shift) & 0xff));
+                    sum += d;
+                    max = Math.max(max, d);
+                }
+            }
+            diff = String.format(Locale.ROOT, ", отличие от graphics2d: среднее %.2f, макс %d", sum / (4.0 * out.length), max);
+        }
+        System.out.printf(Locale.ROOT, "%-22s %8.2f мс  %7.1f Мпикс/с%s%n", name, ms, w * (double) h / ms / 1000, diff);
+    }
+
+    private static int[] dims(String s) {
+        String[] p = s.toLowerCase(Locale.ROOT).split("x");
+        return new int[]{Integer.parseInt(p[0]), Integer.parseInt(p[1])};
+    }
+
+    private static BufferedImage synthetic(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = x * 255 / w, g = y * 255 / h, b = ((x / 16 + y / 16) & 1) * 255;
+                img.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,290 @@
+package kinet.smaug;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Уменьшение ARGB-картинок усреднением по площади (box-фильтр с дробным
+ * покрытием), раздельно по вертикали и горизонтали.
+ * <p>
+ * Выходная строка считается за один заход: строки источника, которые она
+ * покрывает, прибавляются с целыми весами (14 бит) к накопителям каналов прямо
+ * из ARGB — это {@link RowKernel}, — затем накопители сужаются по горизонтали
+ * и упаковываются в результат. Промежуточной картинки нет; накопители задач
+ * берутся из пула, так что после прогрева {@code downscale} не выделяет память.
+ * <p>
+ * Ядро векторизуется через {@code jdk.incubator.vector}, если модуль подключён
+ * ({@code --add-modules jdk.incubator.vector}) и работает C2; иначе — скалярный
+ * цикл. Отключить вектор явно: {@code -Dsmaug.vector=false}.
+ * <p>
+ * Цвет усредняется с предумноженной альфой, чтобы прозрачные пиксели не
+ * давали тёмной каймы. Большие картинки режутся на полосы выходных строк
+ * и считаются в общем {@link ForkJoinPool}: оба прохода — внутри полосы.
+ */
+final class Resampler {
+
+    /** Единица целого веса: веса одной выходной строки в сумме дают ровно {@code ONE}. */
+    static final int ONE = 1 << 14;
+
+    /**
+     * Строка ARGB с целым весом в накопители: {@code acc[i] += w·R}, {@code acc[len+i] += w·G},
+     * {@code acc[2·len+i] += w·B} для {@code src[s..s+len)}; при {@code alpha} цвета
+     * умножаются на альфу, а {@code acc[3·len+i] += w·A}.
+     */
+    interface RowKernel {
+        void accumulate(int w, int[] src, int s, int[] acc, int len, boolean alpha);
+
+        String name();
+    }
+
+    static final RowKernel SCALAR = new RowKernel() {
+        @Override
+        public void accumulate(int w, int[] src, int s, int[] acc, int len, boolean alpha) {
+            int g = len, b = 2 * len, a = 3 * len;
+            if (!alpha) {
+                for (int i = 0; i < len; i++) {
+                    int px = src[s + i];
+                    acc[i] += w * ((px >>> 16) & 0xff);
+                    acc[g + i] += w * ((px >>> 8) & 0xff);
+                    acc[b + i] += w * (px & 0xff);
+                }
+                return;
+            }
+            for (int i = 0; i < len; i++) {
+                int px = src[s + i];
+                int wa = w * (px >>> 24);
+                acc[i] += wa * ((px >>> 16) & 0xff);
+                acc[g + i] += wa * ((px >>> 8) & 0xff);
+                acc[b + i] += wa * (px & 0xff);
+                acc[a + i] += wa;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    };
+
+    // полоса выходных строк на задачу fork-join; меньшие картинки — в вызывающем потоке
+    private static final int ROWS_PER_TASK = 16;
+    private static final long PARALLEL_MIN_PIXELS = 1L << 20;
+
+    private static final RowKernel DEFAULT_KERNEL = loadKernel();
+
+    private final RowKernel kernel;
+    private final Queue<int[]> scratch = new ConcurrentLinkedQueue<>();   // накопители задач
+
+    Resampler() {
+        this(DEFAULT_KERNEL);
+    }
+
+    Resampler(RowKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /** Ядро по умолчанию: векторное, если модуль доступен. */
+    static RowKernel defaultKernel() {
+        return DEFAULT_KERNEL;
+    }
+
+    /**
+     * Уменьшает {@code sw×sh} (ARGB, без отступов строк) до {@code dw×dh}.
+     * Увеличение не поддерживается: стороны результата не больше исходных.
+     */
+    void downscale(int[] src, int sw, int sh, int[] dst, int dw, int dh) {
+        downscale(src, sw, sh, dst, dw, dh, (long) sw * sh >= PARALLEL_MIN_PIXELS);
+    }
+
+    // parallel — полосами в fork-join или одним проходом в текущем потоке; тесты сравнивают оба пути
+    void downscale(int[] src, int sw, int sh, int[] dst, int dw, int dh, boolean parallel) {
+        if (dw > sw || dh > sh || dw <= 0 || dh <= 0) {
+            throw new IllegalArgumentException("Ожидается уменьшение: " + sw + "x" + sh + " → " + dw + "x" + dh);
+        }
+        Pass pass = new Pass(src, sw, dst, dw, Weights.box(sw, dw), Weights.box(sh, dh), !isOpaque(src, sw * sh));
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new Band(pass, 0, dh));
+        } else {
+            rows(pass, 0, dh);
+        }
+    }
+
+    // ========== ПРОХОДЫ ==========
+    // одна картинка: источник, результат и веса по осям
+    private static final class Pass {
+        final int[] src;
+        final int sw;
+        final int[] dst;
+        final int dw;
+        final Weights wx;
+        final Weights wy;
+        final boolean alpha;
+
+        Pass(int[] src, int sw, int[] dst, int dw, Weights wx, Weights wy, boolean alpha) {
+            this.src = src;
+            this.sw = sw;
+            this.dst = dst;
+            this.dw = dw;
+            this.wx = wx;
+            this.wy = wy;
+            this.alpha = alpha;
+        }
+    }
+
+    // выходные строки [from, to): вертикальный проход в накопители, затем горизонтальный
+    private void rows(Pass p, int from, int to) {
+        int len = (p.alpha ? 4 : 3) * p.sw;
+        int[] acc = scratch.poll();
+        if (acc == null || acc.length < len) acc = new int[len];
+        try {
+            Weights wy = p.wy;
+            for (int r = from; r < to; r++) {
+                Arrays.fill(acc, 0, len, 0);
+                for (int j = wy.first[r], k = wy.start[r]; j < wy.first[r + 1]; j++, k++) {
+                    kernel.accumulate(wy.q[j], p.src, k * p.sw, acc, p.sw, p.alpha);
+                }
+                horizontal(p, acc, r * p.dw);
+            }
+        } finally {
+            scratch.offer(acc);
+        }
+    }
+
+    // накопители строки (каналы по sw) → dw пикселей ARGB с позиции d
+    private static void horizontal(Pass p, int[] acc, int d) {
+        Weights wx = p.wx;
+        int sw = p.sw, dw = p.dw;
+        int[] dst = p.dst;
+        final float norm = 1f / ONE;
+        for (int x = 0; x < dw; x++) {
+            float r = 0, g = 0, b = 0, a = 0;
+            for (int j = wx.first[x], k = wx.start[x]; j < wx.first[x + 1]; j++, k++) {
+                float w = wx.w[j];
+                r += w * acc[k];
+                g += w * acc[sw + k];
+                b += w * acc[2 * sw + k];
+                if (p.alpha) a += w * acc[3 * sw + k];
+            }
+            if (!p.alpha) {
+                dst[d + x] = 0xff000000 | clamp(r * norm) << 16 | clamp(g * norm) << 8 | clamp(b * norm);
+                continue;
+            }
+            // цвета предумножены на альфу: делим на её сумму
+            float unpremul = a > 0 ? 1f / a : 0f;
+            dst[d + x] = clamp(a * norm) << 24
+                    | clamp(r * unpremul) << 16 | clamp(g * unpremul) << 8 | clamp(b * unpremul);
+        }
+    }
+
+    private final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Pass pass;
+        private final int from;
+        private final int to;
+
+        Band(Pass pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                rows(pass, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Band(pass, from, mid), new Band(pass, mid, to));
+        }
+    }
+
+    private static int clamp(float v) {
+        int i = Math.round(v);
+        return i < 0 ? 0 : Math.min(255, i);
+    }
+
+    private static boolean isOpaque(int[] src, int n) {
+        for (int i = 0; i < n; i++) {
+            if ((src[i] >>> 24) != 0xff) return false;
+        }
+        return true;
+    }
+
+    // ========== ВЕСА ==========
+    // выходной пиксель i покрывает [i*s, (i+1)*s) исходных; вес — доля покрытия.
+    // Плоские массивы: веса пикселя i — w[first[i] .. first[i+1]) (и целые q), начиная с исходного start[i]
+    static final class Weights {
+        final int[] start;
+        final int[] first;
+        final float[] w;
+        final int[] q;
+
+        private Weights(int[] start, int[] first, float[] w, int[] q) {
+            this.start = start;
+            this.first = first;
+            this.w = w;
+            this.q = q;
+        }
+
+        static Weights box(int srcLen, int dstLen) {
+            double scale = (double) srcLen / dstLen;
+            int[] start = new int[dstLen];
+            int[] first = new int[dstLen + 1];
+            int cap = dstLen * ((int) Math.ceil(scale) + 1);
+            float[] w = new float[cap];
+            int[] q = new int[cap];
+            int n = 0;
+            for (int i = 0; i < dstLen; i++) {
+                double lo = i * scale, hi = Math.min(srcLen, (i + 1) * scale);
+                int k0 = (int) Math.floor(lo);
+                int k1 = Math.max(k0 + 1, Math.min(srcLen, (int) Math.ceil(hi)));
+                start[i] = k0;
+                first[i] = n;
+                // целые веса — разности округлённых накопленных сумм: в сумме ровно ONE
+                double sum = 0;
+                int prev = 0;
+                for (int k = k0; k < k1; k++, n++) {
+                    double cover = Math.max(0, Math.min(hi, k + 1) - Math.max(lo, k)) / scale;
+                    sum += cover;
+                    int next = k == k1 - 1 ? ONE : (int) Math.round(sum * ONE);
+                    w[n] = (float) cover;
+                    q[n] = next - prev;
+                    prev = next;
+                }
+            }
+            first[dstLen] = n;
+            return new Weights(start, first, w, q);
+        }
+    }
+
+    // класс с Vector API грузится только при наличии модуля, иначе — NoClassDefFoundError.
+    // Без C2 (-XX:TieredStopAtLevel=1 в лаунчере) векторы не интринсифицируются
+    // и работают медленнее скалярного цикла
+    private static RowKernel loadKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("smaug.vector", "true"))) return SCALAR;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return SCALAR;
+        if (!c2Enabled()) return SCALAR;
+        try {
+            return (RowKernel) Class.forName("kinet.smaug.VectorRowKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR;
+        }
+    }
+
+    private static boolean c2Enabled() {
+        try {
+            HotSpotDiagnosticMXBean hs = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hs == null || Integer.parseInt(hs.getVMOption("TieredStopAtLevel").getValue()) >= 4;
+        } catch (RuntimeException | LinkageError e) {
+            return true;
+        }
+    }
+}
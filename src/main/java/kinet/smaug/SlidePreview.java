@@ -0,0 +1,178 @@
+package kinet.smaug;
+
+import org.apache.poi.sl.draw.BitmapImageRenderer;
+import org.apache.poi.sl.draw.Drawable;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFPictureData;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Превью колоды: каждый слайд рисуется через {@link XSLFSlide#draw(Graphics2D)}
+ * в уменьшенный PNG, слайды — параллельно. Вместо отдельных файлов можно
+ * собрать одну «контактную» сетку.
+ * <p>
+ * Картинки слайдов не декодируются заново: генератор заранее регистрирует уже
+ * готовые (уменьшенные) изображения по хэшу байтов ({@link #register}), а
+ * {@link CachedImageRenderer} берёт их оттуда. Незарегистрированные картинки
+ * декодируются один раз на колоду, в том числе части, привязанные к файлам
+ * ({@link PackageWriter#linkFile}): вместо их заглушки читается сам файл.
+ */
+final class SlidePreview {
+
+    static final int DEFAULT_WIDTH = 320;
+
+    private static final int SHEET_COLUMNS = 4;
+    private static final int SHEET_GAP = 8;
+    private static final Color SHEET_BACKGROUND = new Color(24, 24, 32);
+
+    private final int width;
+    private final boolean sheet;
+    // хэш байтов картинки (или "file:" + путь) → декодированное изображение
+    private final Map<String, BufferedImage> decoded = new ConcurrentHashMap<>();
+
+    SlidePreview(int width, boolean sheet) {
+        this.width = width;
+        this.sheet = sheet;
+    }
+
+    /** Уже декодированная картинка для байтов, которые легли в пакет. */
+    void register(byte[] pictureBytes, BufferedImage image) {
+        decoded.putIfAbsent(ImageCache.sha256Hex(pictureBytes), image);
+    }
+
+    /**
+     * Рисует все слайды колоды; {@code deckPath} — путь к .pptx, рядом появится
+     * {@code <имя>.preview/slide-NN.png} или {@code <имя>.preview.png} (сетка).
+     */
+    Path render(XMLSlideShow ppt, Path deckPath, Executor pool) throws IOException {
+        Dimension page = ppt.getPageSize();
+        int height = (int) Math.round(width * page.getHeight() / page.getWidth());
+        List<XSLFSlide> slides = ppt.getSlides();
+        // хэш заглушки → файл: рендерер получает только байты части
+        Map<String, Path> files = new HashMap<>();
+        for (XSLFPictureData pd : ppt.getPictureData()) {
+            Path file = PackageWriter.linkedFile(pd.getPackagePart());
+            if (file != null) files.put(ImageCache.sha256Hex(pd.getData()), file);
+        }
+        List<CompletableFuture<BufferedImage>> thumbs = new ArrayList<>(slides.size());
+        for (XSLFSlide slide : slides) {
+            thumbs.add(CompletableFuture.supplyAsync(() -> draw(slide, page, height, files), pool));
+        }
+
+        String base = deckPath.getFileName().toString().replaceFirst("(?i)\\.pptx$", "");
+        try {
+            if (sheet) {
+                Path out = deckPath.resolveSibling(base + ".preview.png");
+                ImageIO.write(contactSheet(thumbs, height), "png", out.toFile());
+                return out;
+            }
+            Path dir = deckPath.resolveSibling(base + ".preview");
+            Files.createDirectories(dir);
+            for (int i = 0; i < thumbs.size(); i++) {
+                ImageIO.write(thumbs.get(i).join(), "png", dir.resolve(String.format("slide-%02d.png", i + 1)).toFile());
+            }
+            return dir;
+        } catch (CompletionException e) {
+            throw new IOException("Не удалось нарисовать слайд: " + e.getCause(), e.getCause());
+        } finally {
+            decoded.clear();
+        }
+    }
+
+    private BufferedImage draw(XSLFSlide slide, Dimension page, int height, Map<String, Path> files) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            // рендерер с состоянием (loadImage → drawImage): свой на каждый поток
+            g.setRenderingHint(Drawable.IMAGE_RENDERER, new CachedImageRenderer(decoded, files, width));
+            g.scale(width / page.getWidth(), height / page.getHeight());
+            slide.draw(g);
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+
+    private BufferedImage contactSheet(List<CompletableFuture<BufferedImage>> thumbs, int height) {
+        int cols = Math.min(SHEET_COLUMNS, Math.max(1, thumbs.size()));
+        int rows = (thumbs.size() + cols - 1) / cols;
+        BufferedImage out = new BufferedImage(
+                cols * width + (cols + 1) * SHEET_GAP, Math.max(1, rows) * height + (rows + 1) * SHEET_GAP,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setColor(SHEET_BACKGROUND);
+            g.fillRect(0, 0, out.getWidth(), out.getHeight());
+            for (int i = 0; i < thumbs.size(); i++) {
+                int x = SHEET_GAP + (i % cols) * (width + SHEET_GAP);
+                int y = SHEET_GAP + (i / cols) * (height + SHEET_GAP);
+                g.drawImage(thumbs.get(i).join(), x, y, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    /**
+     * {@link BitmapImageRenderer}, который сначала смотрит в общий словарь
+     * декодированных картинок колоды и только потом декодирует сам.
+     */
+    static final class CachedImageRenderer extends BitmapImageRenderer {
+        private final Map<String, BufferedImage> decoded;
+        private final Map<String, Path> files;
+        private final int maxSide;     // больше ширины превью картинке не нужно
+
+        CachedImageRenderer(Map<String, BufferedImage> decoded, Map<String, Path> files, int maxSide) {
+            this.decoded = decoded;
+            this.files = files;
+            this.maxSide = maxSide;
+        }
+
+        @Override
+        public void loadImage(InputStream data, String contentType) throws IOException {
+            loadImage(data.readAllBytes(), contentType);
+        }
+
+        @Override
+        public void loadImage(byte[] data, String contentType) throws IOException {
+            String hash = ImageCache.sha256Hex(data);
+            Path file = files.get(hash);
+            String key = file != null ? "file:" + file : hash;
+            BufferedImage hit = decoded.get(key);
+            if (hit == null) {
+                byte[] bytes = file != null ? Files.readAllBytes(file) : data;
+                hit = ImageDecoder.decode(bytes, maxSide, maxSide);
+                if (hit == null) {
+                    super.loadImage(data, contentType);
+                    return;
+                }
+                decoded.putIfAbsent(key, hit);
+            }
+            img = hit;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package kinet.smaug;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Resampler.RowKernel} на {@code jdk.incubator.vector}: распаковка ARGB
+ * и умножение-сложение по полосам предпочтительной ширины, хвост — скалярно.
+ * Загружается только через {@code Resampler}, когда модуль есть в загрузочном слое.
+ */
+final class VectorRowKernel implements Resampler.RowKernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void accumulate(int w, int[] src, int s, int[] acc, int len, boolean alpha) {
+        int g = len, b = 2 * len, a = 3 * len;
+        int i = 0;
+        int upper = SPECIES.loopBound(len);
+        for (; i < upper; i += SPECIES.length()) {
+            IntVector px = IntVector.fromArray(SPECIES, src, s + i);
+            IntVector wv = alpha ? px.lanewise(VectorOperators.LSHR, 24).mul(w) : IntVector.broadcast(SPECIES, w);
+            add(acc, i, px.lanewise(VectorOperators.LSHR, 16).and(0xff).mul(wv));
+            add(acc, g + i, px.lanewise(VectorOperators.LSHR, 8).and(0xff).mul(wv));
+            add(acc, b + i, px.and(0xff).mul(wv));
+            if (alpha) add(acc, a + i, wv);
+        }
+        for (; i < len; i++) {
+            int px = src[s + i];
+            int wa = alpha ? w * (px >>> 24) : w;
+            acc[i] += wa * ((px >>> 16) & 0xff);
+            acc[g + i] += wa * ((px >>> 8) & 0xff);
+            acc[b + i] += wa * (px & 0xff);
+            if (alpha) acc[a + i] += wa;
+        }
+    }
+
+    private static void add(int[] acc, int at, IntVector v) {
+        IntVector.fromArray(SPECIES, acc, at).add(v).intoArray(acc, at);
+    }
+
+    @Override
+    public String name() {
+        return "vector/" + SPECIES.length() + "x" + Integer.SIZE;
+    }
+}
@@ -0,0 +1,144 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** Кэш картинок: ключевая форма адресов и загрузка через FaultServer — в кэш попадают только целые картинки. */
+class ImageCacheTest {
+
+    @TempDir
+    static Path root;
+    static FaultServer server;
+    static String base;
+
+    @TempDir
+    Path cacheDir;
+
+    private ImageCache cache;
+    private ImageFetcher fetcher;
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            BufferedImage img = new BufferedImage(16 + i, 16, BufferedImage.TYPE_INT_RGB);
+            img.setRGB(1, 1, 0x00FF00 + i);
+            ImageIO.write(img, "png", root.resolve("c" + i + ".png").toFile());
+        }
+        FaultServer.Faults faults = new FaultServer.Faults();
+        faults.retryAfterSec = 1;
+        server = new FaultServer(root, faults);
+        base = "http://127.0.0.1:" + server.start(0);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        cache = new ImageCache(cacheDir);
+        fetcher = new ImageFetcher();
+    }
+
+    // ========== НОРМАЛИЗАЦИЯ ==========
+
+    @Test
+    void normalizeDropsClickIdsAndSortsParams() {
+        assertEquals("https://cdn.example.com/a.png?size=2&w=100",
+                ImageCache.normalizeUrl("HTTPS://CDN.Example.com:443/a.png?w=100&utm_source=x&fbclid=1&size=2&gclid=2#top"));
+    }
+
+    // ref/ref_src у некоторых CDN выбирают версию или вариант ресурса
+    @Test
+    void normalizeKeepsAmbiguousParams() {
+        assertEquals("https://cdn.example.com/a.png?ref=v2", ImageCache.normalizeUrl("https://cdn.example.com/a.png?ref=v2"));
+        assertNotEquals(ImageCache.normalizeUrl("https://cdn.example.com/a.png?ref=v1"),
+                ImageCache.normalizeUrl("https://cdn.example.com/a.png?ref=v2"));
+        assertEquals("https://cdn.example.com/a.png?ref_src=main",
+                ImageCache.normalizeUrl("https://cdn.example.com/a.png?ref_src=main&utm_medium=mail"));
+    }
+
+    // ========== ЗАГРУЗКА ==========
+
+    @Test
+    void storesOnceAndServesByNormalizedUrl() throws Exception {
+        String key = getOrFetch(base + "/c0.png");
+        assertNotNull(key);
+        assertArrayEquals(Files.readAllBytes(root.resolve("c0.png")), cache.read(key));
+        // тот же адрес с трекером — из индекса, без второго запроса
+        assertEquals(key, getOrFetch(base + "/c0.png?utm_source=mail"));
+        assertEquals(1, fetches.get());
+        // новый экземпляр над тем же каталогом находит ключ в urls.log
+        assertEquals(key, new ImageCache(cacheDir).lookup(base + "/c0.png"));
+    }
+
+    @Test
+    void truncatedBodyIsNotCached() throws Exception {
+        String url = base + "/truncate/c1.png";
+        assertThrows(IOException.class, () -> getOrFetch(url));
+        assertNull(cache.lookup(url));
+        assertEquals(0, objectCount());
+    }
+
+    @Test
+    void htmlPageIsNotCached() throws Exception {
+        String url = base + "/html/c1.png";
+        assertNull(getOrFetch(url));
+        assertNull(cache.lookup(url));
+        assertEquals(0, objectCount());
+    }
+
+    @Test
+    void oversizedPayloadIsNotCached() throws Exception {
+        String url = base + "/big/12/c1.png";
+        assertNull(getOrFetch(url));
+        assertEquals(0, objectCount());
+    }
+
+    // после 429 и 503 в кэш ложится картинка, а не тело ошибки
+    @Test
+    void throttledThenServedIsCachedWhole() throws Exception {
+        for (String path : new String[]{"/status/429/1/c2.png", "/status/503/1/c2.png"}) {
+            String key = getOrFetch(base + path);
+            assertNotNull(key, path);
+            assertArrayEquals(Files.readAllBytes(root.resolve("c2.png")), cache.read(key), path);
+        }
+        assertEquals(1, objectCount(), "одинаковое содержимое хранится один раз");
+    }
+
+    private String getOrFetch(String url) throws IOException, InterruptedException {
+        long deadline = DeadlineScope.deadlineIn(30_000);
+        return cache.getOrFetch(url, u -> {
+            fetches.incrementAndGet();
+            return fetcher.fetch(u, deadline);
+        });
+    }
+
+    private long objectCount() throws IOException {
+        Path objects = cacheDir.resolve("objects");
+        if (!Files.isDirectory(objects)) return 0;
+        try (Stream<Path> s = Files.list(objects)) {
+            return s.filter(p -> p.toString().endsWith(".bin")).count();
+        }
+    }
+}
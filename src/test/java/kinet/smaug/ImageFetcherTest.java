@@ -0,0 +1,161 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Загрузчик против локального FaultServer: ответы-ловушки, ретраи, Retry-After и предохранитель хоста. */
+class ImageFetcherTest {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int IMAGES = 8;
+
+    @TempDir
+    static Path root;
+    static FaultServer server;
+    static String base;
+
+    private ImageFetcher fetcher;
+    private ExecutorService pool;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        for (int i = 0; i < IMAGES; i++) {
+            BufferedImage img = new BufferedImage(8 + i, 8, BufferedImage.TYPE_INT_RGB);
+            img.setRGB(0, 0, 0xFF0000 + i);
+            ImageIO.write(img, "png", root.resolve("p" + i + ".png").toFile());
+        }
+        FaultServer.Faults faults = new FaultServer.Faults();
+        faults.retryAfterSec = 1;
+        server = new FaultServer(root, faults);
+        base = "http://" + HOST + ":" + server.start(0);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        fetcher = new ImageFetcher();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    // один 429/503 с коротким Retry-After открывает хост; соседние загрузки
+    // должны переждать паузу и пробный запрос, а не выпасть из fetch()
+    @ParameterizedTest
+    @ValueSource(ints = {429, 503})
+    void shortRetryAfterDropsNoImage(int status) throws Exception {
+        long deadline = DeadlineScope.deadlineIn(30_000);
+        CompletableFuture<byte[]> throttled = fetchAsync("/status/" + status + "/1/p0.png", deadline);
+        waitForState(HostGuard.State.OPEN);
+
+        List<CompletableFuture<byte[]>> others = new ArrayList<>();
+        for (int i = 0; i < IMAGES; i++) others.add(fetchAsync("/p" + i + ".png", deadline));
+
+        assertArrayEquals(Files.readAllBytes(root.resolve("p0.png")), throttled.join());
+        for (int i = 0; i < IMAGES; i++) {
+            assertArrayEquals(Files.readAllBytes(root.resolve("p" + i + ".png")), others.get(i).join(),
+                    "картинка p" + i + ".png потеряна");
+        }
+        assertEquals(HostGuard.State.CLOSED, fetcher.hosts().state(HOST));
+    }
+
+    // обрыв тела объявленной длины — ошибка, а не половина картинки
+    @Test
+    void truncatedBodyFails() {
+        IOException e = assertThrows(IOException.class,
+                () -> fetcher.fetch(base + "/truncate/p1.png", DeadlineScope.deadlineIn(30_000)));
+        assertTrue(e.getMessage().contains("Усечённый"), e.getMessage());
+    }
+
+    @Test
+    void htmlPageIsSkipped() throws Exception {
+        assertNull(fetcher.fetch(base + "/html/p1.png", DeadlineScope.deadlineIn(30_000)));
+    }
+
+    // тело больше MAX_IMAGE_BYTES дочитывается только до лимита
+    @Test
+    void oversizedPayloadIsSkipped() throws Exception {
+        assertNull(fetcher.fetch(base + "/big/12/p1.png", DeadlineScope.deadlineIn(30_000)));
+    }
+
+    // 429 (Retry-After) и 5xx (пауза с разбросом) на первых попытках — картинка всё равно приходит
+    @ParameterizedTest
+    @ValueSource(ints = {429, 500, 502})
+    void transientErrorsAreRetried(int status) throws Exception {
+        String file = "p" + (2 + status % 5) + ".png";
+        byte[] got = fetcher.fetch(base + "/status/" + status + "/2/" + file, DeadlineScope.deadlineIn(30_000));
+        assertArrayEquals(Files.readAllBytes(root.resolve(file)), got);
+        assertEquals(HostGuard.State.CLOSED, fetcher.hosts().state(HOST));
+    }
+
+    // постоянный 5xx: попытки кончаются, картинки нет, но и исключения нет
+    @Test
+    void persistentServerErrorGivesUp() throws Exception {
+        assertNull(fetcher.fetch(base + "/status/500/p1.png", DeadlineScope.deadlineIn(30_000)));
+    }
+
+    @Test
+    void notFoundIsNotRetried() throws Exception {
+        assertNull(fetcher.fetch(base + "/absent.png", DeadlineScope.deadlineIn(30_000)));
+    }
+
+    // свой дедлайн истёк посреди ответа — хост не виноват: не открывается и не теряет места
+    @Test
+    void localDeadlineDoesNotPenalizeHost() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            String url = base + "/slow/1500/p" + i + ".png";
+            assertThrows(IOException.class, () -> fetcher.fetch(url, DeadlineScope.deadlineIn(200)));
+        }
+        assertEquals(HostGuard.State.CLOSED, fetcher.hosts().state(HOST));
+        assertTrue(fetcher.hosts().summary().contains("лимит 4.0"), fetcher.hosts().summary());
+        assertArrayEquals(Files.readAllBytes(root.resolve("p1.png")),
+                fetcher.fetch(base + "/p1.png", DeadlineScope.deadlineIn(30_000)));
+    }
+
+    private CompletableFuture<byte[]> fetchAsync(String path, long deadline) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetcher.fetch(base + path, deadline);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, pool);
+    }
+
+    private void waitForState(HostGuard.State state) throws InterruptedException {
+        long until = System.nanoTime() + 5_000_000_000L;
+        while (fetcher.hosts().state(HOST) != state && System.nanoTime() < until) Thread.sleep(5);
+        assertTrue(fetcher.hosts().state(HOST) == state, "хост не перешёл в " + state);
+    }
+}
@@ -0,0 +1,146 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Аренды между настоящими процессами: каждая папка — ровно одному узлу, брошенная — перехватывается. */
+class LeaseBoardTest {
+
+    private static final String OWNER_MARK = ".owner.";
+
+    @TempDir
+    Path dir;
+
+    private final List<Process> children = new ArrayList<>();
+
+    @AfterEach
+    void killChildren() {
+        for (Process p : children) p.destroyForcibly();
+    }
+
+    @Test
+    void concurrentProcessesClaimEachFolderOnce() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 24; i++) names.add(String.format("deck-%02d", i));
+        List<Process> workers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) workers.add(spawn("w" + w, Duration.ofSeconds(10), 20, names));
+        for (Process p : workers) {
+            assertTrue(p.waitFor(60, TimeUnit.SECONDS), "узел завис");
+            assertEquals(0, p.exitValue());
+        }
+
+        try (LeaseBoard board = new LeaseBoard(dir, "check", Duration.ofSeconds(10))) {
+            assertEquals(names.size(), board.records().size());
+            for (String name : names) {
+                assertTrue(board.isDone(name), name);
+                assertEquals(1, owners(name), "папку " + name + " собирали дважды");
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.noneMatch(f -> f.toString().endsWith(LeaseBoard.LEASE_EXT)), "остались аренды");
+        }
+    }
+
+    // узел убит посреди работы: пока аренда свежая — занята, после TTL её забирают
+    @Test
+    void killedOwnerLeaseIsStolenAfterTtl() throws Exception {
+        Duration ttl = Duration.ofSeconds(1);
+        Process owner = spawn("doomed", ttl, 60_000, List.of("deck"));
+        awaitOwner("deck", "doomed");
+        owner.destroyForcibly().waitFor(10, TimeUnit.SECONDS);
+
+        try (LeaseBoard board = new LeaseBoard(dir, "rescuer", ttl)) {
+            assertNull(board.claim("deck"), "свежая аренда убитого узла ещё действует");
+            Thread.sleep(ttl.toMillis() + 500);
+            LeaseBoard.Lease lease = board.claim("deck");
+            assertNotNull(lease);
+            assertTrue(lease.stolen);
+            board.complete(lease, new Properties());
+            assertEquals("true", board.records().get(0).getProperty("stolen"));
+            assertEquals("rescuer", board.records().get(0).getProperty("node"));
+        }
+    }
+
+    // живой владелец обновляет аренду: дольше TTL она не становится брошенной
+    @Test
+    void liveOwnerKeepsLeaseByHeartbeat() throws Exception {
+        Duration ttl = Duration.ofSeconds(1);
+        Process owner = spawn("alive", ttl, 3_000, List.of("deck"));
+        awaitOwner("deck", "alive");
+
+        try (LeaseBoard board = new LeaseBoard(dir, "rival", ttl)) {
+            Thread.sleep(ttl.toMillis() * 2);
+            assertNull(board.claim("deck"), "аренду живого узла перехватили");
+            assertTrue(owner.waitFor(30, TimeUnit.SECONDS));
+            assertEquals(0, owner.exitValue());
+            assertTrue(board.isDone("deck"));
+            assertEquals("alive", board.records().get(0).getProperty("node"));
+        }
+    }
+
+    private Process spawn(String node, Duration ttl, long holdMs, List<String> names) throws IOException {
+        List<String> cmd = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                Worker.class.getName(), dir.toString(), node, Long.toString(ttl.toMillis()), Long.toString(holdMs)));
+        cmd.addAll(names);
+        Process p = new ProcessBuilder(cmd).inheritIO().start();
+        children.add(p);
+        return p;
+    }
+
+    private void awaitOwner(String name, String node) throws Exception {
+        Path mark = dir.resolve(name + OWNER_MARK + node);
+        long until = System.nanoTime() + 30_000_000_000L;
+        while (!Files.exists(mark) && System.nanoTime() < until) Thread.sleep(20);
+        assertTrue(Files.exists(mark), "узел " + node + " не взял " + name);
+    }
+
+    private long owners(String name) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(name + OWNER_MARK)).count();
+        }
+    }
+
+    /**
+     * Дочерний процесс-узел: {@code <каталог> <узел> <ttl мс> <работа мс> <папки...>}.
+     * Берёт папки в случайном порядке, отмечает себя владельцем, «работает» и записывает итог.
+     */
+    static final class Worker {
+        public static void main(String[] args) throws Exception {
+            Path dir = Paths.get(args[0]);
+            String node = args[1];
+            long hold = Long.parseLong(args[3]);
+            List<String> names = new ArrayList<>(Arrays.asList(args).subList(4, args.length));
+            Collections.shuffle(names);
+            try (LeaseBoard board = new LeaseBoard(dir, node, Duration.ofMillis(Long.parseLong(args[2])))) {
+                for (String name : names) {
+                    LeaseBoard.Lease lease = board.claim(name);
+                    if (lease == null) continue;
+                    Files.createFile(dir.resolve(name + OWNER_MARK + node));
+                    Thread.sleep(hold);
+                    board.complete(lease, new Properties());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/** Проверка ссылок против локального FaultServer: классификация и что попадает в кэш. */
+class LinkCheckerTest {
+
+    private static final Duration BUDGET = Duration.ofSeconds(20);
+    private static final Duration TTL = Duration.ofDays(1);
+
+    @TempDir
+    static Path root;
+    static FaultServer server;
+    static String base;
+
+    @TempDir
+    Path work;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        Files.writeString(root.resolve("page.html"), "<html><body>ok</body></html>");
+        server = new FaultServer(root, new FaultServer.Faults());
+        base = "http://127.0.0.1:" + server.start(0);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void classifiesByServerAnswer() throws Exception {
+        String alive = base + "/page.html";
+        String noHead = base + "/nohead/page.html";   // HEAD 405 → решает GET
+        String gone = base + "/status/410/page.html";
+        String missing = base + "/absent.html";
+        try (LinkChecker checker = new LinkChecker(null, TTL)) {
+            Map<String, LinkChecker.Result> r = checker.check(List.of(alive, noHead, gone, missing, "ISBN 978-5-00"), BUDGET);
+            assertEquals(4, r.size(), "не-http строки не проверяются");
+            assertEquals(LinkChecker.Status.ALIVE, r.get(alive).status);
+            assertEquals(LinkChecker.Status.ALIVE, r.get(noHead).status);
+            assertEquals(200, r.get(noHead).code);
+            assertEquals(LinkChecker.Status.DEAD, r.get(gone).status);
+            assertEquals("HTTP 410", r.get(gone).reason());
+            assertEquals(LinkChecker.Status.DEAD, r.get(missing).status);
+            assertEquals(404, r.get(missing).code);
+        }
+    }
+
+    // HEAD-маршрута нет, а страница по GET есть: 404 на HEAD ссылку не убивает
+    @Test
+    void headNotFoundIsConfirmedByGet() throws Exception {
+        String url = base + "/headstatus/404/page.html";
+        try (LinkChecker checker = new LinkChecker(null, TTL)) {
+            LinkChecker.Result r = checker.check(List.of(url), BUDGET).get(url);
+            assertEquals(LinkChecker.Status.ALIVE, r.status);
+            assertEquals(200, r.code);
+        }
+    }
+
+    // 5xx — сбой сервера, а не мёртвая ссылка: в кэш не идёт
+    @Test
+    void serverErrorIsUnknownAndNotCached() throws Exception {
+        String url = base + "/status/503/page.html";
+        try (LinkChecker checker = new LinkChecker(null, TTL)) {
+            assertEquals(LinkChecker.Status.UNKNOWN, checker.check(List.of(url), BUDGET).get(url).status);
+            assertEquals(0, checker.cachedCount());
+        }
+    }
+
+    // ошибка DNS может быть сбоем резолвера: ссылку не убиваем и не запоминаем
+    @Test
+    void unknownHostIsUnknownAndNotCached() throws Exception {
+        String url = "http://no-such-host.invalid/page.html";
+        Path cacheFile = work.resolve("links.tsv");
+        try (LinkChecker checker = new LinkChecker(cacheFile, TTL)) {
+            assertEquals(LinkChecker.Status.UNKNOWN, checker.check(List.of(url), BUDGET).get(url).status);
+            assertEquals(0, checker.cachedCount());
+        }
+        assertFalse(Files.readString(cacheFile).contains(url));
+    }
+
+    // живые и мёртвые итоги переживают перезапуск и не проверяются заново
+    @Test
+    void definiteResultsPersistBetweenRuns() throws Exception {
+        String alive = base + "/page.html";
+        String dead = base + "/status/404/page.html";
+        Path cacheFile = work.resolve("links.tsv");
+        try (LinkChecker checker = new LinkChecker(cacheFile, TTL)) {
+            checker.check(List.of(alive, dead), BUDGET);
+            assertEquals(2, checker.checkedCount());
+        }
+        try (LinkChecker checker = new LinkChecker(cacheFile, TTL)) {
+            Map<String, LinkChecker.Result> r = checker.check(List.of(alive, dead), BUDGET);
+            assertEquals(0, checker.checkedCount());
+            assertEquals(LinkChecker.Status.ALIVE, r.get(alive).status);
+            assertEquals(LinkChecker.Status.DEAD, r.get(dead).status);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Журнал готовых папок переживает сбой посреди записи. */
+class ProgressJournalTest {
+
+    @TempDir
+    Path dir;
+
+    // оборванная строка отбрасывается, и следующая запись не склеивается с её хвостом
+    @Test
+    void tornTailIsDroppedAndNotGluedToNextRecord() throws Exception {
+        Path file = dir.resolve(ProgressJournal.FILE);
+        try (ProgressJournal journal = new ProgressJournal(file, false)) {
+            journal.record("folderA", "fa", 10);
+        }
+        Files.writeString(file, "fold", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (ProgressJournal journal = new ProgressJournal(file, false)) {
+            assertEquals(1, journal.size());
+            journal.record("folderB", "fb", 20);
+        }
+        try (ProgressJournal journal = new ProgressJournal(file, false)) {
+            assertTrue(journal.isDone("folderA", "fa"));
+            assertTrue(journal.isDone("folderB", "fb"));
+            assertEquals(2, journal.size());
+        }
+        assertEquals("folderA\tfa\t10\nfolderB\tfb\t20\n", Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void freshStartDropsPreviousRecords() throws Exception {
+        Path file = dir.resolve(ProgressJournal.FILE);
+        try (ProgressJournal journal = new ProgressJournal(file, false)) {
+            journal.record("folderA", "fa", 10);
+        }
+        try (ProgressJournal journal = new ProgressJournal(file, true)) {
+            assertFalse(journal.isDone("folderA", "fa"));
+        }
+        assertEquals(0, Files.size(file));
+    }
+}
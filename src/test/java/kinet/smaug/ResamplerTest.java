@@ -0,0 +1,75 @@
+package kinet.smaug;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** Усреднение по площади: цвета, альфа и совпадение ядер. */
+class ResamplerTest {
+
+    private final Resampler resampler = new Resampler(Resampler.SCALAR);
+
+    @Test
+    void uniformColourStaysUniform() {
+        int[] src = filled(1000, 700, 0xff336699);
+        int[] dst = new int[333 * 233];
+        resampler.downscale(src, 1000, 700, dst, 333, 233);
+        for (int px : dst) assertEquals(0xff336699, px);
+    }
+
+    // 2×2 → 1×1: среднее по каналам
+    @Test
+    void averagesCoveredPixels() {
+        int[] src = {0xff000000, 0xffffffff, 0xff000000, 0xffffffff};
+        int[] dst = new int[1];
+        resampler.downscale(src, 2, 2, dst, 1, 1);
+        assertEquals(0xff808080, dst[0]);
+    }
+
+    // прозрачный чёрный не затемняет соседей: цвет — по непрозрачной части, альфа — средняя
+    @Test
+    void transparentPixelsDoNotDarken() {
+        int[] src = {0x00000000, 0xffff0000, 0x00000000, 0xffff0000};
+        int[] dst = new int[1];
+        resampler.downscale(src, 2, 2, dst, 1, 1);
+        assertEquals(0x80ff0000, dst[0]);
+    }
+
+    // накопление целочисленное: скалярное и векторное (если доступно) ядра, полосами fork-join
+    // и одним проходом, дают те же байты
+    @Test
+    void kernelsAndBandsAgree() {
+        Random rnd = new Random(7);
+        int sw = 1500, sh = 900, dw = 641, dh = 377;
+        for (boolean alpha : new boolean[]{false, true}) {
+            int[] src = new int[sw * sh];
+            for (int i = 0; i < src.length; i++) src[i] = alpha ? rnd.nextInt() : 0xff000000 | rnd.nextInt();
+            int[] serial = new int[dw * dh];
+            resampler.downscale(src, sw, sh, serial, dw, dh, false);
+            for (Resampler.RowKernel kernel : new Resampler.RowKernel[]{Resampler.SCALAR, Resampler.defaultKernel()}) {
+                for (boolean parallel : new boolean[]{false, true}) {
+                    int[] dst = new int[dw * dh];
+                    new Resampler(kernel).downscale(src, sw, sh, dst, dw, dh, parallel);
+                    assertArrayEquals(serial, dst, "ядро " + kernel.name() + ", полосы " + parallel + ", альфа " + alpha);
+                }
+            }
+        }
+    }
+
+    @Test
+    void rejectsUpscale() {
+        assertThrows(IllegalArgumentException.class,
+                () -> resampler.downscale(new int[4], 2, 2, new int[9], 3, 3));
+    }
+
+    private static int[] filled(int w, int h, int argb) {
+        int[] a = new int[w * h];
+        Arrays.fill(a, argb);
+        return a;
+    }
+}